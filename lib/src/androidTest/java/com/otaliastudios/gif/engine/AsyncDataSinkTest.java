@@ -0,0 +1,206 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.otaliastudios.gif.sink.DataSink;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class AsyncDataSinkTest {
+
+    private final static long WAIT_MILLIS = 200;
+
+    @Test
+    public void testOrder() {
+        FakeSink sink = new FakeSink();
+        AsyncDataSink async = new AsyncDataSink(sink, 2);
+        MediaFormat format = new MediaFormat();
+        async.setOrientation(90);
+        async.setFormat(format);
+        // Bigger than the initial slot capacity, and with an offset.
+        int[] sizes = {10, 100 * 1024, 20, 0, 30};
+        for (int i = 0; i < sizes.length; i++) {
+            write(async, i, sizes[i]);
+        }
+        async.stop();
+        assertEquals(90, sink.orientation);
+        assertSame(format, sink.format);
+        List<String> expected = new ArrayList<>();
+        expected.add("format");
+        for (int i = 0; i < sizes.length; i++) expected.add("sample:" + i);
+        expected.add("stop");
+        assertEquals(expected, sink.events);
+        for (int i = 0; i < sizes.length; i++) {
+            assertArrayEquals(payload(i, sizes[i]), sink.payloads.get(i));
+            assertEquals(i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, (int) sink.flags.get(i));
+        }
+        async.release();
+        assertEquals("release", sink.events.get(sink.events.size() - 1));
+    }
+
+    @Test(timeout = 5000)
+    public void testStopDrains() throws Exception {
+        final FakeSink sink = new FakeSink();
+        sink.gate = new CountDownLatch(1);
+        final AsyncDataSink async = new AsyncDataSink(sink, 4);
+        async.setFormat(new MediaFormat());
+        for (int i = 0; i < 3; i++) write(async, i, 10);
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                async.stop();
+            }
+        });
+        stopper.start();
+        // The muxer is blocked in the first sample, so stop() must wait.
+        stopper.join(WAIT_MILLIS);
+        assertTrue(stopper.isAlive());
+        assertEquals(Collections.singletonList("format"), sink.events);
+        sink.gate.countDown();
+        stopper.join();
+        assertEquals(Arrays.asList("format", "sample:0", "sample:1", "sample:2", "stop"), sink.events);
+        async.release();
+    }
+
+    @Test(timeout = 5000)
+    public void testMuxerError() throws Exception {
+        FakeSink sink = new FakeSink();
+        sink.failAt = 1;
+        AsyncDataSink async = new AsyncDataSink(sink, 2);
+        async.setFormat(new MediaFormat());
+        try {
+            // The error is thrown by one of the following calls.
+            for (int i = 0; ; i++) {
+                write(async, i, 10);
+                Thread.sleep(10);
+            }
+        } catch (RuntimeException e) {
+            assertSame(sink.failure, e.getCause());
+        }
+        try {
+            async.stop();
+            fail("Expected a failure.");
+        } catch (RuntimeException e) {
+            assertSame(sink.failure, e.getCause());
+        }
+        assertFalse(sink.events.contains("stop"));
+        async.release();
+        assertEquals("release", sink.events.get(sink.events.size() - 1));
+    }
+
+    @Test(timeout = 5000)
+    public void testReleaseDropsQueued() throws Exception {
+        FakeSink sink = new FakeSink();
+        sink.gate = new CountDownLatch(1);
+        AsyncDataSink async = new AsyncDataSink(sink, 4);
+        for (int i = 0; i < 4; i++) write(async, i, 10);
+        // The muxer is blocked in the first sample, the others are queued.
+        Thread.sleep(WAIT_MILLIS);
+        async.release();
+        // The muxer stopped before the sink was released.
+        assertEquals(Arrays.asList("sample:0", "release"), sink.events);
+        assertFalse(sink.writeAfterRelease);
+    }
+
+    private static void write(@NonNull AsyncDataSink sink, int sample, int size) {
+        int offset = 7;
+        ByteBuffer buffer = ByteBuffer.allocate(offset + size + 3);
+        buffer.position(offset);
+        buffer.put(payload(sample, size));
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int flags = sample == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        info.set(offset, size, sample * 1000L, flags);
+        sink.write(buffer, info);
+    }
+
+    @NonNull
+    private static byte[] payload(int sample, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) payload[i] = (byte) (sample * 31 + i);
+        return payload;
+    }
+
+    /**
+     * A sink that records the calls it gets, in order. Writes can wait
+     * for a gate to be opened, or fail at the given sample.
+     */
+    private static class FakeSink implements DataSink {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final RuntimeException failure = new IllegalStateException();
+        volatile CountDownLatch gate;
+        volatile int failAt = -1;
+        volatile int orientation;
+        volatile MediaFormat format;
+        volatile boolean writeAfterRelease;
+        private volatile boolean mReleased;
+
+        @Override
+        public void setOrientation(int orientation) {
+            this.orientation = orientation;
+        }
+
+        @Override
+        public void setFormat(@NonNull MediaFormat format) {
+            this.format = format;
+            events.add("format");
+        }
+
+        @Override
+        public void write(@NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+            if (mReleased) writeAfterRelease = true;
+            awaitGate();
+            int sample = (int) (bufferInfo.presentationTimeUs / 1000L);
+            if (sample == failAt) throw failure;
+            byte[] payload = new byte[bufferInfo.size];
+            byteBuffer.position(bufferInfo.offset);
+            byteBuffer.get(payload);
+            payloads.add(payload);
+            flags.add(bufferInfo.flags);
+            events.add("sample:" + sample);
+        }
+
+        private void awaitGate() {
+            CountDownLatch gate = this.gate;
+            if (gate == null) return;
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                // Like a real muxer, complete the write anyway.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void stop() {
+            events.add("stop");
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+            events.add("release");
+        }
+    }
+}
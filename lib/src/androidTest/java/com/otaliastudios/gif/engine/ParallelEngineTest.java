@@ -0,0 +1,183 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ParallelEngineTest {
+
+    private final static byte[] CSD = {0, 0, 0, 1, 0x67, 0x42};
+
+    @Test
+    public void testJoinSplit() {
+        MediaFormat format = createFormat(CSD);
+        // Split segments do not repeat their last frame, and the next segment
+        // starts at their end. The second one has a B-frame.
+        SegmentDataSink[] segments = {
+                createSegment(format, 10, 1510, 10, 510, 1010),
+                createSegment(format, 10, 810, 10, 410, 210, 610),
+                createSegment(format, 10, 1010, 10, 510, 1010)};
+        SegmentDataSinkTest.RecordingSink sink = new SegmentDataSinkTest.RecordingSink();
+        assertTrue(ParallelEngine.join(sink, segments, true));
+        assertSame(format, sink.format);
+        assertTrue(sink.stopped);
+        assertEquals(Arrays.asList(
+                10L, 510L, 1010L,
+                1510L, 1910L, 1710L, 2110L,
+                2310L, 2810L, 3310L), sink.timestamps);
+        assertKeyFrames(sink, 0, 3, 7);
+    }
+
+    @Test
+    public void testJoinSources() {
+        MediaFormat format = createFormat(CSD);
+        // Sources end with their last frame, and the next one starts a step later.
+        SegmentDataSink[] segments = {
+                createSegment(format, 10, 1010, 10, 510, 1010),
+                createSegment(format, 10, 510, 10, 510)};
+        SegmentDataSinkTest.RecordingSink sink = new SegmentDataSinkTest.RecordingSink();
+        assertTrue(ParallelEngine.join(sink, segments, false));
+        long nextUs = 1010 + Engine.STEP_DISTANCE_US;
+        assertEquals(Arrays.asList(10L, 510L, 1010L, nextUs, nextUs + 500), sink.timestamps);
+        assertKeyFrames(sink, 0, 3);
+    }
+
+    @Test
+    public void testNoKeyFrame() {
+        MediaFormat format = createFormat(CSD);
+        SegmentDataSink second = new SegmentDataSink();
+        second.setFormat(format);
+        second.setTimeRange(10, 1010);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 4, 10, 0);
+        second.write(ByteBuffer.allocate(4), info);
+        assertNotJoined(new SegmentDataSink[]{createSegment(format, 10, 1010, 10, 510), second}, true);
+    }
+
+    @Test
+    public void testCodecConfig() {
+        // Equal content in different buffers can be joined.
+        SegmentDataSink[] segments = {
+                createSegment(createFormat(CSD), 10, 1010, 10),
+                createSegment(createFormat(CSD.clone()), 10, 1010, 10)};
+        assertTrue(ParallelEngine.join(new SegmentDataSinkTest.RecordingSink(), segments, true));
+
+        byte[] other = CSD.clone();
+        other[other.length - 1]++;
+        segments = new SegmentDataSink[]{
+                createSegment(createFormat(CSD), 10, 1010, 10),
+                createSegment(createFormat(other), 10, 1010, 10)};
+        assertNotJoined(segments, true);
+
+        MediaFormat noSecond = new MediaFormat();
+        noSecond.setInteger(MediaFormat.KEY_WIDTH, 320);
+        noSecond.setInteger(MediaFormat.KEY_HEIGHT, 240);
+        noSecond.setByteBuffer("csd-0", ByteBuffer.wrap(CSD));
+        segments = new SegmentDataSink[]{
+                createSegment(createFormat(CSD), 10, 1010, 10),
+                createSegment(noSecond, 10, 1010, 10)};
+        assertNotJoined(segments, true);
+
+        MediaFormat wider = createFormat(CSD);
+        wider.setInteger(MediaFormat.KEY_WIDTH, 640);
+        segments = new SegmentDataSink[]{
+                createSegment(createFormat(CSD), 10, 1010, 10),
+                createSegment(wider, 10, 1010, 10)};
+        assertNotJoined(segments, true);
+    }
+
+    @Test
+    public void testSampleAfterEnd() {
+        MediaFormat format = createFormat(CSD);
+        // A split segment should not have a frame at its end time.
+        SegmentDataSink[] segments = {
+                createSegment(format, 10, 1010, 10, 1010),
+                createSegment(format, 10, 1010, 10)};
+        assertNotJoined(segments, true);
+        // Sources do.
+        segments = new SegmentDataSink[]{
+                createSegment(format, 10, 1010, 10, 1010),
+                createSegment(format, 10, 1010, 10)};
+        assertTrue(ParallelEngine.join(new SegmentDataSinkTest.RecordingSink(), segments, false));
+    }
+
+    @Test
+    public void testEmptySegment() {
+        MediaFormat format = createFormat(CSD);
+        SegmentDataSink empty = new SegmentDataSink();
+        empty.setFormat(format);
+        empty.setTimeRange(10, 1010);
+        assertNotJoined(new SegmentDataSink[]{createSegment(format, 10, 1010, 10), empty}, true);
+        SegmentDataSink noRange = new SegmentDataSink();
+        noRange.setFormat(format);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 4, 10, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        noRange.write(ByteBuffer.allocate(4), info);
+        assertNotJoined(new SegmentDataSink[]{createSegment(format, 10, 1010, 10), noRange}, true);
+    }
+
+    private static void assertNotJoined(@NonNull SegmentDataSink[] segments, boolean split) {
+        SegmentDataSinkTest.RecordingSink sink = new SegmentDataSinkTest.RecordingSink();
+        assertFalse(ParallelEngine.join(sink, segments, split));
+        // The sink is untouched.
+        assertNull(sink.format);
+        assertTrue(sink.timestamps.isEmpty());
+        assertFalse(sink.stopped);
+    }
+
+    private static void assertKeyFrames(@NonNull SegmentDataSinkTest.RecordingSink sink,
+                                        int... samples) {
+        int next = 0;
+        for (int i = 0; i < sink.flags.size(); i++) {
+            boolean key = next < samples.length && samples[next] == i;
+            if (key) next++;
+            assertEquals("sample:" + i, key, (sink.flags.get(i) & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        }
+    }
+
+    @NonNull
+    private static MediaFormat createFormat(@NonNull byte[] csd) {
+        MediaFormat format = new MediaFormat();
+        format.setInteger(MediaFormat.KEY_WIDTH, 320);
+        format.setInteger(MediaFormat.KEY_HEIGHT, 240);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(csd));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x68}));
+        return format;
+    }
+
+    /**
+     * Creates a segment with the given time range and sample timestamps, in decode order.
+     * The first sample is a key frame.
+     */
+    @NonNull
+    private static SegmentDataSink createSegment(@NonNull MediaFormat format,
+                                                 long startUs, long endUs,
+                                                 long... timestampsUs) {
+        SegmentDataSink segment = new SegmentDataSink();
+        segment.setFormat(format);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < timestampsUs.length; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(0, timestampsUs[i]);
+            info.set(0, 8, timestampsUs[i], i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            segment.write(buffer, info);
+        }
+        segment.setTimeRange(startUs, endUs);
+        return segment;
+    }
+}
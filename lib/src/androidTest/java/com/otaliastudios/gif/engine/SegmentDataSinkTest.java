@@ -0,0 +1,146 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.otaliastudios.gif.sink.DataSink;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SegmentDataSinkTest {
+
+    @Test
+    public void testWriteTo() {
+        SegmentDataSink segment = new SegmentDataSink();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // More samples and data than the initial capacity, in decode order.
+        int count = 100;
+        int size = 5000;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(size + 10);
+            byte[] payload = payload(i, size);
+            buffer.position(10);
+            buffer.put(payload);
+            int flags = i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            if (i == count - 1) flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            info.set(10, size, presentationTimeUs(i), flags);
+            segment.write(buffer, info);
+        }
+        // The empty end of stream buffer is not stored.
+        info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        segment.write(ByteBuffer.allocate(0), info);
+        assertEquals(count, segment.getSampleCount());
+        assertEquals(count * size, segment.getDataSize());
+        assertTrue(segment.startsWithKeyFrame());
+        long lastUs = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) lastUs = Math.max(lastUs, presentationTimeUs(i));
+        assertEquals(lastUs, segment.getLastTimestampUs());
+
+        RecordingSink sink = new RecordingSink();
+        segment.writeTo(sink, 1000, new MediaCodec.BufferInfo());
+        assertEquals(count, sink.timestamps.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(presentationTimeUs(i) + 1000, (long) sink.timestamps.get(i));
+            assertArrayEquals(payload(i, size), sink.payloads.get(i));
+            // The end of stream is signaled by the real sink, not by samples.
+            int expectedFlags = i == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            assertEquals(expectedFlags, (int) sink.flags.get(i));
+        }
+        segment.clear();
+        assertEquals(0, segment.getSampleCount());
+        assertEquals(0, segment.getDataSize());
+    }
+
+    @Test
+    public void testTimeRange() {
+        SegmentDataSink segment = new SegmentDataSink();
+        assertFalse(segment.hasTimeRange());
+        segment.setTimeRange(10, 5);
+        assertFalse(segment.hasTimeRange());
+        segment.setTimeRange(10, 2000);
+        assertTrue(segment.hasTimeRange());
+        assertEquals(10, segment.getStartTimeUs());
+        assertEquals(2000, segment.getEndTimeUs());
+    }
+
+    @Test
+    public void testStartsWithKeyFrame() {
+        SegmentDataSink segment = new SegmentDataSink();
+        assertFalse(segment.startsWithKeyFrame());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 4, 10, 0);
+        segment.write(ByteBuffer.allocate(4), info);
+        info.set(0, 4, 20, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        segment.write(ByteBuffer.allocate(4), info);
+        assertFalse(segment.startsWithKeyFrame());
+    }
+
+    /**
+     * Groups of three frames where the last one is encoded first, like with B-frames.
+     */
+    private static long presentationTimeUs(int sample) {
+        int group = sample / 3;
+        int index = sample % 3;
+        return 10 + 100 * (3 * group + (index == 0 ? 2 : index - 1));
+    }
+
+    @NonNull
+    private static byte[] payload(int sample, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) payload[i] = (byte) (sample + i);
+        return payload;
+    }
+
+    /**
+     * A sink that keeps a copy of everything it is given.
+     */
+    static class RecordingSink implements DataSink {
+        MediaFormat format;
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        boolean stopped;
+
+        @Override
+        public void setOrientation(int orientation) {
+        }
+
+        @Override
+        public void setFormat(@NonNull MediaFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public void write(@NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+            byte[] payload = new byte[bufferInfo.size];
+            byteBuffer.position(bufferInfo.offset);
+            byteBuffer.get(payload);
+            timestamps.add(bufferInfo.presentationTimeUs);
+            flags.add(bufferInfo.flags);
+            payloads.add(payload);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
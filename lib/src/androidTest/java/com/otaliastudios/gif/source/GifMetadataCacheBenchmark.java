@@ -0,0 +1,106 @@
+package com.otaliastudios.gif.source;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifRestartIndex;
+import com.otaliastudios.gif.source.internal.GifScanner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the cost of a {@link GifMetadataCache} hit, that is computing the key
+ * and loading and checking the entry, with scanning the GIF again.
+ * Results are logged with the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GifMetadataCacheBenchmark {
+
+    private final static String TAG = GifMetadataCacheBenchmark.class.getSimpleName();
+    private final static int WARMUP_RUNS = 5;
+    private final static int RUNS = 30;
+
+    @Test
+    public void benchmark() throws Exception {
+        byte[] asset = readAsset("benchmark.gif");
+        File directory = new File(InstrumentationRegistry.getInstrumentation()
+                .getTargetContext().getCacheDir(), TAG);
+        GifMetadataCache cache = new GifMetadataCache(directory, 16 * 1024 * 1024);
+        try {
+            // The asset, then a long GIF (~20MB) made by repeating its frames.
+            for (int repeat : new int[]{1, 128}) {
+                run(cache, repeat(asset, repeat));
+            }
+        } finally {
+            cache.clear();
+        }
+    }
+
+    private static void run(@NonNull GifMetadataCache cache, @NonNull byte[] gif) {
+        ByteBuffer data = ByteBuffer.wrap(gif);
+        GifMetadata metadata = new GifScanner().scan(data);
+        cache.put(GifMetadataCache.computeKey(data), metadata, GifRestartIndex.build(metadata));
+        long scan = 0;
+        long hit = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            new GifScanner().scan(data);
+            long scanned = System.nanoTime();
+            assertNotNull(cache.get(GifMetadataCache.computeKey(data), data));
+            long loaded = System.nanoTime();
+            if (run < WARMUP_RUNS) continue;
+            scan += scanned - start;
+            hit += loaded - scanned;
+        }
+        Log.i(TAG, "Looked up " + gif.length + " bytes." +
+                " frames:" + metadata.getFrameCount() +
+                " scanUs:" + scan / RUNS / 1000L +
+                " hitUs:" + hit / RUNS / 1000L +
+                " speedup:" + ((float) scan / hit));
+    }
+
+    /**
+     * Repeats all the blocks between the global color table and the trailer.
+     */
+    @NonNull
+    private static byte[] repeat(@NonNull byte[] gif, int times) {
+        int packed = gif[10] & 0xFF;
+        int start = 13 + ((packed & 0x80) != 0 ? 3 * (2 << (packed & 0x07)) : 0);
+        int end = gif.length - 1;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(gif, 0, start);
+        for (int i = 0; i < times; i++) output.write(gif, start, end - start);
+        output.write(gif, end, 1);
+        return output.toByteArray();
+    }
+
+    @NonNull
+    private static byte[] readAsset(@NonNull String name) throws IOException {
+        InputStream stream = InstrumentationRegistry.getInstrumentation().getContext()
+                .getAssets().open(name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.otaliastudios.gif.source.internal;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.bumptech.glide.gifdecoder.GifDecoder;
+import com.bumptech.glide.gifdecoder.GifHeader;
+import com.bumptech.glide.gifdecoder.GifHeaderParser;
+import com.bumptech.glide.gifdecoder.StandardGifDecoder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of {@link GifFrameDecoder} with Glide's StandardGifDecoder,
+ * which the library used before. Both produce an ARGB bitmap for each frame.
+ * Results are logged with the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GifFrameDecoderBenchmark {
+
+    private final static String TAG = GifFrameDecoderBenchmark.class.getSimpleName();
+    private final static int WARMUP_RUNS = 3;
+    private final static int RUNS = 10;
+
+    @Test
+    public void benchmark() throws Exception {
+        byte[] gif = readAsset("benchmark.gif");
+        long[] ours = new long[2];
+        long[] glide = new long[2];
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            boolean warmup = run < WARMUP_RUNS;
+            accumulate(ours, decodeWithLibrary(gif), warmup);
+            accumulate(glide, decodeWithGlide(gif), warmup);
+        }
+        assertEquals(ours[1], glide[1]);
+        Log.i(TAG, "Decoded " + gif.length + " bytes." +
+                " frames:" + ours[1] / RUNS +
+                " libraryUsPerFrame:" + ours[0] / ours[1] / 1000L +
+                " glideUsPerFrame:" + glide[0] / glide[1] / 1000L +
+                " speedup:" + ((float) glide[0] / ours[0]));
+    }
+
+    private static void accumulate(@NonNull long[] totals, @NonNull long[] result, boolean warmup) {
+        if (warmup) return;
+        totals[0] += result[0];
+        totals[1] += result[1];
+    }
+
+    /**
+     * Returns the elapsed nanoseconds and the number of frames.
+     */
+    @NonNull
+    private static long[] decodeWithLibrary(@NonNull byte[] gif) {
+        long start = System.nanoTime();
+        ByteBuffer data = ByteBuffer.wrap(gif);
+        GifMetadata metadata = new GifScanner().scan(data);
+        GifFrameDecoder decoder = new GifFrameDecoder(data, metadata);
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int count = metadata.getFrameCount();
+        for (int i = 0; i < count; i++) {
+            decoder.decodeFrame(i);
+            bitmap.setPixels(decoder.getCanvas(), 0, width, 0, 0, width, height);
+        }
+        long elapsed = System.nanoTime() - start;
+        bitmap.recycle();
+        return new long[]{elapsed, count};
+    }
+
+    /**
+     * Returns the elapsed nanoseconds and the number of frames.
+     */
+    @NonNull
+    private static long[] decodeWithGlide(@NonNull byte[] gif) {
+        long start = System.nanoTime();
+        GifHeader header = new GifHeaderParser().setData(gif).parseHeader();
+        StandardGifDecoder decoder = new StandardGifDecoder(new SimpleBitmapProvider(),
+                header, ByteBuffer.wrap(gif));
+        int count = decoder.getFrameCount();
+        for (int i = 0; i < count; i++) {
+            decoder.advance();
+            decoder.getNextFrame();
+        }
+        long elapsed = System.nanoTime() - start;
+        decoder.clear();
+        return new long[]{elapsed, count};
+    }
+
+    @NonNull
+    private static byte[] readAsset(@NonNull String name) throws IOException {
+        InputStream stream = InstrumentationRegistry.getInstrumentation().getContext()
+                .getAssets().open(name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Like Glide does without a pool: allocates everything.
+     */
+    private static class SimpleBitmapProvider implements GifDecoder.BitmapProvider {
+        @NonNull
+        @Override
+        public Bitmap obtain(int width, int height, @NonNull Bitmap.Config config) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        @Override
+        public void release(@NonNull Bitmap bitmap) {
+            bitmap.recycle();
+        }
+
+        @NonNull
+        @Override
+        public byte[] obtainByteArray(int size) {
+            return new byte[size];
+        }
+
+        @Override
+        public void release(@NonNull byte[] bytes) {
+        }
+
+        @NonNull
+        @Override
+        public int[] obtainIntArray(int size) {
+            return new int[size];
+        }
+
+        @Override
+        public void release(@NonNull int[] array) {
+        }
+    }
+}
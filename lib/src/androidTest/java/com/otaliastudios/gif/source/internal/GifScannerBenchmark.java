@@ -0,0 +1,73 @@
+package com.otaliastudios.gif.source.internal;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.bumptech.glide.gifdecoder.GifHeader;
+import com.bumptech.glide.gifdecoder.GifHeaderParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the cost of {@link GifScanner#scan(ByteBuffer)} with Glide's GifHeaderParser,
+ * which the library used before to find the frame count and delays.
+ * Results are logged with the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GifScannerBenchmark {
+
+    private final static String TAG = GifScannerBenchmark.class.getSimpleName();
+    private final static int WARMUP_RUNS = 5;
+    private final static int RUNS = 30;
+
+    @Test
+    public void benchmark() throws Exception {
+        byte[] gif = readAsset("benchmark.gif");
+        ByteBuffer data = ByteBuffer.wrap(gif);
+        long ours = 0;
+        long glide = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            GifMetadata metadata = new GifScanner().scan(data);
+            long scanned = System.nanoTime();
+            GifHeader header = new GifHeaderParser().setData(gif).parseHeader();
+            long parsed = System.nanoTime();
+            assertEquals(header.getNumFrames(), metadata.getFrameCount());
+            if (run < WARMUP_RUNS) continue;
+            ours += scanned - start;
+            glide += parsed - scanned;
+        }
+        Log.i(TAG, "Scanned " + gif.length + " bytes." +
+                " scanUs:" + ours / RUNS / 1000L +
+                " glideUs:" + glide / RUNS / 1000L +
+                " speedup:" + ((float) glide / ours));
+    }
+
+    @NonNull
+    private static byte[] readAsset(@NonNull String name) throws IOException {
+        InputStream stream = InstrumentationRegistry.getInstrumentation().getContext()
+                .getAssets().open(name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
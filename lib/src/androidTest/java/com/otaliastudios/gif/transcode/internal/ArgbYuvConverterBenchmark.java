@@ -0,0 +1,77 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the throughput of {@link ArgbYuvConverter} for common frame sizes,
+ * on the caller thread and split into one stripe per core.
+ * Results are logged with the {@link #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ArgbYuvConverterBenchmark {
+
+    private final static String TAG = ArgbYuvConverterBenchmark.class.getSimpleName();
+    private final static int WARMUP_RUNS = 5;
+    private final static int RUNS = 30;
+    private final static int[][] SIZES = {{320, 240}, {640, 480}, {1280, 720}, {1920, 1080}};
+
+    @Test
+    public void benchmark() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, cores - 1));
+        try {
+            for (int[] size : SIZES) {
+                int width = size[0];
+                int height = size[1];
+                int[] argb = new int[width * height];
+                Random random = new Random(1);
+                for (int i = 0; i < argb.length; i++) argb[i] = random.nextInt();
+                // Typical encoder layout, with the stride aligned to 16 pixels.
+                int stride = (width + 15) / 16 * 16;
+                byte[] output = new byte[ArgbYuvConverter.getOutputSize(stride, height)];
+                long single = run(new ArgbYuvConverter(ArgbYuvConverter.FORMAT_NV12,
+                        ArgbYuvConverter.STANDARD_BT601, false), argb, width, height, output, stride);
+                long striped = run(new ArgbYuvConverter(ArgbYuvConverter.FORMAT_NV12,
+                        ArgbYuvConverter.STANDARD_BT601, false, executor, cores),
+                        argb, width, height, output, stride);
+                Log.i(TAG, "Converted " + width + "x" + height + "." +
+                        " singleUsPerFrame:" + single / 1000L +
+                        " singleMpxPerSecond:" + megapixelsPerSecond(width, height, single) +
+                        " stripes:" + cores +
+                        " stripedUsPerFrame:" + striped / 1000L +
+                        " stripedMpxPerSecond:" + megapixelsPerSecond(width, height, striped));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the average nanoseconds per frame.
+     */
+    private static long run(@NonNull ArgbYuvConverter converter, @NonNull int[] argb,
+                            int width, int height, @NonNull byte[] output, int stride) {
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            converter.convert(argb, 0, width, width, height, output, stride, height);
+        }
+        long start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) {
+            converter.convert(argb, 0, width, width, height, output, stride, height);
+        }
+        return (System.nanoTime() - start) / RUNS;
+    }
+
+    private static float megapixelsPerSecond(int width, int height, long nanosPerFrame) {
+        return (float) width * height * 1000F / nanosPerFrame;
+    }
+}
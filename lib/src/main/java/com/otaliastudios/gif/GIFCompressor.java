@@ -18,6 +18,8 @@ package com.otaliastudios.gif;
 import android.os.Handler;
 
 import com.otaliastudios.gif.engine.Engine;
+import com.otaliastudios.gif.engine.ParallelEngine;
+import com.otaliastudios.gif.engine.PipelinedEngine;
 import com.otaliastudios.gif.sink.DataSink;
 import com.otaliastudios.gif.internal.Logger;
 
@@ -109,13 +111,20 @@ public class GIFCompressor {
             @Override
             public Void call() throws Exception {
                 try {
-                    Engine engine = new Engine(new Engine.ProgressCallback() {
+                    Engine.ProgressCallback callback = new Engine.ProgressCallback() {
                         @Override
                         public void onProgress(final double progress) {
                             listenerWrapper.onGIFCompressionProgress(progress);
                         }
-                    });
-                    engine.compress(options);
+                    };
+                    boolean compressed = options.shouldUseParallelEncoding()
+                            && new ParallelEngine(callback).compress(options);
+                    if (!compressed) {
+                        Engine engine = options.shouldUsePipeline()
+                                ? new PipelinedEngine(callback)
+                                : new Engine(callback);
+                        engine.compress(options);
+                    }
                     listenerWrapper.onGIFCompressionCompleted();
 
                 } catch (Throwable e) {
@@ -7,9 +7,12 @@ import android.os.Looper;
 
 import com.otaliastudios.gif.sink.DataSink;
 import com.otaliastudios.gif.sink.DefaultDataSink;
+import com.otaliastudios.gif.source.ByteBufferDataSource;
 import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.gif.source.DefaultDataSource;
 import com.otaliastudios.gif.source.FileDescriptorDataSource;
 import com.otaliastudios.gif.source.FilePathDataSource;
+import com.otaliastudios.gif.source.GifMetadataCache;
 import com.otaliastudios.gif.source.UriDataSource;
 import com.otaliastudios.gif.strategy.DefaultStrategies;
 import com.otaliastudios.gif.strategy.Strategy;
@@ -18,10 +21,14 @@ import com.otaliastudios.gif.time.SpeedTimeInterpolator;
 import com.otaliastudios.gif.time.TimeInterpolator;
 
 import java.io.FileDescriptor;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -30,6 +37,53 @@ import androidx.annotation.Nullable;
  */
 public class GIFOptions {
 
+    /**
+     * Frames are drawn into a Surface with a Canvas, then received by a SurfaceTexture
+     * and rendered into the encoder with OpenGL. This is the default.
+     */
+    public final static int RENDER_BACKEND_SURFACE = 0;
+
+    /**
+     * Frames are uploaded straight into an OpenGL texture, then rendered into the encoder.
+     * This avoids a buffer round trip and a thread wake-up for each frame.
+     */
+    public final static int RENDER_BACKEND_TEXTURE = 1;
+
+    /**
+     * Frames are uploaded as color indices, one byte per pixel, plus their color table,
+     * and colors are looked up on the GPU. This uses a quarter of the upload bandwidth.
+     * Sources that can't provide indexed frames fall back to {@link #RENDER_BACKEND_TEXTURE}.
+     */
+    public final static int RENDER_BACKEND_PALETTE = 2;
+
+    /**
+     * Frames are composited on the GPU: the canvas lives in an OpenGL framebuffer, and only
+     * the region of each GIF frame is uploaded and drawn, including disposal. This removes
+     * the CPU compositing of the full canvas, but frames are not subsampled.
+     * Sources that can't provide raw frames fall back to {@link #RENDER_BACKEND_TEXTURE}.
+     */
+    public final static int RENDER_BACKEND_COMPOSITE = 3;
+
+    /**
+     * Frames are scaled, rotated and converted to YUV on the CPU, then queued into
+     * the encoder input buffers, with no OpenGL involved. This is used automatically
+     * when the other backends can't create an EGL context, or creating it is too slow.
+     */
+    public final static int RENDER_BACKEND_CPU = 4;
+
+    /**
+     * Interface of integers representing render backends.
+     * @see #RENDER_BACKEND_SURFACE
+     * @see #RENDER_BACKEND_TEXTURE
+     * @see #RENDER_BACKEND_PALETTE
+     * @see #RENDER_BACKEND_COMPOSITE
+     * @see #RENDER_BACKEND_CPU
+     */
+    @IntDef({RENDER_BACKEND_SURFACE, RENDER_BACKEND_TEXTURE,
+            RENDER_BACKEND_PALETTE, RENDER_BACKEND_COMPOSITE, RENDER_BACKEND_CPU})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface RenderBackend {}
+
     private GIFOptions() {}
 
     private DataSink dataSink;
@@ -37,6 +91,13 @@ public class GIFOptions {
     private Strategy strategy;
     private int rotation;
     private TimeInterpolator timeInterpolator;
+    private int decodeAheadFrames;
+    private int renderBackend;
+    private boolean reuseEncoder;
+    private boolean asyncEncoder;
+    private boolean pipelined;
+    private boolean parallelEncoding;
+    private int maxParallelEncoders;
 
     GIFListener listener;
     Handler listenerHandler;
@@ -65,6 +126,35 @@ public class GIFOptions {
         return timeInterpolator;
     }
 
+    public int getDecodeAheadFrames() {
+        return decodeAheadFrames;
+    }
+
+    @RenderBackend
+    public int getRenderBackend() {
+        return renderBackend;
+    }
+
+    public boolean shouldReuseEncoder() {
+        return reuseEncoder;
+    }
+
+    public boolean shouldUseAsyncEncoder() {
+        return asyncEncoder;
+    }
+
+    public boolean shouldUsePipeline() {
+        return pipelined;
+    }
+
+    public boolean shouldUseParallelEncoding() {
+        return parallelEncoding;
+    }
+
+    public int getMaxParallelEncoders() {
+        return maxParallelEncoders;
+    }
+
     public static class Builder {
         private DataSink dataSink;
         private final List<DataSource> dataSources = new ArrayList<>();
@@ -73,6 +163,14 @@ public class GIFOptions {
         private Strategy strategy;
         private int rotation;
         private TimeInterpolator timeInterpolator;
+        private int decodeAheadFrames;
+        private int renderBackend = RENDER_BACKEND_SURFACE;
+        private boolean reuseEncoder;
+        private boolean asyncEncoder;
+        private boolean pipelined;
+        private boolean parallelEncoding;
+        private int maxParallelEncoders;
+        private GifMetadataCache metadataCache;
 
         Builder(@NonNull String outPath) {
             this.dataSink = new DefaultDataSink(outPath);
@@ -107,6 +205,68 @@ public class GIFOptions {
             return addDataSource(new UriDataSource(context, uri));
         }
 
+        /**
+         * Adds a source for GIF data that is already in memory.
+         * The buffer contents are read directly, without copying them.
+         *
+         * @param buffer the GIF data
+         * @return this for chaining
+         * @see ByteBufferDataSource
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder addDataSource(@NonNull ByteBuffer buffer) {
+            return addDataSource(new ByteBufferDataSource(buffer));
+        }
+
+        /**
+         * Adds a source that will be trimmed to the given time range.
+         * The output will start with the frame that is visible at the start time.
+         * Trimming is supported by sources that extend {@link DefaultDataSource},
+         * which is the case for all sources in this library.
+         *
+         * @param dataSource the source
+         * @param trimStartUs the start time in microseconds, or 0
+         * @param trimEndUs the end time in microseconds, or {@link Long#MAX_VALUE}
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("WeakerAccess")
+        public Builder addDataSource(@NonNull DataSource dataSource, long trimStartUs, long trimEndUs) {
+            if (!(dataSource instanceof DefaultDataSource)) {
+                throw new IllegalArgumentException("Trimming is only supported by DefaultDataSource.");
+            }
+            ((DefaultDataSource) dataSource).setTrim(trimStartUs, trimEndUs);
+            return addDataSource(dataSource);
+        }
+
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder addDataSource(@NonNull Context context, @NonNull FileDescriptor fileDescriptor,
+                                     long trimStartUs, long trimEndUs) {
+            return addDataSource(new FileDescriptorDataSource(context, fileDescriptor), trimStartUs, trimEndUs);
+        }
+
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder addDataSource(@NonNull Context context, @NonNull String inPath,
+                                     long trimStartUs, long trimEndUs) {
+            return addDataSource(new FilePathDataSource(context, inPath), trimStartUs, trimEndUs);
+        }
+
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder addDataSource(@NonNull Context context, @NonNull Uri uri,
+                                     long trimStartUs, long trimEndUs) {
+            return addDataSource(new UriDataSource(context, uri), trimStartUs, trimEndUs);
+        }
+
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder addDataSource(@NonNull ByteBuffer buffer, long trimStartUs, long trimEndUs) {
+            return addDataSource(new ByteBufferDataSource(buffer), trimStartUs, trimEndUs);
+        }
+
         /**
          * Sets the output strategy. If absent, this defaults to the 16:9
          * strategy returned by {@link DefaultStrategies#for720x1280()}.
@@ -185,6 +345,147 @@ public class GIFOptions {
             return setTimeInterpolator(new SpeedTimeInterpolator(speedFactor));
         }
 
+        /**
+         * Enables decoding ahead: input frames will be decoded on a separate thread
+         * while the previous ones are being encoded, up to the given number of frames.
+         * This can increase speed on multicore devices, at the cost of keeping
+         * more frames in memory. Defaults to 0, which decodes on the same thread.
+         *
+         * @param frames the number of frames to decode ahead, or 0 to disable
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setDecodeAheadFrames(int frames) {
+            this.decodeAheadFrames = frames;
+            return this;
+        }
+
+        /**
+         * Sets how decoded frames are brought to the encoder. Defaults to
+         * {@link #RENDER_BACKEND_SURFACE}. All backends log their average and
+         * maximum per-frame latency when released, so they can be compared.
+         *
+         * @param renderBackend the render backend
+         * @return this for chaining
+         * @see #RENDER_BACKEND_SURFACE
+         * @see #RENDER_BACKEND_TEXTURE
+         * @see #RENDER_BACKEND_PALETTE
+         * @see #RENDER_BACKEND_COMPOSITE
+         * @see #RENDER_BACKEND_CPU
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setRenderBackend(@RenderBackend int renderBackend) {
+            this.renderBackend = renderBackend;
+            return this;
+        }
+
+        /**
+         * When concatenating sources, keeps a single encoder and OpenGL context for the
+         * whole output, instead of creating new ones for each source. At each boundary,
+         * only the source and its scale are changed. This saves the encoder and EGL setup
+         * time, which is logged either way, so the two modes can be compared.
+         * Defaults to false.
+         *
+         * @param reuseEncoder whether to reuse the encoder
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setReuseEncoder(boolean reuseEncoder) {
+            this.reuseEncoder = reuseEncoder;
+            return this;
+        }
+
+        /**
+         * Drives the encoder through asynchronous callbacks, received on a dedicated thread,
+         * instead of polling it. When nothing can advance, the engine then waits for the next
+         * encoder event, rather than sleeping for a fixed time. The number of idle waits and
+         * the wake up latency are logged either way, so the two modes can be compared.
+         * This needs API 23: on older devices, the encoder is polled anyway.
+         * Defaults to false.
+         *
+         * @param asyncEncoder whether to use encoder callbacks
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setAsyncEncoder(boolean asyncEncoder) {
+            this.asyncEncoder = asyncEncoder;
+            return this;
+        }
+
+        /**
+         * Runs decoding, rendering and muxing on three separate threads, connected by
+         * bounded queues, so that a slow stage does not stall the others. Decoding ahead
+         * is then always enabled, with {@link #setDecodeAheadFrames(int)} frames or 2 if
+         * it was not set. Each stage logs its occupancy at the end, so the slowest one can
+         * be found. This helps on multicore devices. Defaults to false.
+         *
+         * @param pipelined whether to use separate threads for each stage
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setPipelined(boolean pipelined) {
+            this.pipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * Encodes segments of the output at the same time, each with its own encoder,
+         * and then joins them into the output. A single long GIF is split into segments,
+         * whose number depends on how many encoders the device can run at once, and on the
+         * number of cores. When there are many sources, each of them is a segment, and that
+         * number limits how many are encoded at once. See {@link #setMaxParallelEncoders(int)}.
+         * This only applies to sources that extend {@link DefaultDataSource},
+         * with the default time interpolator or a {@link SpeedTimeInterpolator}.
+         * Otherwise, or if the segments can't be joined, the GIF is encoded as usual.
+         * Encoded segments are kept in memory until joined. Defaults to false.
+         *
+         * @param parallelEncoding whether to encode segments in parallel
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setParallelEncoding(boolean parallelEncoding) {
+            this.parallelEncoding = parallelEncoding;
+            return this;
+        }
+
+        /**
+         * Limits the number of encoders that run at once when parallel encoding
+         * is enabled, see {@link #setParallelEncoding(boolean)}. This also limits
+         * the number of segments of a single GIF. Defaults to 0, which means that
+         * the limit is chosen based on the device capabilities.
+         *
+         * @param maxParallelEncoders the maximum number of encoders, or 0
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setMaxParallelEncoders(int maxParallelEncoders) {
+            this.maxParallelEncoders = maxParallelEncoders;
+            return this;
+        }
+
+        /**
+         * Sets a cache for the structure of the input GIFs. This is useful when the
+         * same GIFs are compressed many times. The cache will be used by all sources
+         * that extend {@link DefaultDataSource}, which is the case for all sources
+         * in this library. Defaults to null.
+         *
+         * @param cache a cache, or null
+         * @return this for chaining
+         */
+        @NonNull
+        @SuppressWarnings("unused")
+        public Builder setMetadataCache(@Nullable GifMetadataCache cache) {
+            this.metadataCache = cache;
+            return this;
+        }
+
         @NonNull
         public GIFOptions build() {
             if (listener == null) {
@@ -196,6 +497,26 @@ public class GIFOptions {
             if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
                 throw new IllegalArgumentException("Accepted values for rotation are 0, 90, 180, 270");
             }
+            if (decodeAheadFrames < 0) {
+                throw new IllegalArgumentException("Decode ahead frames should be 0 or positive.");
+            }
+            if (maxParallelEncoders < 0) {
+                throw new IllegalArgumentException("Max parallel encoders should be 0 or positive.");
+            }
+            if (renderBackend != RENDER_BACKEND_SURFACE
+                    && renderBackend != RENDER_BACKEND_TEXTURE
+                    && renderBackend != RENDER_BACKEND_PALETTE
+                    && renderBackend != RENDER_BACKEND_COMPOSITE
+                    && renderBackend != RENDER_BACKEND_CPU) {
+                throw new IllegalArgumentException("Unknown render backend: " + renderBackend);
+            }
+            if (metadataCache != null) {
+                for (DataSource dataSource : dataSources) {
+                    if (dataSource instanceof DefaultDataSource) {
+                        ((DefaultDataSource) dataSource).setMetadataCache(metadataCache);
+                    }
+                }
+            }
             if (listenerHandler == null) {
                 Looper looper = Looper.myLooper();
                 if (looper == null) looper = Looper.getMainLooper();
@@ -215,6 +536,13 @@ public class GIFOptions {
             options.strategy = strategy;
             options.rotation = rotation;
             options.timeInterpolator = timeInterpolator;
+            options.decodeAheadFrames = decodeAheadFrames;
+            options.renderBackend = renderBackend;
+            options.reuseEncoder = reuseEncoder;
+            options.asyncEncoder = asyncEncoder;
+            options.pipelined = pipelined;
+            options.parallelEncoding = parallelEncoding;
+            options.maxParallelEncoders = maxParallelEncoders;
             return options;
         }
 
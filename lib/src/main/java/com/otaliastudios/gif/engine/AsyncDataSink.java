@@ -0,0 +1,238 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.sink.DataSink;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSink} that wraps another sink and writes to it on a dedicated thread,
+ * so that a slow muxer does not stall the encoder.
+ *
+ * Samples are copied into a bounded ring of preallocated slots: {@link #write(ByteBuffer, MediaCodec.BufferInfo)}
+ * takes a free slot, copies into it and queues it, while the muxer thread writes the queued
+ * slots in order and gives them back. When the ring is full, the writer blocks.
+ * Format changes go through the same queue, so they keep their order with respect to samples.
+ *
+ * {@link #stop()} waits for all queued samples to be written, then stops the wrapped sink.
+ * {@link #release()} discards them instead, so it can be used for cancellation.
+ * Errors on the muxer thread are thrown by the next call on the writer thread.
+ */
+class AsyncDataSink implements DataSink {
+
+    private static final String TAG = AsyncDataSink.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private static final int INITIAL_SLOT_CAPACITY = 64 * 1024;
+
+    private static final int TYPE_SAMPLE = 0;
+    private static final int TYPE_FORMAT = 1;
+    private static final int TYPE_STOP = 2;
+
+    private final DataSink mSink;
+    private final int mDepth;
+    private final BlockingQueue<Slot> mFree;
+    private final BlockingQueue<Slot> mFilled;
+    private Thread mThread;
+    private volatile boolean mMuxerDone;
+    private volatile Throwable mMuxerError;
+
+    // Stats
+    private int mSamples;
+    private long mQueuedSamples; // Sum of the queue sizes seen by write()
+    private long mWriterWaitNanos;
+    private volatile long mMuxerWaitNanos;
+    private volatile long mMuxerBusyNanos;
+
+    private static class Slot {
+        private int type;
+        private ByteBuffer buffer;
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private MediaFormat format;
+    }
+
+    /**
+     * Creates a new sink that queues up to depth samples.
+     *
+     * @param sink the sink to wrap
+     * @param depth the number of queued samples, at least 1
+     */
+    AsyncDataSink(@NonNull DataSink sink, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth should be at least 1: " + depth);
+        }
+        mSink = sink;
+        mDepth = depth;
+        mFree = new ArrayBlockingQueue<>(depth);
+        mFilled = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            Slot slot = new Slot();
+            slot.buffer = ByteBuffer.allocateDirect(INITIAL_SLOT_CAPACITY);
+            mFree.add(slot);
+        }
+    }
+
+    @Override
+    public void setOrientation(int orientation) {
+        // Called before any sample, so there's no need to queue this.
+        if (mThread != null) {
+            throw new IllegalStateException("Orientation must be set before writing.");
+        }
+        mSink.setOrientation(orientation);
+    }
+
+    @Override
+    public void setFormat(@NonNull MediaFormat format) {
+        Slot slot = takeFree();
+        slot.type = TYPE_FORMAT;
+        slot.format = format;
+        putFilled(slot);
+    }
+
+    @Override
+    public void write(@NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        Slot slot = takeFree();
+        int size = bufferInfo.size;
+        if (slot.buffer.capacity() < size) {
+            slot.buffer = ByteBuffer.allocateDirect(size);
+        }
+        byteBuffer.limit(bufferInfo.offset + size);
+        byteBuffer.position(bufferInfo.offset);
+        slot.buffer.clear();
+        slot.buffer.put(byteBuffer);
+        slot.buffer.flip();
+        slot.info.set(0, size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        slot.type = TYPE_SAMPLE;
+        mQueuedSamples += mFilled.size();
+        mSamples++;
+        putFilled(slot);
+    }
+
+    private void startMuxer() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mux();
+                } catch (InterruptedException e) {
+                    // Released.
+                } catch (Throwable e) {
+                    mMuxerError = e;
+                } finally {
+                    mMuxerDone = true;
+                }
+            }
+        }, "GIFMuxer");
+        mThread.start();
+        LOG.i("Started muxer thread. depth:" + mDepth);
+    }
+
+    private void mux() throws InterruptedException {
+        while (true) {
+            long start = System.nanoTime();
+            Slot slot = mFilled.take();
+            long busyStart = System.nanoTime();
+            mMuxerWaitNanos += busyStart - start;
+            if (slot.type == TYPE_STOP) {
+                mFree.put(slot);
+                return;
+            } else if (slot.type == TYPE_FORMAT) {
+                mSink.setFormat(slot.format);
+                slot.format = null;
+            } else {
+                mSink.write(slot.buffer, slot.info);
+            }
+            mMuxerBusyNanos += System.nanoTime() - busyStart;
+            mFree.put(slot);
+        }
+    }
+
+    @NonNull
+    private Slot takeFree() {
+        if (mThread == null) startMuxer();
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                checkMuxer();
+                Slot slot = mFree.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (slot != null) return slot;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            mWriterWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void putFilled(@NonNull Slot slot) {
+        // Can't block: there are as many places as slots.
+        mFilled.add(slot);
+    }
+
+    private void checkMuxer() {
+        if (mMuxerError != null) {
+            throw new RuntimeException("Error while muxing.", mMuxerError);
+        }
+        if (mMuxerDone) {
+            throw new IllegalStateException("The muxer thread was stopped.");
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mThread != null) {
+            // Write everything that was queued, then stop on this thread.
+            Slot slot = takeFree();
+            slot.type = TYPE_STOP;
+            putFilled(slot);
+            join();
+            if (mMuxerError != null) {
+                throw new RuntimeException("Error while muxing.", mMuxerError);
+            }
+        }
+        mSink.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mThread != null) {
+            // Drop what was queued, and wait before releasing the sink it writes to.
+            mThread.interrupt();
+            join();
+        }
+        mFree.clear();
+        mFilled.clear();
+        mSink.release();
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        mThread = null;
+        long muxerNanos = mMuxerBusyNanos + mMuxerWaitNanos;
+        LOG.i("Muxer stats." +
+                " samples:" + mSamples +
+                " avgQueued:" + (mSamples == 0 ? 0 : (float) mQueuedSamples / mSamples) +
+                " writerWaitMs:" + mWriterWaitNanos / 1000000L +
+                " muxerWaitMs:" + mMuxerWaitNanos / 1000000L +
+                " muxerBusyMs:" + mMuxerBusyNanos / 1000000L +
+                " muxerOccupancy:" + (muxerNanos == 0 ? 0 : (float) mMuxerBusyNanos / muxerNanos));
+    }
+}
@@ -16,14 +16,20 @@
 package com.otaliastudios.gif.engine;
 
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.otaliastudios.gif.GIFOptions;
 import com.otaliastudios.gif.sink.DataSink;
 import com.otaliastudios.gif.sink.InvalidOutputFormatException;
 import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.gif.source.DefaultDataSource;
+import com.otaliastudios.gif.source.internal.DecodeAheadDataSource;
 import com.otaliastudios.gif.time.TimeInterpolator;
 import com.otaliastudios.gif.transcode.Transcoder;
 import com.otaliastudios.gif.transcode.VideoTranscoder;
+import com.otaliastudios.gif.transcode.internal.WakeSignal;
 import com.otaliastudios.gif.internal.Logger;
 
 import androidx.annotation.NonNull;
@@ -41,8 +47,14 @@ public class Engine {
     private static final Logger LOG = new Logger(TAG);
 
     private static final long TRANSCODER_SLEEP_TIME = 10;
+    // Distance between the last frame of a step and the first frame of the next.
+    static final long STEP_DISTANCE_US = 10;
     private static final long PROGRESS_INTERVAL_STEPS = 10;
 
+    // When a source duration is unknown and it can't be estimated from its frame counts,
+    // we assume that this much is left after what was read so far.
+    private static final long UNKNOWN_DURATION_REMAINING_US = 5000000;
+
 
     public interface ProgressCallback {
 
@@ -58,6 +70,20 @@ public class Engine {
     private final List<Transcoder> mTranscoders = new ArrayList<>();
     private final List<TimeInterpolator> mInterpolators = new ArrayList<>();
     private int mCurrentStep = 0;
+    private VideoTranscoder mSharedTranscoder = null;
+    private long mSetUpNanos = 0;
+    private HandlerThread mCallbackThread = null;
+    private Handler mCallbackHandler = null;
+    private WakeSignal mWakeSignal = null;
+
+    // Idle stats. When waiting on the signal, the wake latency is the time from the
+    // last signal to the wake up. When sleeping, it is the whole sleep, which is an
+    // upper bound: we can't know when the encoder became ready.
+    private long mIdleWaits = 0;
+    private long mIdleNanos = 0;
+    private long mWakeLatencyNanos = 0;
+    private long mMaxWakeLatencyNanos = 0;
+    private long mLoopNanos = 0;
     private MediaFormat mOutputFormat = null;
     private volatile double mProgress;
     private final ProgressCallback mProgressCallback;
@@ -96,20 +122,48 @@ public class Engine {
 
         // Create a TimeInterpolator, wrapping the external one.
         TimeInterpolator interpolator = createStepTimeInterpolator(mCurrentStep,
-                options.getTimeInterpolator());
+                getTimeInterpolator(options));
         mInterpolators.add(interpolator);
 
-        // Create a Transcoder for this track.
-        Transcoder transcoder = new VideoTranscoder(dataSource,
-                mDataSink,
-                interpolator,
-                options.getRotation());
-        transcoder.setUp(mOutputFormat);
+        // Create a Transcoder for this track, or pass the source to the shared one.
+        // Setup time is measured in both cases, so the two modes can be compared.
+        long start = System.nanoTime();
+        boolean hasNext = mCurrentStep < mDataSources.size() - 1;
+        Transcoder transcoder;
+        if (mSharedTranscoder != null) {
+            mSharedTranscoder.setDataSource(dataSource, interpolator);
+            mSharedTranscoder.setHasNextDataSource(hasNext);
+            transcoder = mSharedTranscoder;
+        } else {
+            VideoTranscoder videoTranscoder = new VideoTranscoder(dataSource,
+                    mDataSink,
+                    interpolator,
+                    options.getRotation(),
+                    options.getRenderBackend());
+            if (mCallbackHandler != null) {
+                videoTranscoder.setEncoderCallback(mCallbackHandler, mWakeSignal);
+            }
+            videoTranscoder.setRenderLastFrame(shouldRenderLastFrame(options));
+            if (options.shouldReuseEncoder()) {
+                // Assign before setUp(), so that it is released if this throws.
+                mSharedTranscoder = videoTranscoder;
+                videoTranscoder.setHasNextDataSource(hasNext);
+            }
+            videoTranscoder.setUp(mOutputFormat);
+            transcoder = videoTranscoder;
+        }
+        long nanos = System.nanoTime() - start;
+        mSetUpNanos += nanos;
+        LOG.i("Opened step " + mCurrentStep + "." +
+                " setUpUs:" + nanos / 1000L +
+                " reusedEncoder:" + (mCurrentStep > 0 && mSharedTranscoder != null));
         mTranscoders.add(transcoder);
     }
 
     private void closeCurrentStep() {
-        mTranscoders.get(mCurrentStep).release();
+        // The shared transcoder is released at the end of the job.
+        Transcoder transcoder = mTranscoders.get(mCurrentStep);
+        if (transcoder != mSharedTranscoder) transcoder.release();
         mDataSources.get(mCurrentStep).release();
         mCurrentStep = mCurrentStep + 1;
     }
@@ -122,7 +176,8 @@ public class Engine {
             // We have already created a transcoder for this step.
             // But this step might be completed and we might need to create a new one.
             Transcoder transcoder = mTranscoders.get(last);
-            if (transcoder.isFinished()) {
+            if (transcoder.isFinished() || (transcoder == mSharedTranscoder
+                    && mSharedTranscoder.isWaitingForDataSource())) {
                 closeCurrentStep();
                 return getCurrentStepTranscoder(options);
             } else {
@@ -151,7 +206,7 @@ public class Engine {
 
             private long mLastInterpolatedTime;
             private long mFirstInputTime = Long.MAX_VALUE;
-            private long mTimeBase = timebase + 10;
+            private long mTimeBase = timebase + STEP_DISTANCE_US;
 
             @Override
             public long interpolate(long time) {
@@ -169,6 +224,9 @@ public class Engine {
             DataSource source = mDataSources.get(i);
             if (i < mCurrentStep) { // getReadUs() is a better approximation for sure.
                 totalDurationUs += source.getReadUs();
+            } else if (source.getDurationUs() == DataSource.DURATION_UNKNOWN) {
+                totalDurationUs += i == mCurrentStep ? estimateDurationUs(source)
+                        : UNKNOWN_DURATION_REMAINING_US;
             } else {
                 totalDurationUs += source.getDurationUs();
             }
@@ -176,6 +234,25 @@ public class Engine {
         return totalDurationUs;
     }
 
+    /**
+     * Estimates the duration of a source that is being read, when it is not known.
+     * If the source counts its frames, we assume that the frames that were found but
+     * not read yet last as long as the others on average, so that progress within
+     * the source is the ratio of decoded to scanned frames.
+     */
+    private static long estimateDurationUs(@NonNull DataSource source) {
+        long readUs = source.getReadUs();
+        if (source instanceof DataSource.FrameCounter) {
+            DataSource.FrameCounter counter = (DataSource.FrameCounter) source;
+            int decoded = counter.getDecodedFrameCount();
+            int scanned = counter.getScannedFrameCount();
+            if (readUs > 0 && decoded > 0 && scanned >= decoded) {
+                return readUs * scanned / decoded;
+            }
+        }
+        return readUs + UNKNOWN_DURATION_REMAINING_US;
+    }
+
     private long getTotalReadUs() {
         long completedDurationUs = 0;
         for (int i = 0; i < mDataSources.size(); i++) {
@@ -195,18 +272,152 @@ public class Engine {
         return (double) readUs / (double) totalUs;
     }
 
+    private void logStats(@NonNull GIFOptions options) {
+        int mergedFrames = 0;
+        for (DataSource source : options.getDataSources()) {
+            if (source instanceof DefaultDataSource) {
+                mergedFrames += ((DefaultDataSource) source).getMergedFrameCount();
+            }
+        }
+        LOG.i("Compression completed. mergedFrames:" + mergedFrames +
+                " setUpMs:" + mSetUpNanos / 1000000L +
+                " steps:" + mDataSources.size() +
+                " reusedEncoder:" + (mSharedTranscoder != null));
+        LOG.i("Idle stats." +
+                " asyncEncoder:" + (mWakeSignal != null) +
+                " idleWaits:" + mIdleWaits +
+                " idleMs:" + mIdleNanos / 1000000L +
+                " avgWakeLatencyUs:" + (mIdleWaits == 0 ? 0 : mWakeLatencyNanos / mIdleWaits / 1000L) +
+                " maxWakeLatencyUs:" + mMaxWakeLatencyNanos / 1000L +
+                " occupancy:" + (mLoopNanos == 0 ? 0 : 1F - (float) mIdleNanos / mLoopNanos));
+    }
+
     /**
-     * Compresses the GIF. Blocks current thread.
+     * Called when nothing advanced. Waits for the next encoder event if the
+     * encoder is asynchronous, or sleeps otherwise.
      *
-     * @param options GIF options.
-     * @throws InvalidOutputFormatException when output format is not supported.
-     * @throws InterruptedException when cancel to compress
+     * @param signalCount the signal count before the loop
+     * @throws InterruptedException when interrupted
      */
-    public void compress(@NonNull GIFOptions options) throws InterruptedException {
-        mDataSink = options.getDataSink();
-        mDataSources = options.getDataSources();
-        mDataSink.setOrientation(0); // Explicitly set 0 to output - we rotate the textures instead.
+    private void waitForWork(long signalCount) throws InterruptedException {
+        long start = System.nanoTime();
+        long latency;
+        if (mWakeSignal != null) {
+            boolean signaled = mWakeSignal.await(signalCount, TRANSCODER_SLEEP_TIME);
+            long end = System.nanoTime();
+            latency = signaled ? end - Math.max(start, mWakeSignal.getLastSignalNanos()) : 0;
+        } else {
+            Thread.sleep(TRANSCODER_SLEEP_TIME);
+            latency = System.nanoTime() - start;
+        }
+        mIdleWaits++;
+        mIdleNanos += System.nanoTime() - start;
+        mWakeLatencyNanos += latency;
+        mMaxWakeLatencyNanos = Math.max(mMaxWakeLatencyNanos, latency);
+    }
+
+    /**
+     * Creates the thread that receives encoder callbacks, if they were requested
+     * and are available. Otherwise, the engine polls the encoder.
+     */
+    private void startCallbackThread(@NonNull GIFOptions options) {
+        if (!options.shouldUseAsyncEncoder()) return;
+        if (Build.VERSION.SDK_INT < 23) {
+            LOG.w("Asynchronous encoder needs API 23. Polling the encoder instead.");
+            return;
+        }
+        mCallbackThread = new HandlerThread("GIFEncoderCallbacks");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mWakeSignal = new WakeSignal();
+    }
+
+    /**
+     * Returns the sources to be transcoded, in order. Subclasses can wrap them.
+     *
+     * @param options the options
+     * @return the sources
+     */
+    @NonNull
+    protected List<DataSource> createDataSources(@NonNull GIFOptions options) {
+        List<DataSource> sources = options.getDataSources();
+        if (options.getDecodeAheadFrames() > 0) {
+            return wrapDataSources(sources, options.getDecodeAheadFrames());
+        }
+        return sources;
+    }
+
+    /**
+     * Wraps each source so that it is decoded ahead on its own thread.
+     *
+     * @param sources the sources
+     * @param depth the number of frames to decode ahead
+     * @return the wrapped sources
+     */
+    @NonNull
+    static List<DataSource> wrapDataSources(@NonNull List<DataSource> sources, int depth) {
+        List<DataSource> wrapped = new ArrayList<>();
+        for (DataSource source : sources) {
+            wrapped.add(new DecodeAheadDataSource(source, depth));
+        }
+        return wrapped;
+    }
+
+    /**
+     * Returns the sink that transcoders write to. Subclasses can wrap it.
+     *
+     * @param options the options
+     * @return the sink
+     */
+    @NonNull
+    protected DataSink createDataSink(@NonNull GIFOptions options) {
+        return options.getDataSink();
+    }
+
+    /**
+     * Returns the external time interpolator. Subclasses can return a different one.
+     *
+     * @param options the options
+     * @return the time interpolator
+     */
+    @NonNull
+    protected TimeInterpolator getTimeInterpolator(@NonNull GIFOptions options) {
+        return options.getTimeInterpolator();
+    }
 
+    /**
+     * Whether the output should end with a repeat of the last frame, at the time where
+     * the last source ends, so that players show it for as long as they should.
+     * Subclasses can return false when the output is followed by other frames.
+     *
+     * @param options the options
+     * @return true to render the last frame
+     */
+    protected boolean shouldRenderLastFrame(@NonNull GIFOptions options) {
+        return true;
+    }
+
+    /**
+     * Returns the output format, see {@link #computeOutputFormat(GIFOptions)}.
+     * Subclasses can override this, but should return a new object each time,
+     * since it is modified by the transcoder.
+     *
+     * @param options the options
+     * @return the output format
+     */
+    @NonNull
+    protected MediaFormat createOutputFormat(@NonNull GIFOptions options) {
+        return computeOutputFormat(options);
+    }
+
+    /**
+     * Returns a new output format, as chosen by the strategy for all sources.
+     *
+     * @param options the options
+     * @return the output format
+     */
+    @NonNull
+    static MediaFormat computeOutputFormat(@NonNull GIFOptions options) {
         MediaFormat outputFormat = new MediaFormat();
         List<MediaFormat> inputFormats = new ArrayList<>();
         for (DataSource source : options.getDataSources()) {
@@ -214,21 +425,39 @@ public class Engine {
             inputFormats.add(inputFormat);
         }
         options.getStrategy().createOutputFormat(inputFormats, outputFormat);
-        mOutputFormat = outputFormat;
+        return outputFormat;
+    }
+
+    /**
+     * Compresses the GIF. Blocks current thread.
+     *
+     * @param options GIF options.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException when cancel to compress
+     */
+    public void compress(@NonNull GIFOptions options) throws InterruptedException {
+        mDataSink = createDataSink(options);
+        mDataSources = createDataSources(options);
+        mDataSink.setOrientation(0); // Explicitly set 0 to output - we rotate the textures instead.
+
+        mOutputFormat = createOutputFormat(options);
         LOG.v("Duration (us): " + getTotalDurationUs());
 
         // Do the actual work.
+        startCallbackThread(options);
         try {
             long loopCount = 0;
             boolean advanced = false;
             boolean isCompleted = false;
             double progress = 0;
+            long loopStart = System.nanoTime();
             while (!isCompleted) {
                 LOG.v("new loop: " + loopCount);
                 if (Thread.interrupted()) {
                     throw new InterruptedException();
                 }
                 advanced = false;
+                long signalCount = mWakeSignal != null ? mWakeSignal.getCount() : 0;
 
                 isCompleted = isCompleted();
                 if (!isCompleted) {
@@ -239,16 +468,26 @@ public class Engine {
                     LOG.v("progress:" + progress);
                     setProgress(progress);
                 }
-                if (!advanced) {
-                    Thread.sleep(TRANSCODER_SLEEP_TIME);
+                if (!advanced && !isCompleted) {
+                    waitForWork(signalCount);
                 }
             }
+            mLoopNanos = System.nanoTime() - loopStart;
             mDataSink.stop();
+            logStats(options);
         } finally {
             try {
                 closeCurrentStep();
             } catch (Exception ignore) {}
+            if (mSharedTranscoder != null) {
+                try {
+                    mSharedTranscoder.release();
+                } catch (Exception ignore) {}
+            }
             mDataSink.release();
+            if (mCallbackThread != null) {
+                mCallbackThread.quit();
+            }
         }
     }
 }
@@ -0,0 +1,359 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.gif.GIFOptions;
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.sink.DataSink;
+import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.gif.source.DefaultDataSource;
+import com.otaliastudios.gif.time.DefaultTimeInterpolator;
+import com.otaliastudios.gif.time.SpeedTimeInterpolator;
+import com.otaliastudios.gif.time.TimeInterpolator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encodes segments of the output concurrently, each with its own {@link Engine} and encoder,
+ * then joins them. With a single source, the segments are parts of it, split at restart
+ * points, see {@link DefaultDataSource#split(int, long)}, and their number follows the number
+ * of encoder instances that the device supports, and the number of cores. With many sources,
+ * each source is a segment, and that number limits how many are encoded at once.
+ * Both can be limited by {@link GIFOptions#getMaxParallelEncoders()}.
+ *
+ * Segments are encoded into memory. Since each encoder starts with a key frame and does
+ * not reference frames before it, each segment is a closed group of pictures, and the
+ * samples can be joined into a single track, as long as all encoders produced the same
+ * codec configuration. All encoders use the output format computed once for all sources.
+ * Timestamps are shifted so that each segment starts where the previous one ended, or,
+ * for sources, as far from it as in {@link Engine}. Segment ends are known from their time
+ * interpolators, so split segments but the last end their input without repeating the last
+ * frame at the end time, and nothing has to be dropped when joining.
+ *
+ * If the options can't be encoded in parallel, or the segments can't be joined, nothing is
+ * written and {@link #compress(GIFOptions)} returns false: callers should then use {@link Engine}.
+ * In any other case, including failures, the sink and the sources are released.
+ */
+public class ParallelEngine {
+
+    private static final String TAG = ParallelEngine.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    // Shorter segments are not worth the setup cost of another encoder.
+    private static final long MIN_SEGMENT_DURATION_US = 2000000;
+    // Used when the device does not tell how many encoders can run at once.
+    private static final int DEFAULT_ENCODER_INSTANCES = 2;
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+    private static final String[] CODEC_CONFIG_KEYS = {"csd-0", "csd-1", "csd-2"};
+
+    private final Engine.ProgressCallback mProgressCallback;
+
+    public ParallelEngine(@Nullable Engine.ProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
+    }
+
+    /**
+     * Compresses the GIF, if it can be encoded in segments. Blocks current thread.
+     *
+     * @param options GIF options
+     * @return true if compressed, false if the options can't be encoded in parallel,
+     *         in which case the sink and the sources are untouched
+     * @throws InterruptedException when canceled
+     */
+    public boolean compress(@NonNull GIFOptions options) throws InterruptedException {
+        List<DataSource> sources = options.getDataSources();
+        for (DataSource source : sources) {
+            if (!(source instanceof DefaultDataSource)) {
+                LOG.i("Parallel encoding needs sources that extend DefaultDataSource.");
+                return false;
+            }
+        }
+        if (copyTimeInterpolator(options.getTimeInterpolator()) == null) {
+            LOG.i("Parallel encoding needs a default or speed time interpolator.");
+            return false;
+        }
+        List<DataSource> segments = new ArrayList<>();
+        // Unless we return false, so that callers can use Engine instead,
+        // we own the sink and the sources and must release them, like Engine does.
+        boolean fallback = false;
+        try {
+            // This also computes the source formats, so that they're not computed concurrently.
+            MediaFormat outputFormat = Engine.computeOutputFormat(options);
+            int encoders = getEncoderInstances(outputFormat.getString(MediaFormat.KEY_MIME));
+            if (options.getMaxParallelEncoders() > 0) {
+                encoders = Math.min(encoders, options.getMaxParallelEncoders());
+            }
+            boolean split = sources.size() == 1;
+            if (split) {
+                DefaultDataSource source = (DefaultDataSource) sources.get(0);
+                segments.addAll(source.split(encoders, MIN_SEGMENT_DURATION_US));
+                if (segments.size() < 2) {
+                    LOG.i("Could not split the source. encoders:" + encoders +
+                            " durationUs:" + source.getDurationUs());
+                    fallback = true;
+                    return false;
+                }
+            } else {
+                // Encode copies, so that the sources are untouched if we can't join.
+                for (DataSource source : sources) {
+                    segments.addAll(((DefaultDataSource) source).split(1, 0));
+                }
+            }
+            fallback = !encode(options, segments, Math.min(encoders, segments.size()), split);
+            return !fallback;
+        } finally {
+            // Engines release their source, but some might not have started.
+            for (DataSource segment : segments) {
+                try {
+                    segment.release();
+                } catch (Exception ignore) {}
+            }
+            if (!fallback) {
+                options.getDataSink().release();
+                for (DataSource source : sources) {
+                    try {
+                        source.release();
+                    } catch (Exception ignore) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the given segments concurrently, then joins them into the sink.
+     *
+     * @param options the options
+     * @param segments the segments, in order
+     * @param threads the maximum number of segments to encode at once
+     * @param split true if segments are parts of a single source
+     * @return true if joined, false if segments were not compatible
+     * @throws InterruptedException when canceled
+     */
+    boolean encode(@NonNull final GIFOptions options, @NonNull List<DataSource> segments,
+                   int threads, boolean split) throws InterruptedException {
+        final int count = segments.size();
+        final SegmentDataSink[] sinks = new SegmentDataSink[count];
+        final SegmentEngine[] engines = new SegmentEngine[count];
+        final long[] nanos = new long[count];
+        long[] durations = new long[count];
+        Object strategyLock = new Object();
+        for (int i = 0; i < count; i++) {
+            DataSource segment = segments.get(i);
+            sinks[i] = new SegmentDataSink();
+            // The end of a split segment is the first frame of the next one.
+            boolean renderLastFrame = !split || i == count - 1;
+            engines[i] = new SegmentEngine(segment, sinks[i],
+                    copyTimeInterpolator(options.getTimeInterpolator()), strategyLock,
+                    renderLastFrame);
+            durations[i] = Math.max(0, segment.getDurationUs());
+        }
+
+        LOG.i("Encoding segments. segments:" + count + " threads:" + threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "GIFSegmentEncoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long segmentStart = System.nanoTime();
+                        engines[index].compress(options);
+                        nanos[index] = System.nanoTime() - segmentStart;
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        setProgress(engines, durations);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+            boolean interrupted = false;
+            while (!executor.isTerminated()) {
+                try {
+                    executor.awaitTermination(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        long wallNanos = System.nanoTime() - start;
+        long serialNanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            serialNanos += nanos[i];
+            bytes += sinks[i].getDataSize();
+        }
+        LOG.i("Encoded segments." +
+                " segments:" + count +
+                " threads:" + threads +
+                " wallMs:" + wallNanos / 1000000L +
+                " segmentsMs:" + serialNanos / 1000000L +
+                " speedup:" + ((float) serialNanos / wallNanos) +
+                " bufferedBytes:" + bytes);
+        boolean joined = join(options.getDataSink(), sinks, split);
+        if (joined) setProgress(1);
+        return joined;
+    }
+
+    /**
+     * Writes the segments into the sink, one after the other, if they are compatible.
+     * Otherwise, returns false without touching the sink. The sink is not released.
+     *
+     * Each segment is shifted so that it starts at the end of the previous one, as given
+     * by their time ranges, plus {@link Engine#STEP_DISTANCE_US} if they are sources.
+     *
+     * @param sink the sink
+     * @param sinks the encoded segments, in order
+     * @param split true if segments are parts of a single source
+     * @return true if joined
+     */
+    static boolean join(@NonNull DataSink sink, @NonNull SegmentDataSink[] sinks, boolean split) {
+        MediaFormat format = sinks[0].getFormat();
+        for (int i = 0; i < sinks.length; i++) {
+            SegmentDataSink segment = sinks[i];
+            MediaFormat segmentFormat = segment.getFormat();
+            if (segmentFormat == null || segment.getSampleCount() == 0 || !segment.hasTimeRange()) {
+                LOG.w("Segment " + i + " is empty. Can't join.");
+                return false;
+            }
+            if (!segment.startsWithKeyFrame()) {
+                LOG.w("Segment " + i + " does not start with a key frame. Can't join.");
+                return false;
+            }
+            //noinspection ConstantConditions
+            if (!hasSameCodecConfig(format, segmentFormat)) {
+                LOG.w("Segment " + i + " has a different codec configuration. Can't join.");
+                return false;
+            }
+            if (split && i < sinks.length - 1 && segment.getLastTimestampUs() >= segment.getEndTimeUs()) {
+                LOG.w("Segment " + i + " has samples after its end. Can't join.");
+                return false;
+            }
+        }
+        sink.setOrientation(0);
+        //noinspection ConstantConditions
+        sink.setFormat(format);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long offsetUs = 0;
+        for (int i = 0; i < sinks.length; i++) {
+            SegmentDataSink segment = sinks[i];
+            segment.writeTo(sink, offsetUs, info);
+            if (i < sinks.length - 1) {
+                long endUs = segment.getEndTimeUs() + offsetUs;
+                long nextStartUs = sinks[i + 1].getStartTimeUs();
+                offsetUs = endUs - nextStartUs + (split ? 0 : Engine.STEP_DISTANCE_US);
+            }
+            segment.clear();
+        }
+        sink.stop();
+        return true;
+    }
+
+    private static boolean hasSameCodecConfig(@NonNull MediaFormat first, @NonNull MediaFormat second) {
+        if (first.getInteger(MediaFormat.KEY_WIDTH) != second.getInteger(MediaFormat.KEY_WIDTH)
+                || first.getInteger(MediaFormat.KEY_HEIGHT) != second.getInteger(MediaFormat.KEY_HEIGHT)) {
+            return false;
+        }
+        for (String key : CODEC_CONFIG_KEYS) {
+            boolean firstHas = first.containsKey(key);
+            if (firstHas != second.containsKey(key)) return false;
+            if (!firstHas) continue;
+            ByteBuffer firstBuffer = first.getByteBuffer(key);
+            ByteBuffer secondBuffer = second.getByteBuffer(key);
+            if (!firstBuffer.equals(secondBuffer)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many encoders for the given type we can run at once, which is
+     * limited both by the codec and by the number of cores.
+     */
+    static int getEncoderInstances(@Nullable String mimeType) {
+        int instances = DEFAULT_ENCODER_INSTANCES;
+        if (Build.VERSION.SDK_INT >= 23 && mimeType != null) {
+            // The first match is the one that MediaCodec.createEncoderByType() picks.
+            MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+            search: for (MediaCodecInfo info : infos) {
+                if (!info.isEncoder()) continue;
+                for (String type : info.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(mimeType)) {
+                        instances = info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                        break search;
+                    }
+                }
+            }
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(instances, cores));
+    }
+
+    /**
+     * Returns a new interpolator that works like the given one, so that each segment
+     * can have its own. Returns null for interpolators that we don't know.
+     */
+    @Nullable
+    static TimeInterpolator copyTimeInterpolator(@NonNull TimeInterpolator interpolator) {
+        if (interpolator.getClass() == DefaultTimeInterpolator.class) {
+            return new DefaultTimeInterpolator();
+        } else if (interpolator.getClass() == SpeedTimeInterpolator.class) {
+            return new SpeedTimeInterpolator(((SpeedTimeInterpolator) interpolator).getFactor());
+        }
+        return null;
+    }
+
+    private void setProgress(@NonNull Engine[] engines, @NonNull long[] durations) {
+        double progress = 0;
+        long total = 0;
+        for (int i = 0; i < engines.length; i++) {
+            progress += engines[i].getProgress() * durations[i];
+            total += durations[i];
+        }
+        setProgress(total == 0 ? 0 : progress / total);
+    }
+
+    private void setProgress(double progress) {
+        if (mProgressCallback != null) {
+            mProgressCallback.onProgress(progress);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.otaliastudios.gif.engine;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.gif.GIFOptions;
+import com.otaliastudios.gif.sink.DataSink;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.util.List;
+
+/**
+ * An {@link Engine} that runs each stage on its own thread:
+ *
+ * - decoding, on a decode-ahead thread for each source
+ * - rendering and encoding, on the calling thread, which owns the EGL context
+ * - muxing, on a muxer thread behind the sink
+ *
+ * Stages are connected by bounded queues of preallocated slots, so each of them
+ * blocks when it is too far ahead of the next one, and memory does not grow.
+ * On multicore devices, throughput is then set by the slowest stage alone.
+ *
+ * Shutdown works like in {@link Engine}: when completed, queued samples are written before
+ * the sink is stopped. When canceled or failed, queued frames and samples are discarded,
+ * and all threads are joined before the sources and sink are released.
+ * Each stage logs its wait times and occupancy when released.
+ */
+public class PipelinedEngine extends Engine {
+
+    private static final int DEFAULT_DECODE_AHEAD_FRAMES = 2;
+    private static final int MUXER_QUEUE_SIZE = 8;
+
+    public PipelinedEngine(@Nullable ProgressCallback progressCallback) {
+        super(progressCallback);
+    }
+
+    @NonNull
+    @Override
+    protected List<DataSource> createDataSources(@NonNull GIFOptions options) {
+        int depth = options.getDecodeAheadFrames();
+        if (depth <= 0) depth = DEFAULT_DECODE_AHEAD_FRAMES;
+        return wrapDataSources(options.getDataSources(), depth);
+    }
+
+    @NonNull
+    @Override
+    protected DataSink createDataSink(@NonNull GIFOptions options) {
+        return new AsyncDataSink(options.getDataSink(), MUXER_QUEUE_SIZE);
+    }
+}
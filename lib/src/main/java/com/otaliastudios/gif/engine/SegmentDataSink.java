@@ -0,0 +1,175 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.gif.sink.DataSink;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link DataSink} that keeps the encoded samples of a segment in memory, so that
+ * they can be written into the real sink later, after the previous segments.
+ *
+ * Sample data is appended to a single growing array, and sample metadata to parallel
+ * arrays. Empty samples, like the end of stream buffer, are not stored. The data
+ * survives {@link #release()}, and is freed by {@link #clear()}.
+ */
+class SegmentDataSink implements DataSink {
+
+    private static final int INITIAL_DATA_SIZE = 256 * 1024;
+    private static final int INITIAL_SAMPLES = 64;
+
+    private MediaFormat mFormat;
+    private byte[] mData = new byte[INITIAL_DATA_SIZE];
+    private int mDataSize;
+    private int[] mOffsets = new int[INITIAL_SAMPLES];
+    private int[] mSizes = new int[INITIAL_SAMPLES];
+    private int[] mFlags = new int[INITIAL_SAMPLES];
+    private long[] mTimestamps = new long[INITIAL_SAMPLES];
+    private int mSamples;
+    private long mStartTimeUs = Long.MIN_VALUE;
+    private long mEndTimeUs = Long.MIN_VALUE;
+
+    @Override
+    public void setOrientation(int orientation) {
+        // Not needed. The real sink orientation is set when joining.
+    }
+
+    @Override
+    public void setFormat(@NonNull MediaFormat format) {
+        mFormat = format;
+    }
+
+    @Override
+    public void write(@NonNull ByteBuffer byteBuffer, @NonNull MediaCodec.BufferInfo bufferInfo) {
+        int size = bufferInfo.size;
+        if (size == 0) return;
+        if (mDataSize + size > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mDataSize + size));
+        }
+        if (mSamples == mSizes.length) {
+            int capacity = mSamples * 2;
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        }
+        byteBuffer.limit(bufferInfo.offset + size);
+        byteBuffer.position(bufferInfo.offset);
+        byteBuffer.get(mData, mDataSize, size);
+        mOffsets[mSamples] = mDataSize;
+        mSizes[mSamples] = size;
+        mFlags[mSamples] = bufferInfo.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        mTimestamps[mSamples] = bufferInfo.presentationTimeUs;
+        mDataSize += size;
+        mSamples++;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        // Keep the data for joining.
+    }
+
+    /**
+     * Frees the samples.
+     */
+    void clear() {
+        mData = null;
+        mOffsets = null;
+        mSizes = null;
+        mFlags = null;
+        mTimestamps = null;
+        mSamples = 0;
+        mDataSize = 0;
+    }
+
+    @Nullable
+    MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    int getSampleCount() {
+        return mSamples;
+    }
+
+    int getDataSize() {
+        return mDataSize;
+    }
+
+    /**
+     * Sets the time range of this segment, as computed by the time interpolator:
+     * the time of its first frame and the time where it ends, which is where
+     * the next segment should start.
+     *
+     * @param startUs the start time
+     * @param endUs the end time
+     */
+    void setTimeRange(long startUs, long endUs) {
+        mStartTimeUs = startUs;
+        mEndTimeUs = endUs;
+    }
+
+    /**
+     * Whether {@link #setTimeRange(long, long)} was called.
+     * @return true if the time range is known
+     */
+    boolean hasTimeRange() {
+        return mStartTimeUs != Long.MIN_VALUE && mEndTimeUs >= mStartTimeUs;
+    }
+
+    long getStartTimeUs() {
+        return mStartTimeUs;
+    }
+
+    long getEndTimeUs() {
+        return mEndTimeUs;
+    }
+
+    /**
+     * Returns the biggest timestamp, which is the one of the last
+     * sample in presentation order.
+     * @return the last timestamp
+     */
+    long getLastTimestampUs() {
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < mSamples; i++) {
+            last = Math.max(last, mTimestamps[i]);
+        }
+        return last;
+    }
+
+    /**
+     * Writes all samples into the given sink, in the order they were written here,
+     * with their timestamps shifted by the given offset.
+     *
+     * @param sink the sink
+     * @param offsetUs the timestamp offset
+     * @param info a reusable info
+     */
+    void writeTo(@NonNull DataSink sink, long offsetUs, @NonNull MediaCodec.BufferInfo info) {
+        ByteBuffer buffer = ByteBuffer.wrap(mData);
+        for (int i = 0; i < mSamples; i++) {
+            buffer.clear();
+            info.set(mOffsets[i], mSizes[i], mTimestamps[i] + offsetUs, mFlags[i]);
+            sink.write(buffer, info);
+        }
+    }
+
+    /**
+     * Whether the first sample is a key frame, so that the segment
+     * can be decoded without the previous ones.
+     * @return true if the segment starts with a key frame
+     */
+    boolean startsWithKeyFrame() {
+        return mSamples > 0 && (mFlags[0] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+}
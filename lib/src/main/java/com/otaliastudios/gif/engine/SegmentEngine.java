@@ -0,0 +1,97 @@
+package com.otaliastudios.gif.engine;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.GIFOptions;
+import com.otaliastudios.gif.sink.DataSink;
+import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.gif.time.TimeInterpolator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@link Engine} that encodes a single segment of the output into a {@link SegmentDataSink},
+ * so that it can run concurrently with the engines of the other segments.
+ * Everything that is shared by the segments is either copied, like the time interpolator,
+ * or accessed under a lock, like the strategy.
+ *
+ * When done, the sink is given the interpolated time range of the segment,
+ * from the time of its first frame to the time where it ends.
+ */
+class SegmentEngine extends Engine {
+
+    private final DataSource mSource;
+    private final SegmentDataSink mSink;
+    private final TimeInterpolator mTimeInterpolator;
+    private final Object mStrategyLock;
+    private final boolean mRenderLastFrame;
+    private long mFirstTimeUs = Long.MIN_VALUE;
+    private long mLastTimeUs = Long.MIN_VALUE;
+
+    SegmentEngine(@NonNull DataSource source,
+                  @NonNull SegmentDataSink sink,
+                  @NonNull final TimeInterpolator timeInterpolator,
+                  @NonNull Object strategyLock,
+                  boolean renderLastFrame) {
+        super(null);
+        mSource = source;
+        mSink = sink;
+        mStrategyLock = strategyLock;
+        mRenderLastFrame = renderLastFrame;
+        // Every chunk is interpolated, including the last one which marks the end.
+        mTimeInterpolator = new TimeInterpolator() {
+            @Override
+            public long interpolate(long time) {
+                long interpolated = timeInterpolator.interpolate(time);
+                if (mFirstTimeUs == Long.MIN_VALUE) mFirstTimeUs = interpolated;
+                mLastTimeUs = interpolated;
+                return interpolated;
+            }
+        };
+    }
+
+    @Override
+    public void compress(@NonNull GIFOptions options) throws InterruptedException {
+        super.compress(options);
+        mSink.setTimeRange(mFirstTimeUs, mLastTimeUs);
+    }
+
+    @NonNull
+    @Override
+    protected List<DataSource> createDataSources(@NonNull GIFOptions options) {
+        List<DataSource> sources = Collections.singletonList(mSource);
+        if (options.getDecodeAheadFrames() > 0) {
+            return wrapDataSources(sources, options.getDecodeAheadFrames());
+        }
+        return sources;
+    }
+
+    @NonNull
+    @Override
+    protected DataSink createDataSink(@NonNull GIFOptions options) {
+        return mSink;
+    }
+
+    @NonNull
+    @Override
+    protected TimeInterpolator getTimeInterpolator(@NonNull GIFOptions options) {
+        return mTimeInterpolator;
+    }
+
+    @Override
+    protected boolean shouldRenderLastFrame(@NonNull GIFOptions options) {
+        return mRenderLastFrame;
+    }
+
+    @NonNull
+    @Override
+    protected MediaFormat createOutputFormat(@NonNull GIFOptions options) {
+        // All segments use the format of the whole output, so they can be joined.
+        synchronized (mStrategyLock) {
+            return super.createOutputFormat(options);
+        }
+    }
+}
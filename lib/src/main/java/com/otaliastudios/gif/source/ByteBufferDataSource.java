@@ -0,0 +1,77 @@
+package com.otaliastudios.gif.source;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link DataSource} backed by GIF data that is already in memory.
+ *
+ * The data is not copied: the parser and the decoder read the given buffer directly,
+ * whether it is a heap buffer, a direct buffer or a read-only view. The bytes between
+ * the buffer position and limit at construction time are used, and later changes to
+ * the position and limit of the caller buffer are ignored. The contents should not
+ * be modified until the source is released.
+ */
+public class ByteBufferDataSource extends DefaultDataSource {
+
+    @NonNull
+    private final ByteBuffer buffer;
+
+    public ByteBufferDataSource(@NonNull ByteBuffer buffer) {
+        super();
+        if (!buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Buffer is empty.");
+        }
+        // Keep our own position and limit, but share the contents.
+        this.buffer = buffer.slice();
+    }
+
+    public ByteBufferDataSource(@NonNull byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    @SuppressWarnings("unused")
+    public ByteBufferDataSource(@NonNull byte[] data, int offset, int length) {
+        this(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    protected long getInputLength() {
+        return buffer.remaining();
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuffer openInputBuffer() {
+        return buffer.duplicate();
+    }
+
+    @NonNull
+    @Override
+    protected InputStream openInputStream() {
+        // Not used, since openInputBuffer() never fails.
+        final ByteBuffer data = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return data.hasRemaining() ? data.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(@NonNull byte[] bytes, int offset, int length) {
+                if (length == 0) return 0;
+                if (!data.hasRemaining()) return -1;
+                length = Math.min(length, data.remaining());
+                data.get(bytes, offset, length);
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return data.remaining();
+            }
+        };
+    }
+}
@@ -1,6 +1,7 @@
 package com.otaliastudios.gif.source;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
@@ -13,7 +14,14 @@ import java.nio.ByteBuffer;
 public interface DataSource {
 
     /**
-     * Returns the GIF total duration in microseconds.
+     * Returned by {@link #getDurationUs()} when the duration is not known yet,
+     * for example because the GIF is still being written.
+     */
+    long DURATION_UNKNOWN = -1L;
+
+    /**
+     * Returns the GIF total duration in microseconds, or {@link #DURATION_UNKNOWN}.
+     * The duration can become known while reading.
      *
      * @return duration in us
      */
@@ -35,7 +43,12 @@ public interface DataSource {
     /**
      * Called to read contents for the current track type.
      * Contents should be put inside {@link DataSource.Chunk#bitmap}, and the
-     * other chunk flags should be filled.
+     * other chunk flags should be filled. If {@link Chunk#requestedFormat} is
+     * {@link Chunk#FORMAT_INDEXED} and the source supports it, contents can be put
+     * inside {@link Chunk#indices} and {@link Chunk#palette} instead.
+     * In any case, {@link Chunk#format} should be set accordingly.
+     *
+     * Chunk buffers are reused across calls when they have the right size.
      *
      * @param chunk output chunk
      */
@@ -61,12 +74,180 @@ public interface DataSource {
      */
     void release();
 
+    /**
+     * Optional interface for sources that do not know their duration while reading,
+     * but know how many frames they found so far. When the duration is unknown,
+     * the engine uses these counts to estimate progress.
+     */
+    interface FrameCounter {
+
+        /**
+         * Returns the number of frames that were found in the input so far,
+         * or 0 if not known.
+         *
+         * @return the number of frames found
+         */
+        int getScannedFrameCount();
+
+        /**
+         * Returns the number of frames that were read so far.
+         *
+         * @return the number of frames read
+         */
+        int getDecodedFrameCount();
+    }
+
     /**
      * Represents a chunk of data.
      * Can be used to read input from {@link #read(Chunk)}.
      */
     class Chunk {
+
+        /**
+         * Frame data is stored in {@link #bitmap}.
+         */
+        public final static int FORMAT_BITMAP = 0;
+
+        /**
+         * Frame data is stored in {@link #indices}, one byte per pixel,
+         * and each index refers to an ARGB color in {@link #palette}.
+         */
+        public final static int FORMAT_INDEXED = 1;
+
+        /**
+         * Frame data is stored in {@link #frames}: the first {@link #frameCount} entries
+         * should be composited, in order, on top of the previous chunk, which lets
+         * readers composite on the GPU. {@link #width} and {@link #height} are the
+         * canvas size. There might be no frames, if the chunk did not change.
+         */
+        public final static int FORMAT_FRAMES = 2;
+
+        /**
+         * The format that the reader would like to receive.
+         * Sources are free to ignore this and use {@link #FORMAT_BITMAP}.
+         */
+        public int requestedFormat = FORMAT_BITMAP;
+
+        /**
+         * The subsampling factor that the reader would like to receive.
+         * Sources that support it can produce frames whose size is the source size
+         * divided by this value, so readers should always check {@link #width}
+         * and {@link #height}. Sources are free to ignore this and use 1.
+         */
+        public int requestedSampleSize = 1;
+
+        /**
+         * The format of this chunk, as written by the source.
+         */
+        public int format = FORMAT_BITMAP;
+
         public Bitmap bitmap;
+        public byte[] indices;
+        public int[] palette;
+        public Frame[] frames;
+        public int frameCount;
+        public int width;
+        public int height;
         public long timestampUs;
+
+        /**
+         * The timestamp of the chunk that will replace this one, in the same timeline
+         * as {@link #timestampUs}, so readers can tell how long this chunk stays on screen
+         * before deciding whether to draw it at all.
+         *
+         * Readers reset this to {@link Long#MAX_VALUE} before each read, which means that
+         * the time is unknown, so sources which do not know it can simply ignore it.
+         */
+        public long nextTimestampUs = Long.MAX_VALUE;
+
+        /**
+         * The region that changed since the previous chunk returned by the source,
+         * in chunk coordinates. Readers can use it to update only part of a frame
+         * they already hold, and should intersect it with the frame bounds.
+         *
+         * Readers reset this with {@link #setDirtyUnknown()} before each read, so that
+         * sources which do not track changes can simply ignore it. Sources that do
+         * can reduce it, down to an empty rect if the frame did not change.
+         */
+        public final Rect dirty = new Rect();
+
+        /**
+         * Marks the whole frame as dirty.
+         */
+        public void setDirtyUnknown() {
+            dirty.set(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Returns a frame that can be filled at the given position of {@link #frames},
+         * growing the array if needed. Frames are reused across reads.
+         *
+         * @param index the frame position
+         * @return the frame
+         */
+        @NonNull
+        public Frame obtainFrame(int index) {
+            if (frames == null || frames.length <= index) {
+                Frame[] array = new Frame[Math.max(index + 1, frames == null ? 4 : frames.length * 2)];
+                if (frames != null) System.arraycopy(frames, 0, array, 0, frames.length);
+                frames = array;
+            }
+            if (frames[index] == null) frames[index] = new Frame();
+            return frames[index];
+        }
+    }
+
+    /**
+     * A single frame of {@link Chunk#FORMAT_FRAMES} chunks. Compositing it means:
+     * 1. clearing the canvas to transparent, if {@link #clear} is true
+     * 2. applying {@link #dispose} to {@link #disposeRect}
+     * 3. saving {@link #rect} for a later {@link #DISPOSE_RESTORE}, if {@link #save} is true
+     * 4. drawing the {@link #indices} colors into {@link #rect}, skipping the transparent index
+     */
+    class Frame {
+
+        /**
+         * Nothing to dispose.
+         */
+        public final static int DISPOSE_NONE = 0;
+
+        /**
+         * {@link #disposeRect} should be filled with {@link #disposeColor}.
+         */
+        public final static int DISPOSE_FILL = 1;
+
+        /**
+         * {@link #disposeRect} should be restored to its last saved contents.
+         */
+        public final static int DISPOSE_RESTORE = 2;
+
+        public boolean clear;
+        public int dispose = DISPOSE_NONE;
+        public final Rect disposeRect = new Rect();
+        public int disposeColor;
+        public boolean save;
+
+        /**
+         * The frame rect in canvas coordinates. The frame is clipped
+         * to the canvas, so this is never bigger than the canvas.
+         */
+        public final Rect rect = new Rect();
+
+        /**
+         * The color indices, one byte per pixel, with rect width as stride.
+         * The array might be bigger than needed.
+         */
+        public byte[] indices;
+
+        /**
+         * The 256 ARGB colors that indices refer to. A different array
+         * is used whenever the colors change, so readers can cache it.
+         */
+        public int[] palette;
+
+        /**
+         * The index that should be skipped, or -1.
+         */
+        public int transparentIndex = -1;
     }
 }
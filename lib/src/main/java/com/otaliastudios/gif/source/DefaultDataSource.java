@@ -1,23 +1,25 @@
 package com.otaliastudios.gif.source;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.gifdecoder.GifDecoder;
-import com.bumptech.glide.gifdecoder.GifHeader;
-import com.bumptech.glide.gifdecoder.GifHeaderParser;
-import com.bumptech.glide.gifdecoder.StandardGifDecoder;
-import com.bumptech.glide.load.resource.gif.GifBitmapProvider;
 import com.otaliastudios.gif.internal.Logger;
 import com.otaliastudios.gif.internal.MediaFormatConstants;
+import com.otaliastudios.gif.source.internal.GifFrameDecoder;
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifRestartIndex;
+import com.otaliastudios.gif.source.internal.GifScanner;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -26,84 +28,407 @@ public abstract class DefaultDataSource implements DataSource {
     private final static String TAG = DefaultDataSource.class.getSimpleName();
     private final static Logger LOG = new Logger(TAG);
 
-    private Context mContext;
-    private GifHeader mGifHeader;
-    private GifDecoder mGifDecoder;
-    private int mGifFrame = 0;
-    private int mGifFrames;
+    private final static int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private ByteBuffer mData;
+    private int mDataCopies = 0;
+    private long mDataBytes = 0;
+    private GifMetadata mMetadata;
+    private GifRestartIndex mRestartIndex;
+    private GifMetadataCache mMetadataCache;
+    private GifFrameDecoder mDecoder;
+    private int mFrame = 0;
+    private long[] mFrameTimesUs; // Frame start times, plus the total duration at the end
+    private long mTrimStartUs = 0;
+    private long mTrimEndUs = Long.MAX_VALUE;
+    private int mStartFrame; // First frame to output
+    private boolean mMergeDuplicateFrames = true;
+    private int mMergedFrames;
+    private int mDecodedAheadFrame = -1; // Last frame of the next chunk, if already decoded
+    private boolean mCoalesceZeroDelayFrames = false;
+    private int mCoalescedFrames;
+    private int mEndFrame; // Frames from mEndFrame on are out of the trim range
+    private Object mLastOutput;
+    private boolean mRaw; // Whether we output raw frames, see Chunk.FORMAT_FRAMES
+    private final Rect mDirty = new Rect(); // Changes since the last output
+    private final Rect mFrameDirty = new Rect();
     private MediaFormat mFormat;
     private final long mFirstTimestampUs = 10;
     private long mLastTimestampUs = mFirstTimestampUs;
     private long mDurationUs = Long.MIN_VALUE;
 
+    @SuppressWarnings("unused")
     protected DefaultDataSource(@NonNull Context context) {
-        mContext = context.getApplicationContext();
+        // Context is not needed anymore, but we keep it for compatibility.
     }
 
+    protected DefaultDataSource() {}
+
     @NonNull
     protected abstract InputStream openInputStream();
 
-    private byte[] getInputStreamData() {
+    /**
+     * Sets a cache for the GIF structure. If present, the cache is checked before
+     * parsing the GIF, and updated after parsing it.
+     * This must be called before the source is used.
+     *
+     * @param cache a cache, or null
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setMetadataCache(@Nullable GifMetadataCache cache) {
+        mMetadataCache = cache;
+    }
+
+    /**
+     * Whether frames that are identical to the previous one should be merged into it,
+     * so that it is held for longer instead of being output again. This saves rendering
+     * and encoding work, and output size. Defaults to true.
+     *
+     * @param merge true to merge duplicate frames
+     */
+    @SuppressWarnings("unused")
+    public void setMergeDuplicateFrames(boolean merge) {
+        mMergeDuplicateFrames = merge;
+    }
+
+    /**
+     * Returns the number of input frames that were merged into the previous one
+     * because they were identical. See {@link #setMergeDuplicateFrames(boolean)}.
+     *
+     * @return the number of merged frames
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getMergedFrameCount() {
+        return mMergedFrames;
+    }
+
+    /**
+     * Whether frames with a delay smaller than {@link GifMetadata#MIN_FRAME_DELAY}
+     * should be composited together with the next frame, instead of being output
+     * on their own. Some encoders use such frames to build a picture from several
+     * partial frames, which are meant to be displayed at once.
+     *
+     * When false (the default), these frames are displayed for
+     * {@link GifMetadata#DEFAULT_FRAME_DELAY} milliseconds, like browsers do.
+     * This must be called before the source is used.
+     *
+     * @param coalesce true to coalesce zero-delay frames
+     */
+    @SuppressWarnings("unused")
+    public void setCoalesceZeroDelayFrames(boolean coalesce) {
+        if (mDecoder != null) {
+            throw new IllegalStateException("Coalescing must be set before starting.");
+        }
+        mCoalesceZeroDelayFrames = coalesce;
+        mDurationUs = Long.MIN_VALUE;
+        mFormat = null;
+        if (mMetadata != null) computeTrim();
+    }
+
+    /**
+     * Returns the number of zero-delay input frames that were composited together
+     * with the next one. See {@link #setCoalesceZeroDelayFrames(boolean)}.
+     *
+     * @return the number of coalesced frames
+     */
+    @SuppressWarnings("unused")
+    public int getCoalescedFrameCount() {
+        return mCoalescedFrames;
+    }
+
+    /**
+     * Restricts the output to the given time range of the GIF. The first frame is the one
+     * that is visible at the start time, and the output is shifted so that it starts there.
+     * This must be called before the source is used.
+     *
+     * Frames before the start time are not decoded, if they come before a frame that
+     * does not depend on them. The others are decoded, but not output.
+     *
+     * @param trimStartUs the start time in microseconds, or 0
+     * @param trimEndUs the end time in microseconds, or {@link Long#MAX_VALUE}
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setTrim(long trimStartUs, long trimEndUs) {
+        if (mDecoder != null) {
+            throw new IllegalStateException("Trim must be set before starting.");
+        }
+        if (trimStartUs < 0 || trimEndUs <= trimStartUs) {
+            throw new IllegalArgumentException("Invalid trim range." +
+                    " start:" + trimStartUs + " end:" + trimEndUs);
+        }
+        mTrimStartUs = trimStartUs;
+        mTrimEndUs = trimEndUs;
+        mDurationUs = Long.MIN_VALUE;
+        mFormat = null;
+        if (mMetadata != null) computeTrim();
+    }
+
+    /**
+     * Returns the length of the input in bytes, if known. This is used to allocate
+     * the input buffer once with the correct size. Defaults to -1, which means that
+     * the length is unknown and the buffer will grow while reading.
+     *
+     * @return the input length or -1
+     */
+    protected long getInputLength() {
+        return -1L;
+    }
+
+    /**
+     * Subclasses can return a read-only buffer holding the whole GIF, for example
+     * by memory-mapping a file, so that the data is not copied into the Java heap.
+     * Returning null (the default) means that {@link #openInputStream()} should be used.
+     *
+     * @return a buffer or null
+     */
+    @Nullable
+    protected ByteBuffer openInputBuffer() {
+        return null;
+    }
+
+    /**
+     * Returns the GIF data, reading it only the first time. The same buffer
+     * is shared by the header parser and the decoder.
+     *
+     * @return the input data
+     */
+    @NonNull
+    private ByteBuffer getInputData() {
+        if (mData == null) {
+            ByteBuffer buffer = openInputBuffer();
+            if (buffer != null) {
+                LOG.i("Using input buffer. bytes:" + buffer.remaining() + " direct:" + buffer.isDirect());
+                mData = buffer;
+            } else {
+                try {
+                    mData = readInputStream();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return mData;
+    }
+
+    @NonNull
+    private ByteBuffer readInputStream() throws IOException {
+        InputStream inputStream = openInputStream();
         try {
-            InputStream inputStream = openInputStream();
+            long length = getInputLength();
+            boolean knownLength = length > 0 && length < Integer.MAX_VALUE;
+            byte[] data = new byte[knownLength ? (int) length
+                    : Math.max(inputStream.available(), DEFAULT_BUFFER_SIZE)];
+            int size = 0;
             int readBytes;
-            byte[] buffer = new byte[16 * 1024];
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            while ((readBytes = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                outputStream.write(buffer, 0, readBytes);
+            while (true) {
+                if (size == data.length) {
+                    // Either the length is unknown or it was wrong. Check for EOF before growing.
+                    int next = inputStream.read();
+                    if (next == -1) break;
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, DEFAULT_BUFFER_SIZE));
+                    data[size++] = (byte) next;
+                }
+                readBytes = inputStream.read(data, size, data.length - size);
+                if (readBytes == -1) break;
+                size += readBytes;
             }
-            outputStream.flush();
-            byte[] data = outputStream.toByteArray();
+            mDataCopies++;
+            mDataBytes += size;
+            LOG.i("Read input data. knownLength:" + knownLength + " bytes:" + size);
+            // Wrap instead of trimming the array, so we don't copy again.
+            return ByteBuffer.wrap(data, 0, size);
+        } finally {
             inputStream.close();
-            outputStream.close();
-            return data;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    private void ensureGifHeader() {
-        if (mGifHeader != null) return;
-        GifHeaderParser parser = new GifHeaderParser();
-        parser.setData(getInputStreamData());
-        mGifHeader = parser.parseHeader();
-        parser.clear();
-        if (mGifHeader.getStatus() != GifDecoder.STATUS_OK) {
-            throw new RuntimeException("Illegal status: " + mGifHeader.getStatus());
+    /**
+     * Returns the number of times that the input was read and copied into memory.
+     * This should be at most 1 for the whole lifecycle of this source, and 0 if
+     * the data came from {@link #openInputBuffer()}.
+     *
+     * @return the number of input copies
+     */
+    @SuppressWarnings("unused")
+    public int getInputCopies() {
+        return mDataCopies;
+    }
+
+    /**
+     * Returns the total number of bytes that were read from the input.
+     *
+     * @return the number of bytes read
+     */
+    @SuppressWarnings("unused")
+    public long getInputBytesRead() {
+        return mDataBytes;
+    }
+
+    private void ensureMetadata() {
+        if (mMetadata != null) return;
+        ByteBuffer data = getInputData();
+        String cacheKey = null;
+        if (mMetadataCache != null) {
+            cacheKey = GifMetadataCache.computeKey(data);
+            GifMetadataCache.Entry entry = mMetadataCache.get(cacheKey, data);
+            if (entry != null) {
+                LOG.i("Found GIF in cache. key:" + cacheKey);
+                mMetadata = entry.metadata;
+                mRestartIndex = entry.restartIndex;
+                computeTrim();
+                return;
+            }
+        }
+        mMetadata = new GifScanner().scan(data);
+        if (mMetadataCache != null) {
+            mMetadataCache.put(cacheKey, mMetadata, getRestartIndex());
+        }
+        LOG.i("Scanned GIF." +
+                " size:" + mMetadata.width + "x" + mMetadata.height +
+                " frames:" + mMetadata.getFrameCount() +
+                " truncated:" + mMetadata.truncated);
+        computeTrim();
+    }
+
+    private void computeTrim() {
+        int frameCount = mMetadata.getFrameCount();
+        mFrameTimesUs = new long[frameCount + 1];
+        for (int i = 0; i < frameCount; i++) {
+            GifMetadata.Frame frame = mMetadata.frames[i];
+            long delayUs = frame.getPlaybackDelay() * 1000L;
+            if (mCoalesceZeroDelayFrames && i < frameCount - 1
+                    && frame.delay < GifMetadata.MIN_FRAME_DELAY) {
+                delayUs = 0; // Will be composited together with the next one.
+            }
+            mFrameTimesUs[i + 1] = mFrameTimesUs[i] + delayUs;
+        }
+        if (mTrimStartUs >= mFrameTimesUs[frameCount]) {
+            throw new IllegalArgumentException("Trim start is beyond the GIF duration." +
+                    " start:" + mTrimStartUs + " duration:" + mFrameTimesUs[frameCount]);
+        }
+        mStartFrame = 0;
+        while (mFrameTimesUs[mStartFrame + 1] <= mTrimStartUs) mStartFrame++;
+        // Coalesced frames are displayed together with the following ones.
+        while (mStartFrame > 0 && mFrameTimesUs[mStartFrame - 1] == mFrameTimesUs[mStartFrame]) {
+            mStartFrame--;
+        }
+        mEndFrame = mStartFrame + 1;
+        while (mEndFrame < frameCount && mFrameTimesUs[mEndFrame] < mTrimEndUs) mEndFrame++;
+    }
+
+    @NonNull
+    private GifRestartIndex getRestartIndex() {
+        if (mRestartIndex == null) {
+            mRestartIndex = GifRestartIndex.build(mMetadata);
+        }
+        return mRestartIndex;
+    }
+
+    /**
+     * Splits the output range into at most the given number of segments of similar
+     * duration, and returns a new source for each of them, in order. Segments start at
+     * restart points, so they can be decoded without the previous frames, and share the
+     * input data and the parsed structure of this source, so they are cheap to create.
+     * Segments can be read concurrently, on different threads.
+     *
+     * Each segment starts its timestamps from zero. Fewer segments are returned if the
+     * GIF has not enough restart points, or if they would be shorter than the given duration.
+     * A single segment is a copy of this source, which is left untouched.
+     *
+     * @param maxSegments the maximum number of segments, at least 1
+     * @param minDurationUs the minimum segment duration
+     * @return the segments
+     */
+    @NonNull
+    public List<DataSource> split(int maxSegments, long minDurationUs) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid segment count: " + maxSegments);
+        }
+        ensureMetadata();
+        long startUs = mTrimStartUs;
+        long endUs = getEndTimeUs();
+        int count = maxSegments;
+        if (minDurationUs > 0) {
+            count = (int) Math.max(1, Math.min(count, (endUs - startUs) / minDurationUs));
+        }
+        // Candidate boundaries are restart points inside the range. Skip points that
+        // follow a coalesced frame, since they would be moved back to that frame.
+        GifRestartIndex index = getRestartIndex();
+        long[] candidates = new long[index.size()];
+        int candidateCount = 0;
+        for (int point = 0; point < index.size(); point++) {
+            int frame = index.getFrame(point);
+            if (frame <= mStartFrame || frame >= mEndFrame) continue;
+            long timeUs = mFrameTimesUs[frame];
+            if (timeUs <= startUs || timeUs >= endUs) continue;
+            if (mFrameTimesUs[frame - 1] == timeUs) continue;
+            candidates[candidateCount++] = timeUs;
+        }
+        // For each ideal boundary, take the closest candidate after the previous boundary.
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(startUs);
+        int next = 0;
+        for (int i = 1; i < count && next < candidateCount; i++) {
+            long targetUs = startUs + (endUs - startUs) * i / count;
+            while (next < candidateCount - 1
+                    && Math.abs(candidates[next + 1] - targetUs) <= Math.abs(candidates[next] - targetUs)) {
+                next++;
+            }
+            bounds.add(candidates[next++]);
+        }
+        bounds.add(endUs);
+        List<DataSource> segments = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            segments.add(createSegment(bounds.get(i), bounds.get(i + 1)));
+        }
+        LOG.i("Split source. requestedSegments:" + maxSegments +
+                " segments:" + segments.size() +
+                " restartPoints:" + candidateCount);
+        return segments;
+    }
+
+    @NonNull
+    private DefaultDataSource createSegment(long trimStartUs, long trimEndUs) {
+        DefaultDataSource segment = new Segment();
+        segment.mData = getInputData().duplicate();
+        segment.mMetadata = mMetadata;
+        segment.mRestartIndex = getRestartIndex();
+        segment.mMergeDuplicateFrames = mMergeDuplicateFrames;
+        segment.mCoalesceZeroDelayFrames = mCoalesceZeroDelayFrames;
+        segment.setTrim(trimStartUs, trimEndUs);
+        return segment;
+    }
+
+    /**
+     * A source created by {@link #split(int, long)}, which is
+     * given the input data and structure of its parent.
+     */
+    private static class Segment extends DefaultDataSource {
+        @NonNull
+        @Override
+        protected InputStream openInputStream() {
+            throw new IllegalStateException("Segments share the data of their parent.");
         }
     }
 
-    private void ensureGifDecoder() {
-        if (mGifDecoder != null) return;
-        ensureGifHeader();
-        GifDecoder.BitmapProvider provider = new GifBitmapProvider(
-                Glide.get(mContext).getBitmapPool(),
-                Glide.get(mContext).getArrayPool()
-        );
-        mGifDecoder = new StandardGifDecoder(provider);
-        mGifDecoder.setData(mGifHeader, getInputStreamData());
-        mGifFrames = mGifDecoder.getFrameCount() + 1;
+    /**
+     * Returns the end of the output range, relative to the GIF start.
+     */
+    private long getEndTimeUs() {
+        return Math.min(mTrimEndUs, mFrameTimesUs[mFrameTimesUs.length - 1]);
+    }
+
+    private void ensureDecoder() {
+        if (mDecoder != null) return;
+        ensureMetadata();
+        mDecoder = new GifFrameDecoder(getInputData(), mMetadata);
     }
 
     @Override
     public long getDurationUs() {
         if (mDurationUs == Long.MIN_VALUE) {
-            ensureGifHeader();
-            long durationUs = 0L;
-            try {
-                Field framesField = GifHeader.class.getDeclaredField("frames");
-                framesField.setAccessible(true);
-                List frames = (List) framesField.get(mGifHeader);
-                Class frameClass = Class.forName("com.bumptech.glide.gifdecoder.GifFrame");
-                Field frameDelayField = frameClass.getDeclaredField("delay");
-                frameDelayField.setAccessible(true);
-                for (Object frame : frames) {
-                    durationUs += frameDelayField.getInt(frame) * 1000L;
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            mDurationUs = durationUs;
+            ensureMetadata();
+            mDurationUs = getEndTimeUs() - mTrimStartUs;
         }
         return mDurationUs;
     }
@@ -112,12 +437,15 @@ public abstract class DefaultDataSource implements DataSource {
     @Override
     public MediaFormat getTrackFormat() {
         if (mFormat == null) {
-            ensureGifHeader();
+            ensureMetadata();
             mFormat = new MediaFormat();
-            mFormat.setInteger(MediaFormat.KEY_WIDTH, mGifHeader.getWidth());
-            mFormat.setInteger(MediaFormat.KEY_HEIGHT, mGifHeader.getHeight());
+            mFormat.setInteger(MediaFormat.KEY_WIDTH, mMetadata.width);
+            mFormat.setInteger(MediaFormat.KEY_HEIGHT, mMetadata.height);
             mFormat.setInteger(MediaFormatConstants.KEY_ROTATION_DEGREES, 0);
-            int frames = mGifHeader.getNumFrames();
+            int frames = 0;
+            for (int i = mStartFrame; i < mEndFrame; i++) {
+                if (mFrameTimesUs[i + 1] > mFrameTimesUs[i]) frames++;
+            }
             double durationSeconds = (double) getDurationUs() / 1000000D;
             int framesPerSecond = (int) Math.round(frames / durationSeconds);
             mFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framesPerSecond);
@@ -128,42 +456,212 @@ public abstract class DefaultDataSource implements DataSource {
 
     @Override
     public void start() {
-        ensureGifDecoder();
-        mGifFrame = -1;
+        ensureDecoder();
+        mFrame = mStartFrame - 1;
+        mDecodedAheadFrame = -1;
     }
 
     @Override
     public void read(@NonNull Chunk chunk) {
-        mGifDecoder.advance();
-        mGifFrame++;
-        if (mGifFrame == 0) {
-            // First frame.
+        mFrame++;
+        chunk.frameCount = 0;
+        if (mFrame == mStartFrame) {
+            // First frame. The output format can only be chosen before decoding.
+            // Raw frames are composited by the reader at full size.
             mLastTimestampUs = mFirstTimestampUs;
-            chunk.bitmap = mGifDecoder.getNextFrame();
-        } else if (mGifFrame < mGifDecoder.getFrameCount() - 1) {
-            // Middle frame.
-            mLastTimestampUs += mGifDecoder.getDelay(mGifFrame - 1) * 1000L;
-            chunk.bitmap = mGifDecoder.getNextFrame();
+            mRaw = chunk.requestedFormat == Chunk.FORMAT_FRAMES;
+            mDecoder.setIndexed(chunk.requestedFormat == Chunk.FORMAT_INDEXED
+                    && mDecoder.supportsIndexed());
+            mDecoder.setSampleSize(mRaw ? 1 : Math.max(1, chunk.requestedSampleSize));
+            if (mDecoder.getSampleSize() > 1) {
+                LOG.i("Decoding with sample size " + mDecoder.getSampleSize() + "." +
+                        " size:" + mDecoder.getWidth() + "x" + mDecoder.getHeight());
+            }
+            if (mStartFrame > 0) skipFrames(chunk);
+            decodeFrames(chunk);
+            mDirty.set(0, 0, mDecoder.getWidth(), mDecoder.getHeight());
+        } else if (mDecodedAheadFrame >= 0) {
+            // Already decoded by decodeAhead().
+            mFrame = mDecodedAheadFrame;
+            mDecodedAheadFrame = -1;
+            mLastTimestampUs = mFirstTimestampUs + mFrameTimesUs[mFrame] - mTrimStartUs;
         } else {
-            // Last frame.
-            // Here we repeat the last bitmap with an increased delay.
-            mLastTimestampUs += mGifDecoder.getDelay(mGifFrame - 1) * 1000L;
+            // Decode the next frame. If it's identical to the previous one,
+            // go on, so that the previous one is held for longer.
+            // Raw frames of merged frames are kept in the chunk.
+            while (mFrame < mEndFrame) {
+                boolean changed = decodeFrames(chunk);
+                if (!mMergeDuplicateFrames || changed) break;
+                mMergedFrames++;
+                mFrame++;
+            }
+            long timeUs = mFrame < mEndFrame ? mFrameTimesUs[mFrame] : getEndTimeUs();
+            mLastTimestampUs = mFirstTimestampUs + timeUs - mTrimStartUs;
+        }
+        if (mRaw) {
+            // The frames are already in the chunk.
+            chunk.width = mDecoder.getWidth();
+            chunk.height = mDecoder.getHeight();
+            chunk.format = Chunk.FORMAT_FRAMES;
+        } else if (mFrame < mEndFrame) {
+            copyCanvas(chunk);
+        } else if (getOutput(chunk) != mLastOutput) {
+            // Last frame. Here we repeat the last bitmap with an increased delay.
+            copyCanvas(chunk);
         }
+        chunk.dirty.set(mDirty);
         chunk.timestampUs = mLastTimestampUs;
+        mDirty.setEmpty();
+        if (mFrame < mEndFrame) {
+            // Raw frames always change the canvas unless their rect is empty,
+            // so without decoding ahead, this is rarely earlier than the next chunk.
+            if (mMergeDuplicateFrames && !mRaw) decodeAhead(chunk);
+            long nextTimeUs = mFrame + 1 < mEndFrame ? mFrameTimesUs[mFrame + 1] : getEndTimeUs();
+            chunk.nextTimestampUs = mFirstTimestampUs + nextTimeUs - mTrimStartUs;
+        }
+    }
+
+    /**
+     * Decodes the frames that follow the chunk that was just output, merging those
+     * that are identical to it, until one changes the canvas. This way the next chunk
+     * timestamp is known, and it is not just a lower bound. The changed frame is output
+     * by the next read, and {@link #mFrame} is left on the last frame of this chunk.
+     * Raw frames are not decoded ahead, since they would go into this chunk.
+     */
+    private void decodeAhead(@NonNull Chunk chunk) {
+        while (mFrame + 1 < mEndFrame) {
+            int frame = mFrame;
+            mFrame++;
+            if (decodeFrames(chunk)) {
+                mDecodedAheadFrame = mFrame;
+                mFrame = frame;
+                return;
+            }
+            mMergedFrames++;
+        }
+    }
+
+    /**
+     * Decodes the current frame, plus the following ones if they should be displayed
+     * at the same time, which happens for zero-delay frames when coalescing.
+     * Returns true if any of them changed the canvas.
+     */
+    private boolean decodeFrames(@NonNull Chunk chunk) {
+        boolean changed = decodeFrame(chunk);
+        while (mFrame + 1 < mEndFrame && mFrameTimesUs[mFrame + 1] == mFrameTimesUs[mFrame]) {
+            mFrame++;
+            changed |= decodeFrame(chunk);
+            mCoalescedFrames++;
+        }
+        return changed;
+    }
+
+    /**
+     * Decodes the current frame and adds its changes to {@link #mDirty}.
+     * In raw mode, the frame is added to the chunk frames instead.
+     */
+    private boolean decodeFrame(@NonNull Chunk chunk) {
+        if (mRaw) {
+            mDecoder.decodeRawFrame(mFrame, chunk.obtainFrame(chunk.frameCount++));
+        } else {
+            mDecoder.decodeFrame(mFrame);
+        }
+        mDecoder.getDirtyRect(mFrameDirty);
+        mDirty.union(mFrameDirty);
+        return mDecoder.hasChanged();
+    }
+
+    /**
+     * Brings the decoder to the frame before {@link #mStartFrame}, starting
+     * from the closest restart point so that we can skip as much as possible.
+     */
+    private void skipFrames(@NonNull Chunk chunk) {
+        GifRestartIndex index = getRestartIndex();
+        int from = index.getFrame(index.findPointForFrame(mStartFrame));
+        for (int i = from; i < mStartFrame; i++) {
+            if (mRaw) {
+                mDecoder.decodeRawFrame(i, chunk.obtainFrame(chunk.frameCount++));
+            } else {
+                mDecoder.decodeFrame(i);
+            }
+        }
+        LOG.i("Trimmed start. startFrame:" + mStartFrame +
+                " skippedFrames:" + from +
+                " compositedFrames:" + (mStartFrame - from));
+    }
+
+    @Nullable
+    private Object getOutput(@NonNull Chunk chunk) {
+        return chunk.format == Chunk.FORMAT_INDEXED ? chunk.indices : chunk.bitmap;
+    }
+
+    /**
+     * Copies the decoder canvas into the chunk bitmap or indices. Buffers are reused
+     * if they have the right size, so this does not allocate after the first frame.
+     * If the buffer still holds our last output, only the dirty region is copied.
+     */
+    private void copyCanvas(@NonNull Chunk chunk) {
+        int width = mDecoder.getWidth();
+        int height = mDecoder.getHeight();
+        chunk.width = width;
+        chunk.height = height;
+        if (mDecoder.isIndexed()) {
+            byte[] indices = chunk.indices;
+            if (indices == null || indices.length != width * height) {
+                indices = new byte[width * height];
+                chunk.indices = indices;
+            }
+            byte[] canvas = mDecoder.getIndexCanvas();
+            if (indices != mLastOutput) {
+                System.arraycopy(canvas, 0, indices, 0, indices.length);
+            } else if (!mDirty.isEmpty()) {
+                int dirtyWidth = mDirty.width();
+                for (int y = mDirty.top; y < mDirty.bottom; y++) {
+                    int offset = y * width + mDirty.left;
+                    System.arraycopy(canvas, offset, indices, offset, dirtyWidth);
+                }
+            }
+            chunk.palette = mDecoder.getPalette();
+            chunk.format = Chunk.FORMAT_INDEXED;
+            mLastOutput = indices;
+            return;
+        }
+        Bitmap bitmap = chunk.bitmap;
+        if (bitmap == null
+                || bitmap.isRecycled()
+                || bitmap.getWidth() != width
+                || bitmap.getHeight() != height
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            chunk.bitmap = bitmap;
+        }
+        if (bitmap != mLastOutput) {
+            bitmap.setPixels(mDecoder.getCanvas(), 0, width, 0, 0, width, height);
+        } else if (!mDirty.isEmpty()) {
+            bitmap.setPixels(mDecoder.getCanvas(), mDirty.top * width + mDirty.left, width,
+                    mDirty.left, mDirty.top, mDirty.width(), mDirty.height());
+        }
+        chunk.format = Chunk.FORMAT_BITMAP;
+        mLastOutput = bitmap;
     }
 
     @Override
     public void release() {
-        mGifHeader = null;
-        if (mGifDecoder != null) {
-            mGifDecoder.clear();
-            mGifDecoder = null;
+        if (mMergedFrames > 0 || mCoalescedFrames > 0) {
+            LOG.i("Released." +
+                    " mergedFrames:" + mMergedFrames +
+                    " coalescedFrames:" + mCoalescedFrames);
         }
+        mMetadata = null;
+        mRestartIndex = null;
+        mDecoder = null;
+        mData = null;
+        mLastOutput = null;
     }
 
     @Override
     public boolean isDrained() {
-        return mGifFrame == mGifFrames - 1;
+        return mFrame == mEndFrame;
     }
 
     @Override
@@ -2,16 +2,24 @@ package com.otaliastudios.gif.source;
 
 import android.content.Context;
 
+import com.otaliastudios.gif.internal.Logger;
+
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * A {@link DataSource} backed by a file descriptor.
  */
 public class FileDescriptorDataSource extends DefaultDataSource {
+    private static final String TAG = FileDescriptorDataSource.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
 
     @NonNull
     private FileDescriptor descriptor;
@@ -21,6 +29,34 @@ public class FileDescriptorDataSource extends DefaultDataSource {
         this.descriptor = descriptor;
     }
 
+    @Override
+    protected long getInputLength() {
+        // Don't close the channel: we do not own the descriptor.
+        FileChannel channel = new FileInputStream(descriptor).getChannel();
+        try {
+            return channel.size() - channel.position();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Nullable
+    @Override
+    protected ByteBuffer openInputBuffer() {
+        // Don't close the channel: we do not own the descriptor.
+        // The mapping stays valid anyway.
+        FileChannel channel = new FileInputStream(descriptor).getChannel();
+        try {
+            long position = channel.position();
+            long size = channel.size() - position;
+            if (size <= 0 || size > Integer.MAX_VALUE) return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (IOException e) {
+            LOG.w("Could not map the descriptor, falling back to openInputStream().", e);
+            return null;
+        }
+    }
+
     @NonNull
     @Override
     protected InputStream openInputStream() {
@@ -4,11 +4,17 @@ import android.content.Context;
 
 import com.otaliastudios.gif.internal.Logger;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * A {@link DataSource} backed by a file absolute path.
@@ -24,6 +30,32 @@ public class FilePathDataSource extends DefaultDataSource {
         this.path = path;
     }
 
+    @Override
+    protected long getInputLength() {
+        long length = new File(path).length();
+        return length > 0 ? length : -1L;
+    }
+
+    @Nullable
+    @Override
+    protected ByteBuffer openInputBuffer() {
+        // The mapping stays valid after the file is closed.
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                if (size <= 0 || size > Integer.MAX_VALUE) return null;
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            LOG.w("Could not map the file, falling back to openInputStream().", e);
+            return null;
+        }
+    }
+
     @NonNull
     @Override
     protected InputStream openInputStream() {
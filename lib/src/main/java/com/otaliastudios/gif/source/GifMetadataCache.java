@@ -0,0 +1,326 @@
+package com.otaliastudios.gif.source;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifRestartIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A persistent cache for the structure of GIF files, so that sources that read the same
+ * GIF many times do not have to parse it again. Entries hold the frame layout, delays,
+ * disposal methods, color table locations and restart points, in a compact binary form.
+ *
+ * Entries are keyed by a hash of a few GIF regions, checked against the frames when
+ * loaded, and stored as files in the given directory. When the directory grows beyond
+ * the maximum size, the least recently used entries are deleted.
+ *
+ * A single cache can be shared by many sources, even across threads.
+ * Use {@link DefaultDataSource#setMetadataCache(GifMetadataCache)} or
+ * {@link com.otaliastudios.gif.GIFOptions.Builder#setMetadataCache(GifMetadataCache)}.
+ */
+public class GifMetadataCache {
+
+    private final static String TAG = GifMetadataCache.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    private final static int MAGIC = 0x474D4554; // GMET
+    private final static int VERSION = 2;
+    private final static String EXTENSION = ".gifmeta";
+
+    // To keep lookups much cheaper than parsing, we only hash the size, the header with
+    // the global color table and the tail of the GIF. Everything that the metadata
+    // describes is then checked against the data by matches(), so an edited GIF with the
+    // same key can only cause a miss, never a wrong result.
+    private final static int HASH_TAIL_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Holds a cached entry.
+     */
+    static class Entry {
+        final GifMetadata metadata;
+        final GifRestartIndex restartIndex;
+
+        Entry(@NonNull GifMetadata metadata, @NonNull GifRestartIndex restartIndex) {
+            this.metadata = metadata;
+            this.restartIndex = restartIndex;
+        }
+    }
+
+    /**
+     * Creates a new cache in the given directory, which will be created if needed.
+     * Using a subdirectory of the application cache directory is recommended.
+     *
+     * @param directory the cache directory
+     * @param maxSizeBytes the maximum size of the cache, in bytes
+     */
+    public GifMetadataCache(@NonNull File directory, long maxSizeBytes) {
+        if (maxSizeBytes <= 0) {
+            throw new IllegalArgumentException("Max size should be positive.");
+        }
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns the number of times that an entry was found in the cache.
+     * @return the hit count
+     */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of times that an entry was not found in the cache,
+     * or could not be used.
+     * @return the miss count
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the current size of the cache directory.
+     * @return the size in bytes
+     */
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        File[] files = listEntries();
+        for (File file : files) size += file.length();
+        return size;
+    }
+
+    /**
+     * Deletes all entries. Statistics are not reset.
+     */
+    public synchronized void clear() {
+        for (File file : listEntries()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Computes the cache key for the given GIF data, from its size, its header with
+     * the global color table and its tail.
+     */
+    @NonNull
+    static String computeKey(@NonNull ByteBuffer data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = data.duplicate();
+        int start = buffer.position();
+        int size = buffer.remaining();
+        digest.update(ByteBuffer.allocate(4).putInt(0, size));
+        int head = Math.min(size, 13);
+        if (head == 13 && (buffer.get(start + 10) & 0x80) != 0) {
+            head = Math.min(size, head + 3 * (2 << (buffer.get(start + 10) & 0x07)));
+        }
+        if (size <= head + HASH_TAIL_SIZE) {
+            digest.update(buffer);
+        } else {
+            buffer.limit(start + head);
+            digest.update(buffer);
+            buffer.limit(start + size);
+            buffer.position(start + size - HASH_TAIL_SIZE);
+            digest.update(buffer);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the entry for the given key, or null if absent or if
+     * it does not match the given data.
+     */
+    @Nullable
+    synchronized Entry get(@NonNull String key, @NonNull ByteBuffer data) {
+        File file = new File(mDirectory, key + EXTENSION);
+        if (!file.isFile()) {
+            mMisses++;
+            return null;
+        }
+        Entry entry = null;
+        try {
+            // Entries are small, so read them at once and parse from memory.
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream stream = new DataInputStream(new FileInputStream(file));
+            try {
+                stream.readFully(bytes);
+            } finally {
+                stream.close();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid header.");
+            }
+            GifMetadata metadata = GifMetadata.readFrom(buffer);
+            if (buffer.remaining() < 4 || buffer.getInt() != buffer.remaining()) {
+                throw new IOException("Invalid restart index.");
+            }
+            byte[] index = new byte[buffer.remaining()];
+            buffer.get(index);
+            if (matches(metadata, data)) {
+                entry = new Entry(metadata, GifRestartIndex.fromByteArray(index, metadata));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.w("Invalid cache entry. Deleting it.", e);
+        }
+        if (entry == null) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            mMisses++;
+            return null;
+        }
+        // Keep track of usage for LRU.
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        mHits++;
+        return entry;
+    }
+
+    /**
+     * Checks that the metadata describes the given data: the logical screen matches,
+     * and so do the graphic control extension and image descriptor of every frame.
+     * This reads a few bytes per frame, which is much cheaper than scanning.
+     */
+    private static boolean matches(@NonNull GifMetadata metadata, @NonNull ByteBuffer data) {
+        int base = data.position();
+        int limit = data.limit();
+        if (data.remaining() < 10) return false;
+        if (readShort(data, base + 6) != metadata.width
+                || readShort(data, base + 8) != metadata.height) return false;
+        for (GifMetadata.Frame frame : metadata.frames) {
+            if (frame.offset < 0 || base + frame.dataOffset >= limit) return false;
+            if (frame.controlOffset >= 0) {
+                int control = base + frame.controlOffset;
+                if (control + 8 > base + frame.offset) return false;
+                if ((data.get(control) & 0xFF) != 0x21
+                        || (data.get(control + 1) & 0xFF) != 0xF9
+                        || data.get(control + 2) != 4) return false;
+                int flags = data.get(control + 3) & 0xFF;
+                int transparentIndex = (flags & 0x01) != 0 ? data.get(control + 6) & 0xFF : -1;
+                if ((flags & 0x1C) >> 2 != frame.disposal
+                        || readShort(data, control + 4) * 10 != frame.delay
+                        || transparentIndex != frame.transparentIndex) return false;
+            }
+            int descriptor = base + frame.offset;
+            if ((data.get(descriptor) & 0xFF) != 0x2C
+                    || readShort(data, descriptor + 1) != frame.x
+                    || readShort(data, descriptor + 3) != frame.y
+                    || readShort(data, descriptor + 5) != frame.width
+                    || readShort(data, descriptor + 7) != frame.height) return false;
+            int flags = data.get(descriptor + 9) & 0xFF;
+            int colorTableSize = (flags & 0x80) != 0 ? 2 << (flags & 0x07) : 0;
+            if (((flags & 0x40) != 0) != frame.interlaced
+                    || ((flags & 0x80) != 0) != (frame.colorTableOffset >= 0)
+                    || (colorTableSize != 0 && colorTableSize != frame.colorTableSize)) return false;
+        }
+        return true;
+    }
+
+    private static int readShort(@NonNull ByteBuffer data, int index) {
+        return (data.get(index) & 0xFF) | ((data.get(index + 1) & 0xFF) << 8);
+    }
+
+    /**
+     * Stores an entry for the given key, then trims the cache if needed.
+     * Failures are logged and ignored.
+     */
+    synchronized void put(@NonNull String key, @NonNull GifMetadata metadata,
+                          @NonNull GifRestartIndex restartIndex) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LOG.w("Could not create cache directory: " + mDirectory);
+            return;
+        }
+        File file = new File(mDirectory, key + EXTENSION);
+        File temp = new File(mDirectory, key + ".tmp");
+        try {
+            DataOutputStream stream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                stream.writeInt(MAGIC);
+                stream.writeInt(VERSION);
+                metadata.writeTo(stream);
+                byte[] index = restartIndex.toByteArray();
+                stream.writeInt(index.length);
+                stream.write(index);
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            LOG.w("Could not write cache entry.", e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        trim();
+    }
+
+    private void trim() {
+        File[] files = listEntries();
+        long size = 0;
+        for (File file : files) size += file.length();
+        if (size <= mMaxSizeBytes) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long a = first.lastModified();
+                long b = second.lastModified();
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+        });
+        int deleted = 0;
+        for (File file : files) {
+            if (size <= mMaxSizeBytes) break;
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                deleted++;
+            }
+        }
+        LOG.i("Trimmed cache. deleted:" + deleted + " size:" + size);
+    }
+
+    @NonNull
+    private File[] listEntries() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return new File[0];
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) files[count++] = file;
+        }
+        return Arrays.copyOf(files, count);
+    }
+}
@@ -0,0 +1,258 @@
+package com.otaliastudios.gif.source;
+
+import android.graphics.Bitmap;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.internal.MediaFormatConstants;
+import com.otaliastudios.gif.source.internal.GifFrameDecoder;
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A data source for a GIF file that is still being written, for example while
+ * it is being downloaded. This makes it possible to start compressing before the
+ * file is complete.
+ *
+ * The file is read as it grows and frames are decoded as soon as they are fully available.
+ * When the next frame is not available, reading blocks until more data is written, or
+ * until the timeout expires without any new data. The stream ends when the GIF trailer
+ * is found, or when the timeout expires, in which case the frames received so far are used.
+ *
+ * Until the end is found, {@link #getDurationUs()} returns {@link #DURATION_UNKNOWN},
+ * and progress is estimated from the number of frames decoded and found so far.
+ * This source does not support the other options of {@link DefaultDataSource},
+ * like trimming, and always outputs bitmaps.
+ */
+public class GrowingFileDataSource implements DataSource, DataSource.FrameCounter {
+
+    private final static String TAG = GrowingFileDataSource.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    private final static long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private final static long POLL_INTERVAL_MILLIS = 20;
+    private final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final long mTimeoutMillis;
+    private RandomAccessFile mInput;
+    private byte[] mData = new byte[DEFAULT_BUFFER_SIZE];
+    private int mSize;
+
+    private final GifScanner mScanner = new GifScanner();
+    private GifMetadata mMetadata;
+    private boolean mEnded;
+    private GifFrameDecoder mDecoder;
+    private MediaFormat mFormat;
+
+    private int mFrame = -1;
+    private long mFrameTimeUs;
+    private boolean mDrained;
+    private Bitmap mLastOutput;
+    private final long mFirstTimestampUs = 10;
+    private long mLastTimestampUs = mFirstTimestampUs;
+    private volatile long mDurationUs = DURATION_UNKNOWN;
+    private volatile int mScannedFrames;
+    private volatile int mDecodedFrames;
+
+    @SuppressWarnings("unused")
+    public GrowingFileDataSource(@NonNull String path) {
+        this(path, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a new source for the given file, which does not need to exist yet.
+     *
+     * @param path the file path
+     * @param timeoutMillis how long to wait for new data before ending the stream
+     */
+    @SuppressWarnings("WeakerAccess")
+    public GrowingFileDataSource(@NonNull String path, long timeoutMillis) {
+        mFile = new File(path);
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Reads any new bytes from the file and scans them.
+     * @return true if new data was found
+     */
+    private boolean poll() throws IOException {
+        if (mInput == null) {
+            if (!mFile.isFile()) return false;
+            mInput = new RandomAccessFile(mFile, "r");
+        }
+        long available = mInput.length() - mSize;
+        if (available <= 0) return false;
+        if (mSize + available > mData.length) {
+            long capacity = Math.max(mData.length * 2L, mSize + available);
+            mData = Arrays.copyOf(mData, (int) Math.min(capacity, Integer.MAX_VALUE));
+        }
+        mInput.seek(mSize);
+        int read = mInput.read(mData, mSize, (int) Math.min(available, mData.length - mSize));
+        if (read <= 0) return false;
+        mSize += read;
+        ByteBuffer data = ByteBuffer.wrap(mData, 0, mSize);
+        GifMetadata metadata = mScanner.scanAvailable(data);
+        if (metadata != null) {
+            mMetadata = metadata;
+            mScannedFrames = metadata.frames.length;
+            if (mScanner.isEnded()) onEnded();
+        }
+        if (mDecoder != null) mDecoder.setData(data);
+        return true;
+    }
+
+    private void onEnded() {
+        mEnded = true;
+        mDurationUs = mMetadata.getDurationUs();
+        LOG.i("Reached end of GIF. frames:" + mMetadata.getFrameCount()
+                + " bytes:" + mSize + " durationUs:" + mDurationUs);
+    }
+
+    /**
+     * Waits until the given number of frames is available, or the GIF has ended.
+     */
+    private void awaitFrames(int frames) {
+        long deadline = System.currentTimeMillis() + mTimeoutMillis;
+        try {
+            while (true) {
+                if (poll()) {
+                    deadline = System.currentTimeMillis() + mTimeoutMillis;
+                }
+                if (mMetadata != null && (mEnded || mMetadata.frames.length >= frames)) {
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    if (mMetadata == null || mMetadata.frames.length == 0) {
+                        throw new RuntimeException("Timed out waiting for GIF data: " + mFile);
+                    }
+                    LOG.w("Timed out waiting for GIF data. Ending with the available frames.");
+                    onEnded();
+                    return;
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getTrackFormat() {
+        if (mFormat == null) {
+            awaitFrames(1);
+            // We don't know the frame rate, so we don't set it.
+            mFormat = new MediaFormat();
+            mFormat.setInteger(MediaFormat.KEY_WIDTH, mMetadata.width);
+            mFormat.setInteger(MediaFormat.KEY_HEIGHT, mMetadata.height);
+            mFormat.setInteger(MediaFormatConstants.KEY_ROTATION_DEGREES, 0);
+        }
+        return mFormat;
+    }
+
+    @Override
+    public void start() {
+        awaitFrames(1);
+        mDecoder = new GifFrameDecoder(ByteBuffer.wrap(mData, 0, mSize), mMetadata);
+        mFrame = -1;
+    }
+
+    @Override
+    public void read(@NonNull Chunk chunk) {
+        mFrame++;
+        if (mFrame == 0) {
+            mDecoder.setSampleSize(Math.max(1, chunk.requestedSampleSize));
+        } else {
+            mFrameTimeUs += mMetadata.frames[mFrame - 1].getPlaybackDelay() * 1000L;
+        }
+        mLastTimestampUs = mFirstTimestampUs + mFrameTimeUs;
+        awaitFrames(mFrame + 1);
+        if (mFrame < mMetadata.frames.length) {
+            mDecoder.decodeFrame(mFrame);
+            mDecodedFrames = mFrame + 1;
+            copyCanvas(chunk);
+            if (mFrame == 0) {
+                chunk.dirty.set(0, 0, mDecoder.getWidth(), mDecoder.getHeight());
+            } else {
+                mDecoder.getDirtyRect(chunk.dirty);
+            }
+            chunk.nextTimestampUs = mLastTimestampUs
+                    + mMetadata.frames[mFrame].getPlaybackDelay() * 1000L;
+        } else {
+            // Last frame. Here we repeat the last bitmap with an increased delay.
+            if (chunk.bitmap != mLastOutput) copyCanvas(chunk);
+            chunk.dirty.setEmpty();
+            mDrained = true;
+        }
+        chunk.timestampUs = mLastTimestampUs;
+    }
+
+    private void copyCanvas(@NonNull Chunk chunk) {
+        int width = mDecoder.getWidth();
+        int height = mDecoder.getHeight();
+        Bitmap bitmap = chunk.bitmap;
+        if (bitmap == null
+                || bitmap.isRecycled()
+                || bitmap.getWidth() != width
+                || bitmap.getHeight() != height
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            chunk.bitmap = bitmap;
+        }
+        bitmap.setPixels(mDecoder.getCanvas(), 0, width, 0, 0, width, height);
+        chunk.format = Chunk.FORMAT_BITMAP;
+        chunk.width = width;
+        chunk.height = height;
+        mLastOutput = bitmap;
+    }
+
+    @Override
+    public long getReadUs() {
+        return mLastTimestampUs - mFirstTimestampUs;
+    }
+
+    @Override
+    public int getScannedFrameCount() {
+        return mScannedFrames;
+    }
+
+    @Override
+    public int getDecodedFrameCount() {
+        return mDecodedFrames;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return mDrained;
+    }
+
+    @Override
+    public void release() {
+        if (mInput != null) {
+            try {
+                mInput.close();
+            } catch (IOException ignore) {}
+            mInput = null;
+        }
+        mDecoder = null;
+        mMetadata = null;
+        mLastOutput = null;
+        mData = null;
+    }
+}
@@ -0,0 +1,256 @@
+package com.otaliastudios.gif.source.internal;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSource} that wraps another source and reads it on a dedicated thread,
+ * so that frames are decoded while the previous ones are being rendered and encoded.
+ *
+ * Frames are stored in a bounded ring of reusable chunks: the producer thread takes
+ * a free chunk, reads into it and queues it, while {@link #read(Chunk)} hands out
+ * the next queued chunk and gives the previous one back. When the ring is full, the
+ * producer blocks, so at most depth frames are decoded ahead of the reader.
+ *
+ * Buffers are not copied: the reader chunk will point to the buffers of the ring chunk,
+ * which are only valid until the next call to {@link #read(Chunk)}.
+ *
+ * The wrapped source is started on the caller thread, but read on the producer thread
+ * only, so it does not need to be thread safe.
+ */
+public class DecodeAheadDataSource implements DataSource, DataSource.FrameCounter {
+
+    private static final String TAG = DecodeAheadDataSource.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final DataSource mSource;
+    private final int mDepth;
+    private final BlockingQueue<Slot> mFree;
+    private final BlockingQueue<Slot> mFilled;
+    private Thread mThread;
+    private volatile boolean mProducerDone;
+    private volatile Throwable mProducerError;
+
+    private Slot mHeld; // The slot whose buffers were last handed out
+    private long mReadUs;
+    private boolean mDrained;
+    private int mScannedFrames;
+    private int mDecodedFrames;
+    private volatile long mDurationUs = Long.MIN_VALUE;
+
+    // Stats
+    private int mFrames;
+    private long mReaderWaitNanos;
+    private volatile long mProducerWaitNanos;
+    private volatile long mProducerBusyNanos;
+
+    private static class Slot {
+        private final Chunk chunk = new Chunk();
+        private long readUs;
+        private boolean drained;
+        private int scannedFrames;
+        private int decodedFrames;
+    }
+
+    /**
+     * Creates a new source that decodes up to depth frames ahead of the reader.
+     *
+     * @param source the source to wrap
+     * @param depth the number of frames to decode ahead, at least 1
+     */
+    public DecodeAheadDataSource(@NonNull DataSource source, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth should be at least 1: " + depth);
+        }
+        mSource = source;
+        mDepth = depth;
+        // One more slot than the depth, because one is held by the reader.
+        mFree = new ArrayBlockingQueue<>(depth + 1);
+        mFilled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth + 1; i++) {
+            mFree.add(new Slot());
+        }
+    }
+
+    @Override
+    public long getDurationUs() {
+        // After start, the wrapped source is owned by the producer thread.
+        if (mDurationUs == Long.MIN_VALUE) return mSource.getDurationUs();
+        return mDurationUs;
+    }
+
+    @NonNull
+    @Override
+    public MediaFormat getTrackFormat() {
+        return mSource.getTrackFormat();
+    }
+
+    @Override
+    public void start() {
+        mSource.start();
+        mDurationUs = mSource.getDurationUs();
+        mSource.getTrackFormat(); // Make sure it's computed before the producer starts.
+    }
+
+    /**
+     * Starts the producer thread. This is done on the first read, rather than
+     * in {@link #start()}, because the reader fills the requested fields
+     * of the chunk after starting the source.
+     */
+    private void startProducer(@NonNull Chunk request) {
+        for (Slot slot : mFree) {
+            slot.chunk.requestedFormat = request.requestedFormat;
+            slot.chunk.requestedSampleSize = request.requestedSampleSize;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    produce();
+                } catch (InterruptedException e) {
+                    // Released.
+                } catch (Throwable e) {
+                    mProducerError = e;
+                } finally {
+                    mProducerDone = true;
+                }
+            }
+        }, "GIFDecodeAhead");
+        mThread.start();
+        LOG.i("Started decode-ahead thread. depth:" + mDepth);
+    }
+
+    private void produce() throws InterruptedException {
+        while (!mSource.isDrained()) {
+            long start = System.nanoTime();
+            Slot slot = mFree.take();
+            long busyStart = System.nanoTime();
+            mProducerWaitNanos += busyStart - start;
+            slot.chunk.setDirtyUnknown();
+            slot.chunk.nextTimestampUs = Long.MAX_VALUE;
+            mSource.read(slot.chunk);
+            slot.readUs = mSource.getReadUs();
+            slot.drained = mSource.isDrained();
+            if (mSource instanceof FrameCounter) {
+                slot.scannedFrames = ((FrameCounter) mSource).getScannedFrameCount();
+                slot.decodedFrames = ((FrameCounter) mSource).getDecodedFrameCount();
+            }
+            mDurationUs = mSource.getDurationUs(); // Might change, if it was unknown.
+            mProducerBusyNanos += System.nanoTime() - busyStart;
+            mFilled.put(slot);
+        }
+    }
+
+    @Override
+    public void read(@NonNull Chunk chunk) {
+        if (mThread == null) startProducer(chunk);
+        if (mHeld != null) {
+            mFree.add(mHeld);
+            mHeld = null;
+        }
+        Slot slot = takeFilled();
+        Chunk source = slot.chunk;
+        chunk.format = source.format;
+        chunk.bitmap = source.bitmap;
+        chunk.indices = source.indices;
+        chunk.palette = source.palette;
+        chunk.frames = source.frames;
+        chunk.frameCount = source.frameCount;
+        chunk.width = source.width;
+        chunk.height = source.height;
+        chunk.timestampUs = source.timestampUs;
+        chunk.nextTimestampUs = source.nextTimestampUs;
+        chunk.dirty.set(source.dirty);
+        mReadUs = slot.readUs;
+        mDrained = slot.drained;
+        mScannedFrames = slot.scannedFrames;
+        mDecodedFrames = slot.decodedFrames;
+        mHeld = slot;
+        mFrames++;
+    }
+
+    @NonNull
+    private Slot takeFilled() {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Slot slot = mFilled.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (slot != null) return slot;
+                if (mProducerError != null) {
+                    throw new RuntimeException("Error while decoding ahead.", mProducerError);
+                }
+                if (mProducerDone && mFilled.isEmpty()) {
+                    throw new IllegalStateException("read() called, but the source has no more frames.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            mReaderWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long getReadUs() {
+        return mReadUs;
+    }
+
+    /**
+     * Returns the count of the wrapped source as of the last chunk handed out,
+     * or 0 if the wrapped source does not count frames.
+     */
+    @Override
+    public int getScannedFrameCount() {
+        return mScannedFrames;
+    }
+
+    @Override
+    public int getDecodedFrameCount() {
+        return mDecodedFrames;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return mDrained;
+    }
+
+    @Override
+    public void release() {
+        if (mThread != null) {
+            // Wait for the producer to stop before releasing the source it reads.
+            mThread.interrupt();
+            boolean interrupted = false;
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            mThread = null;
+            long producerNanos = mProducerBusyNanos + mProducerWaitNanos;
+            LOG.i("Decode-ahead stats." +
+                    " frames:" + mFrames +
+                    " readerWaitMs:" + mReaderWaitNanos / 1000000L +
+                    " producerWaitMs:" + mProducerWaitNanos / 1000000L +
+                    " producerBusyMs:" + mProducerBusyNanos / 1000000L +
+                    " producerOccupancy:" + (producerNanos == 0 ? 0 : (float) mProducerBusyNanos / producerNanos));
+        }
+        mFree.clear();
+        mFilled.clear();
+        mHeld = null;
+        mSource.release();
+    }
+}
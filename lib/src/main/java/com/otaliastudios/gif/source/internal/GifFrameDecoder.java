@@ -0,0 +1,813 @@
+package com.otaliastudios.gif.source.internal;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes the frames described by a {@link GifMetadata} into an ARGB canvas,
+ * taking care of LZW decompression, interlacing, transparency, local and global
+ * color tables and disposal methods.
+ *
+ * All buffers are allocated when this object is created, based on the metadata,
+ * so decoding a frame does not allocate anything. Frames should be decoded in order,
+ * starting from 0 or from a {@link GifRestartIndex} restart point, either when the decoder
+ * is created or after a call to {@link #reset()}.
+ *
+ * When {@link #setIndexed(boolean)} is used, frames are composited into an index canvas,
+ * one byte per pixel, that refers to the colors in {@link #getPalette()}. This is only
+ * possible when all frames share the global color table.
+ *
+ * When {@link #decodeRawFrame(int, DataSource.Frame)} is used, frames are not composited
+ * at all: the decoder describes what should be done with the canvas, so that compositing
+ * can happen elsewhere, for example on the GPU.
+ *
+ * When {@link #setSampleSize(int)} is used, the canvas is a subsampled version of the
+ * GIF screen, which saves compositing time and memory for big GIFs. Pixels are picked
+ * by nearest neighbor, which is enough when the output is scaled down further anyway.
+ *
+ * This class is not thread safe.
+ */
+public class GifFrameDecoder {
+
+    private final static String TAG = GifFrameDecoder.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    private final static int MAX_STACK_SIZE = 4096;
+    private final static int COLOR_TRANSPARENT = 0;
+    private final static int COLOR_MISSING = 0xFF000000;
+
+    private ByteBuffer mData;
+    private final int mBase;
+    private final GifMetadata mMetadata;
+    private int mWidth; // Canvas size, after sampling
+    private int mHeight;
+    private int mSampleSize = 1;
+
+    // Output
+    private int[] mCanvas;
+    private int[] mSavedCanvas; // For DISPOSAL_PREVIOUS, lazily allocated.
+    private byte[] mIndexCanvas;
+    private byte[] mSavedIndexCanvas;
+    private int[] mPalette;
+    private final int mTransparentSlot;
+    private boolean mIndexed;
+
+    // Color tables
+    private final int[] mGlobalColorTable = new int[256];
+    private final int[] mLocalColorTable = new int[256];
+    private final int mBackgroundColor;
+
+    // LZW state
+    private final short[] mPrefix = new short[MAX_STACK_SIZE];
+    private final byte[] mSuffix = new byte[MAX_STACK_SIZE];
+    private final byte[] mPixelStack = new byte[MAX_STACK_SIZE + 1];
+    private final byte[] mBlock = new byte[256];
+    private byte[] mPixels; // Indices of the current frame
+
+    private int mPosition;
+    private int mBlockSize;
+    private int mBlockIndex;
+
+    // Canvas rect of the frame being drawn, see computeRect()
+    private int mRectLeft;
+    private int mRectTop;
+    private int mRectRight;
+    private int mRectBottom;
+
+    // Canvas rect that changed in the last decodeFrame()
+    private int mDirtyLeft;
+    private int mDirtyTop;
+    private int mDirtyRight;
+    private int mDirtyBottom;
+
+    private int mLastFrame = -1;
+
+    /**
+     * Creates a new decoder for the given data, which must be the same data that
+     * was used to create the metadata.
+     *
+     * @param data the GIF data
+     * @param metadata the metadata
+     */
+    public GifFrameDecoder(@NonNull ByteBuffer data, @NonNull GifMetadata metadata) {
+        mData = data.duplicate();
+        mBase = data.position();
+        mMetadata = metadata;
+        mWidth = metadata.width;
+        mHeight = metadata.height;
+        int maxPixels = 0;
+        for (GifMetadata.Frame frame : metadata.frames) {
+            maxPixels = Math.max(maxPixels, frame.width * frame.height);
+        }
+        mPixels = new byte[maxPixels];
+        if (metadata.colorTableOffset >= 0) {
+            readColorTable(metadata.colorTableOffset, metadata.colorTableSize, mGlobalColorTable);
+            mBackgroundColor = mGlobalColorTable[metadata.backgroundIndex];
+        } else {
+            Arrays.fill(mGlobalColorTable, COLOR_MISSING);
+            mBackgroundColor = COLOR_TRANSPARENT;
+        }
+        mTransparentSlot = findTransparentSlot(metadata);
+    }
+
+    /**
+     * Replaces the data with a new buffer holding the same bytes, plus possibly more.
+     * This is meant for GIFs that are still being written, in which case the metadata
+     * frames can also grow between calls. The buffer position must not change.
+     * Indexed output should not be used in this case, because frames that are not
+     * available yet might need a different palette.
+     *
+     * @param data the new data
+     */
+    public void setData(@NonNull ByteBuffer data) {
+        if (data.position() != mBase) {
+            throw new IllegalArgumentException("Data position should not change.");
+        }
+        mData = data.duplicate();
+    }
+
+    /**
+     * Checks whether we can composite frames into an index canvas, and if so,
+     * returns the palette slot to be used for transparent pixels. Returns -1
+     * if indexed output is not possible, or 256 if no transparent slot is needed.
+     */
+    private static int findTransparentSlot(@NonNull GifMetadata metadata) {
+        if (metadata.colorTableOffset < 0) return -1;
+        boolean needsSlot = false;
+        for (int i = 0; i < metadata.frames.length; i++) {
+            GifMetadata.Frame frame = metadata.frames[i];
+            if (frame.colorTableOffset >= 0) return -1;
+            if (frame.disposal == GifMetadata.DISPOSAL_BACKGROUND) needsSlot = true;
+        }
+        GifMetadata.Frame first = metadata.frames[0];
+        if (!first.coversScreen(metadata) || first.transparentIndex >= 0) needsSlot = true;
+        if (!needsSlot) return 256;
+        return metadata.colorTableSize < 256 ? metadata.colorTableSize : -1;
+    }
+
+    /**
+     * Sets the sample size: the canvas will be the GIF screen divided by this
+     * value in both dimensions (rounding down, but at least 1 pixel).
+     * This must be called before the first frame or after {@link #reset()}.
+     *
+     * @param sampleSize the sample size, 1 for no sampling
+     */
+    public void setSampleSize(int sampleSize) {
+        if (mLastFrame >= 0) {
+            throw new IllegalStateException("Sample size can only be changed before decoding.");
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Invalid sample size: " + sampleSize);
+        }
+        if (sampleSize == mSampleSize) return;
+        mSampleSize = sampleSize;
+        mWidth = Math.max(1, mMetadata.width / sampleSize);
+        mHeight = Math.max(1, mMetadata.height / sampleSize);
+        mCanvas = null;
+        mSavedCanvas = null;
+        mIndexCanvas = null;
+        mSavedIndexCanvas = null;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Returns the canvas width, which is the GIF width divided by the sample size.
+     * @return canvas width
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the canvas height, which is the GIF height divided by the sample size.
+     * @return canvas height
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Whether {@link #setIndexed(boolean)} can be used for this GIF.
+     * @return true if indexed output is supported
+     */
+    public boolean supportsIndexed() {
+        return mTransparentSlot >= 0;
+    }
+
+    /**
+     * Chooses between ARGB output (the default) and indexed output.
+     * This must be called before the first frame or after {@link #reset()},
+     * and only if {@link #supportsIndexed()} returns true.
+     *
+     * @param indexed true for indexed output
+     */
+    public void setIndexed(boolean indexed) {
+        if (mLastFrame >= 0) {
+            throw new IllegalStateException("Output can only be changed before decoding.");
+        }
+        if (indexed && !supportsIndexed()) {
+            throw new IllegalStateException("Indexed output is not supported for this GIF.");
+        }
+        mIndexed = indexed;
+    }
+
+    public boolean isIndexed() {
+        return mIndexed;
+    }
+
+    /**
+     * Returns the ARGB canvas, holding the result of the last decoded frame.
+     * The array is owned by this decoder and its contents will change after
+     * each call to {@link #decodeFrame(int)}.
+     *
+     * @return the canvas
+     */
+    @NonNull
+    public int[] getCanvas() {
+        if (mIndexed) throw new IllegalStateException("Decoder is in indexed mode.");
+        if (mCanvas == null) mCanvas = new int[mWidth * mHeight];
+        return mCanvas;
+    }
+
+    /**
+     * Returns the index canvas, holding the result of the last decoded frame
+     * when in indexed mode. Each value refers to a color in {@link #getPalette()}.
+     *
+     * @return the index canvas
+     */
+    @NonNull
+    public byte[] getIndexCanvas() {
+        if (!mIndexed) throw new IllegalStateException("Decoder is not in indexed mode.");
+        if (mIndexCanvas == null) mIndexCanvas = new byte[mWidth * mHeight];
+        return mIndexCanvas;
+    }
+
+    /**
+     * Returns the 256 ARGB colors that {@link #getIndexCanvas()} refers to.
+     * This is the global color table, plus a transparent color if needed.
+     * The palette does not change during decoding.
+     *
+     * @return the palette
+     */
+    @NonNull
+    public int[] getPalette() {
+        if (mPalette == null) {
+            mPalette = Arrays.copyOf(mGlobalColorTable, 256);
+            if (mTransparentSlot >= 0 && mTransparentSlot < 256) {
+                mPalette[mTransparentSlot] = COLOR_TRANSPARENT;
+            }
+        }
+        return mPalette;
+    }
+
+    /**
+     * Returns the index of the last decoded frame, or -1.
+     * @return last decoded frame
+     */
+    public int getLastFrame() {
+        return mLastFrame;
+    }
+
+    /**
+     * Clears the canvas, so that the next frame is drawn from scratch.
+     */
+    public void reset() {
+        clearCanvas();
+        mLastFrame = -1;
+    }
+
+    private void clearCanvas() {
+        if (mIndexed) {
+            Arrays.fill(getIndexCanvas(), (byte) Math.max(mTransparentSlot, 0));
+        } else {
+            Arrays.fill(getCanvas(), COLOR_TRANSPARENT);
+        }
+    }
+
+    /**
+     * Decodes the given frame on top of the canvas, after applying the
+     * disposal method of the previous one.
+     *
+     * @param index the frame index
+     */
+    public void decodeFrame(int index) {
+        GifMetadata.Frame frame = mMetadata.frames[index];
+        resetDirty();
+        if (mLastFrame >= 0) {
+            dispose(mMetadata.frames[mLastFrame], frame);
+        } else {
+            clearCanvas();
+            markDirty(0, 0, mWidth, mHeight);
+            if (index > 0) restart(index);
+        }
+        if (frame.disposal == GifMetadata.DISPOSAL_PREVIOUS) {
+            saveCanvas(frame);
+        }
+        int[] colorTable = mGlobalColorTable;
+        if (frame.colorTableOffset >= 0) {
+            readColorTable(frame.colorTableOffset, frame.colorTableSize, mLocalColorTable);
+            colorTable = mLocalColorTable;
+        }
+        decodePixels(frame);
+        if (mIndexed) {
+            drawIndices(frame);
+        } else {
+            drawPixels(frame, colorTable);
+        }
+        mLastFrame = index;
+    }
+
+    /**
+     * Decodes the given frame without touching the canvas. The frame is filled with
+     * the operations that {@link #decodeFrame(int)} would perform on the canvas,
+     * together with the frame indices in canvas order and its colors.
+     * Raw decoding does not support sampling or indexed output, and it
+     * should not be mixed with {@link #decodeFrame(int)} until {@link #reset()}.
+     *
+     * The frame rect is marked dirty, together with the disposed rect.
+     *
+     * @param index the frame index
+     * @param out the frame to be filled
+     */
+    public void decodeRawFrame(int index, @NonNull DataSource.Frame out) {
+        if (mSampleSize != 1 || mIndexed) {
+            throw new IllegalStateException("Raw frames need no sampling and ARGB output.");
+        }
+        GifMetadata.Frame frame = mMetadata.frames[index];
+        resetDirty();
+        out.clear = mLastFrame < 0;
+        out.dispose = DataSource.Frame.DISPOSE_NONE;
+        if (out.clear) {
+            markDirty(0, 0, mWidth, mHeight);
+            if (index > 0) {
+                if (!GifRestartIndex.isRestartPoint(mMetadata, index)) {
+                    throw new IllegalStateException("Frame " + index + " is not a restart point." +
+                            " Decoding should start from 0 or from a restart point.");
+                }
+                GifMetadata.Frame previous = mMetadata.frames[index - 1];
+                if (previous.disposal == GifMetadata.DISPOSAL_BACKGROUND) {
+                    disposeRaw(previous, frame, out);
+                }
+            }
+        } else {
+            disposeRaw(mMetadata.frames[mLastFrame], frame, out);
+        }
+        out.save = frame.disposal == GifMetadata.DISPOSAL_PREVIOUS;
+        if (frame.colorTableOffset >= 0) {
+            // Readers can cache the palette, so local tables need a new array.
+            int[] colorTable = new int[256];
+            readColorTable(frame.colorTableOffset, frame.colorTableSize, colorTable);
+            out.palette = colorTable;
+        } else {
+            out.palette = mGlobalColorTable;
+        }
+        out.transparentIndex = frame.transparentIndex;
+        decodePixels(frame);
+        if (computeRect(frame)) {
+            out.rect.set(mRectLeft, mRectTop, mRectRight, mRectBottom);
+            int width = mRectRight - mRectLeft;
+            int size = width * (mRectBottom - mRectTop);
+            if (out.indices == null || out.indices.length < size) {
+                out.indices = new byte[size];
+            }
+            for (int y = mRectTop; y < mRectBottom; y++) {
+                int line = getLine(frame, y - frame.y);
+                System.arraycopy(mPixels, line * frame.width + (mRectLeft - frame.x),
+                        out.indices, (y - mRectTop) * width, width);
+            }
+            markDirty(mRectLeft, mRectTop, mRectRight, mRectBottom);
+        } else {
+            out.rect.setEmpty();
+        }
+        mLastFrame = index;
+    }
+
+    /**
+     * Same as {@link #dispose(GifMetadata.Frame, GifMetadata.Frame)}, but describes
+     * the disposal in the given raw frame.
+     */
+    private void disposeRaw(@NonNull GifMetadata.Frame previous,
+                            @NonNull GifMetadata.Frame current,
+                            @NonNull DataSource.Frame out) {
+        if (previous.disposal != GifMetadata.DISPOSAL_BACKGROUND
+                && previous.disposal != GifMetadata.DISPOSAL_PREVIOUS) return;
+        if (!computeRect(previous)) return;
+        out.disposeRect.set(mRectLeft, mRectTop, mRectRight, mRectBottom);
+        markDirty(mRectLeft, mRectTop, mRectRight, mRectBottom);
+        if (previous.disposal == GifMetadata.DISPOSAL_BACKGROUND) {
+            boolean background = current.transparentIndex < 0 && current.colorTableOffset < 0;
+            out.dispose = DataSource.Frame.DISPOSE_FILL;
+            out.disposeColor = background ? mBackgroundColor : COLOR_TRANSPARENT;
+        } else {
+            out.dispose = DataSource.Frame.DISPOSE_RESTORE;
+        }
+    }
+
+    /**
+     * Whether the last call to {@link #decodeFrame(int)} changed any pixel of the canvas.
+     * When this returns false, the frame is identical to the previous one.
+     * Changes are tracked at each step, so a disposal that is exactly undone by the next
+     * frame still counts as a change.
+     *
+     * @return true if the canvas changed
+     */
+    public boolean hasChanged() {
+        return mDirtyLeft < mDirtyRight && mDirtyTop < mDirtyBottom;
+    }
+
+    /**
+     * Returns the canvas region that was changed by the last call to
+     * {@link #decodeFrame(int)}. This is empty if {@link #hasChanged()} is false.
+     *
+     * @param rect the output rect
+     */
+    public void getDirtyRect(@NonNull Rect rect) {
+        if (hasChanged()) {
+            rect.set(mDirtyLeft, mDirtyTop, mDirtyRight, mDirtyBottom);
+        } else {
+            rect.setEmpty();
+        }
+    }
+
+    private void resetDirty() {
+        mDirtyLeft = Integer.MAX_VALUE;
+        mDirtyTop = Integer.MAX_VALUE;
+        mDirtyRight = 0;
+        mDirtyBottom = 0;
+    }
+
+    private void markDirty(int left, int top, int right, int bottom) {
+        if (left < mDirtyLeft) mDirtyLeft = left;
+        if (top < mDirtyTop) mDirtyTop = top;
+        if (right > mDirtyRight) mDirtyRight = right;
+        if (bottom > mDirtyBottom) mDirtyBottom = bottom;
+    }
+
+    /**
+     * Prepares the cleared canvas for decoding the given frame without the previous ones.
+     * If the previous frame is disposed to background, we must fill the canvas like
+     * the disposal would have done. Otherwise, the frame replaces the whole canvas.
+     */
+    private void restart(int index) {
+        if (!GifRestartIndex.isRestartPoint(mMetadata, index)) {
+            throw new IllegalStateException("Frame " + index + " is not a restart point." +
+                    " Decoding should start from 0 or from a restart point.");
+        }
+        GifMetadata.Frame previous = mMetadata.frames[index - 1];
+        if (previous.disposal == GifMetadata.DISPOSAL_BACKGROUND) {
+            dispose(previous, mMetadata.frames[index]);
+        }
+    }
+
+    private void readColorTable(int offset, int size, @NonNull int[] table) {
+        int position = mBase + offset;
+        for (int i = 0; i < size; i++) {
+            int r = mData.get(position++) & 0xFF;
+            int g = mData.get(position++) & 0xFF;
+            int b = mData.get(position++) & 0xFF;
+            table[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        if (size < 256) {
+            Arrays.fill(table, size, 256, COLOR_MISSING);
+        }
+    }
+
+    private void dispose(@NonNull GifMetadata.Frame previous, @NonNull GifMetadata.Frame current) {
+        switch (previous.disposal) {
+            case GifMetadata.DISPOSAL_BACKGROUND: {
+                boolean background = current.transparentIndex < 0 && current.colorTableOffset < 0;
+                if (mIndexed) {
+                    fillIndexRect(previous, background ? mMetadata.backgroundIndex : mTransparentSlot);
+                } else {
+                    fillRect(previous, background ? mBackgroundColor : COLOR_TRANSPARENT);
+                }
+                break;
+            }
+            case GifMetadata.DISPOSAL_PREVIOUS: {
+                restoreCanvas(previous);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Computes the canvas rectangle covered by the given frame, taking the
+     * sample size into account, and stores it in the mRect* fields.
+     * A canvas pixel belongs to the frame if the screen pixel that it samples does.
+     * Returns false if the rectangle is empty.
+     */
+    private boolean computeRect(@NonNull GifMetadata.Frame frame) {
+        int sample = mSampleSize;
+        mRectLeft = ceilDiv(Math.max(frame.x, 0), sample);
+        mRectTop = ceilDiv(Math.max(frame.y, 0), sample);
+        mRectRight = Math.min(ceilDiv(frame.x + frame.width, sample), mWidth);
+        mRectBottom = Math.min(ceilDiv(frame.y + frame.height, sample), mHeight);
+        return mRectLeft < mRectRight && mRectTop < mRectBottom;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private void fillRect(@NonNull GifMetadata.Frame frame, int color) {
+        if (!computeRect(frame)) return;
+        int[] canvas = mCanvas;
+        for (int y = mRectTop; y < mRectBottom; y++) {
+            int row = y * mWidth;
+            int first = -1, last = -1;
+            for (int i = row + mRectLeft, end = row + mRectRight; i < end; i++) {
+                if (canvas[i] != color) {
+                    canvas[i] = color;
+                    if (first < 0) first = i;
+                    last = i;
+                }
+            }
+            if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+        }
+    }
+
+    private void fillIndexRect(@NonNull GifMetadata.Frame frame, int index) {
+        if (!computeRect(frame)) return;
+        byte[] canvas = mIndexCanvas;
+        byte value = (byte) index;
+        for (int y = mRectTop; y < mRectBottom; y++) {
+            int row = y * mWidth;
+            int first = -1, last = -1;
+            for (int i = row + mRectLeft, end = row + mRectRight; i < end; i++) {
+                if (canvas[i] != value) {
+                    canvas[i] = value;
+                    if (first < 0) first = i;
+                    last = i;
+                }
+            }
+            if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+        }
+    }
+
+    private void saveCanvas(@NonNull GifMetadata.Frame frame) {
+        if (!computeRect(frame)) return;
+        Object from, to;
+        if (mIndexed) {
+            if (mSavedIndexCanvas == null) {
+                mSavedIndexCanvas = new byte[mIndexCanvas.length];
+            }
+            from = mIndexCanvas;
+            to = mSavedIndexCanvas;
+        } else {
+            if (mSavedCanvas == null) {
+                mSavedCanvas = new int[mCanvas.length];
+            }
+            from = mCanvas;
+            to = mSavedCanvas;
+        }
+        for (int y = mRectTop; y < mRectBottom; y++) {
+            int start = y * mWidth + mRectLeft;
+            System.arraycopy(from, start, to, start, mRectRight - mRectLeft);
+        }
+    }
+
+    private void restoreCanvas(@NonNull GifMetadata.Frame frame) {
+        if (!computeRect(frame)) return;
+        if (mIndexed) {
+            if (mSavedIndexCanvas == null) return;
+            byte[] from = mSavedIndexCanvas;
+            byte[] to = mIndexCanvas;
+            for (int y = mRectTop; y < mRectBottom; y++) {
+                int row = y * mWidth;
+                int first = -1, last = -1;
+                for (int i = row + mRectLeft, end = row + mRectRight; i < end; i++) {
+                    if (to[i] != from[i]) {
+                        to[i] = from[i];
+                        if (first < 0) first = i;
+                        last = i;
+                    }
+                }
+                if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+            }
+        } else {
+            if (mSavedCanvas == null) return;
+            int[] from = mSavedCanvas;
+            int[] to = mCanvas;
+            for (int y = mRectTop; y < mRectBottom; y++) {
+                int row = y * mWidth;
+                int first = -1, last = -1;
+                for (int i = row + mRectLeft, end = row + mRectRight; i < end; i++) {
+                    if (to[i] != from[i]) {
+                        to[i] = from[i];
+                        if (first < 0) first = i;
+                        last = i;
+                    }
+                }
+                if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+            }
+        }
+    }
+
+    /**
+     * Draws the decoded indices of the given frame into the canvas.
+     * Handles interlacing, transparency, sampling and frames that go out of the canvas.
+     * Pixels are only written if they change, so that we can track the dirty region.
+     */
+    private void drawPixels(@NonNull GifMetadata.Frame frame, @NonNull int[] colorTable) {
+        if (!computeRect(frame)) return;
+        int[] canvas = mCanvas;
+        int transparentIndex = frame.transparentIndex;
+        int sample = mSampleSize;
+        for (int y = mRectTop; y < mRectBottom; y++) {
+            int line = getLine(frame, y * sample - frame.y);
+            int source = line * frame.width + (mRectLeft * sample - frame.x);
+            int row = y * mWidth;
+            int first = -1, last = -1;
+            for (int dest = row + mRectLeft, end = row + mRectRight; dest < end; dest++) {
+                int index = mPixels[source] & 0xFF;
+                source += sample;
+                if (index == transparentIndex) continue;
+                int color = colorTable[index];
+                if (canvas[dest] != color) {
+                    canvas[dest] = color;
+                    if (first < 0) first = dest;
+                    last = dest;
+                }
+            }
+            if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+        }
+    }
+
+    /**
+     * Same as {@link #drawPixels(GifMetadata.Frame, int[])}, but draws
+     * into the index canvas.
+     */
+    private void drawIndices(@NonNull GifMetadata.Frame frame) {
+        if (!computeRect(frame)) return;
+        byte[] canvas = mIndexCanvas;
+        int transparentIndex = frame.transparentIndex;
+        int sample = mSampleSize;
+        for (int y = mRectTop; y < mRectBottom; y++) {
+            int line = getLine(frame, y * sample - frame.y);
+            int source = line * frame.width + (mRectLeft * sample - frame.x);
+            int row = y * mWidth;
+            int first = -1, last = -1;
+            for (int dest = row + mRectLeft, end = row + mRectRight; dest < end; dest++) {
+                byte index = mPixels[source];
+                source += sample;
+                if ((index & 0xFF) == transparentIndex) continue;
+                if (canvas[dest] != index) {
+                    canvas[dest] = index;
+                    if (first < 0) first = dest;
+                    last = dest;
+                }
+            }
+            if (first >= 0) markDirty(first - row, y, last - row + 1, y + 1);
+        }
+    }
+
+    /**
+     * Returns the decoded line that holds the given frame row, which is different
+     * from the row if the frame is interlaced.
+     */
+    private static int getLine(@NonNull GifMetadata.Frame frame, int row) {
+        if (!frame.interlaced) return row;
+        int height = frame.height;
+        int pass1 = (height + 7) / 8; // rows 0, 8, 16...
+        if (row % 8 == 0) return row / 8;
+        int pass2 = (height + 3) / 8; // rows 4, 12, 20...
+        if (row % 8 == 4) return pass1 + row / 8;
+        int pass3 = (height + 1) / 4; // rows 2, 6, 10...
+        if (row % 4 == 2) return pass1 + pass2 + row / 4;
+        return pass1 + pass2 + pass3 + row / 2; // rows 1, 3, 5...
+    }
+
+    /**
+     * Decodes the LZW data of the given frame into {@link #mPixels}.
+     * Based on the classic NeuQuant / Kevin Weiner decoder.
+     */
+    private void decodePixels(@NonNull GifMetadata.Frame frame) {
+        int pixelCount = frame.width * frame.height;
+        if (mPixels.length < pixelCount) {
+            // Can only happen with setData(), if new frames are bigger.
+            mPixels = new byte[pixelCount];
+        }
+        mPosition = mBase + frame.dataOffset;
+        mBlockSize = 0;
+        mBlockIndex = 0;
+
+        int dataSize = mData.get(mPosition++) & 0xFF;
+        if (dataSize > 11) {
+            // Invalid. Avoid going out of bounds.
+            LOG.w("Invalid LZW code size: " + dataSize);
+            Arrays.fill(mPixels, 0, pixelCount, (byte) 0);
+            return;
+        }
+        int clear = 1 << dataSize;
+        int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            mPrefix[code] = 0;
+            mSuffix[code] = (byte) code;
+        }
+
+        short[] prefix = mPrefix;
+        byte[] suffix = mSuffix;
+        byte[] pixelStack = mPixelStack;
+        byte[] pixels = mPixels;
+        int datum = 0;
+        int bits = 0;
+        int first = 0;
+        int top = 0;
+        int pixelIndex = 0;
+        while (pixelIndex < pixelCount) {
+            if (bits < codeSize) {
+                int next = readBlockByte();
+                if (next < 0) break;
+                datum += next << bits;
+                bits += 8;
+                continue;
+            }
+            int code = datum & codeMask;
+            datum >>= codeSize;
+            bits -= codeSize;
+
+            if (code == clear) {
+                codeSize = dataSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                oldCode = -1;
+                continue;
+            } else if (code == endOfInformation || code > available) {
+                break;
+            } else if (oldCode == -1) {
+                pixels[pixelIndex++] = suffix[code];
+                oldCode = code;
+                first = code;
+                continue;
+            }
+
+            int inCode = code;
+            if (code >= available) {
+                pixelStack[top++] = (byte) first;
+                code = oldCode;
+            }
+            while (code >= clear) {
+                pixelStack[top++] = suffix[code];
+                code = prefix[code];
+            }
+            first = suffix[code] & 0xFF;
+            pixelStack[top++] = (byte) first;
+
+            if (available < MAX_STACK_SIZE) {
+                prefix[available] = (short) oldCode;
+                suffix[available] = (byte) first;
+                available++;
+                if ((available & codeMask) == 0 && available < MAX_STACK_SIZE) {
+                    codeSize++;
+                    codeMask += available;
+                }
+            }
+            oldCode = inCode;
+
+            while (top > 0 && pixelIndex < pixelCount) {
+                pixels[pixelIndex++] = pixelStack[--top];
+            }
+            top = 0;
+        }
+
+        if (pixelIndex < pixelCount) {
+            // Corrupted or truncated data. Make missing pixels transparent if possible.
+            byte missing = (byte) Math.max(frame.transparentIndex, 0);
+            Arrays.fill(pixels, pixelIndex, pixelCount, missing);
+        }
+    }
+
+    /**
+     * Reads the next byte of the image data, moving through sub-blocks.
+     * @return the byte or -1 if data is over
+     */
+    private int readBlockByte() {
+        if (mBlockIndex == mBlockSize) {
+            if (mPosition >= mData.limit()) return -1;
+            mBlockSize = mData.get(mPosition++) & 0xFF;
+            mBlockIndex = 0;
+            if (mBlockSize == 0) return -1;
+            int available = Math.min(mBlockSize, mData.limit() - mPosition);
+            mData.position(mPosition);
+            mData.get(mBlock, 0, available);
+            mPosition += mBlockSize;
+            mBlockSize = available;
+            if (mBlockSize == 0) return -1;
+        }
+        return mBlock[mBlockIndex++] & 0xFF;
+    }
+}
@@ -0,0 +1,181 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the GIF structure as found by {@link GifScanner}: the logical screen,
+ * the color tables location and the list of frames, without any pixel data.
+ */
+public class GifMetadata {
+
+    /**
+     * Frames with a delay smaller than this value (in milliseconds) are played
+     * with {@link #DEFAULT_FRAME_DELAY} instead. This is what browsers do.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public final static int MIN_FRAME_DELAY = 20;
+
+    @SuppressWarnings("WeakerAccess")
+    public final static int DEFAULT_FRAME_DELAY = 100;
+
+    public final static int DISPOSAL_UNSPECIFIED = 0;
+    public final static int DISPOSAL_NONE = 1;
+    public final static int DISPOSAL_BACKGROUND = 2;
+    public final static int DISPOSAL_PREVIOUS = 3;
+
+    /**
+     * A single frame (image descriptor) and its graphic control extension.
+     */
+    public static class Frame {
+        /** Offset of the image descriptor block. */
+        public int offset;
+        /** Offset of the graphic control extension block, or -1 if absent. */
+        public int controlOffset = -1;
+        /** Offset of the LZW minimum code size, followed by the image data sub-blocks. */
+        public int dataOffset;
+        /** Frame delay in milliseconds, as written in the file. */
+        public int delay;
+        public int disposal = DISPOSAL_UNSPECIFIED;
+        /** The transparent color index, or -1. */
+        public int transparentIndex = -1;
+        public int x;
+        public int y;
+        public int width;
+        public int height;
+        public boolean interlaced;
+        /** Offset of the local color table, or -1 if the global one should be used. */
+        public int colorTableOffset = -1;
+        public int colorTableSize;
+
+        /**
+         * Returns the delay to be used for playback, in milliseconds.
+         * @return the playback delay
+         */
+        public int getPlaybackDelay() {
+            return delay < MIN_FRAME_DELAY ? DEFAULT_FRAME_DELAY : delay;
+        }
+
+        /**
+         * Whether this frame covers the given logical screen.
+         * @param metadata the frame metadata
+         * @return true if this frame covers the whole screen
+         */
+        public boolean coversScreen(@NonNull GifMetadata metadata) {
+            return x <= 0 && y <= 0
+                    && x + width >= metadata.width
+                    && y + height >= metadata.height;
+        }
+    }
+
+    public int width;
+    public int height;
+    /** Offset of the global color table, or -1 if absent. */
+    public int colorTableOffset = -1;
+    public int colorTableSize;
+    public int backgroundIndex;
+    /** The NETSCAPE2.0 loop count, 0 meaning forever, or -1 if absent. */
+    public int loopCount = -1;
+    /** Whether the data ended before the trailer block. */
+    public boolean truncated;
+    public Frame[] frames;
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    /**
+     * Returns the total playback duration, using {@link Frame#getPlaybackDelay()}.
+     * @return duration in microseconds
+     */
+    public long getDurationUs() {
+        long durationUs = 0;
+        for (Frame frame : frames) {
+            durationUs += frame.getPlaybackDelay() * 1000L;
+        }
+        return durationUs;
+    }
+
+    /**
+     * Writes this metadata in a compact binary form,
+     * which can be read back with {@link #readFrom(ByteBuffer)}.
+     *
+     * @param output the output
+     * @throws IOException if writing fails
+     */
+    public void writeTo(@NonNull DataOutput output) throws IOException {
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(colorTableOffset);
+        output.writeShort(colorTableSize);
+        output.writeByte(backgroundIndex);
+        output.writeInt(loopCount);
+        output.writeBoolean(truncated);
+        output.writeInt(frames.length);
+        for (Frame frame : frames) {
+            output.writeInt(frame.offset);
+            output.writeInt(frame.controlOffset);
+            output.writeInt(frame.dataOffset);
+            output.writeInt(frame.delay);
+            output.writeByte(frame.disposal);
+            output.writeShort(frame.transparentIndex);
+            output.writeShort(frame.x);
+            output.writeShort(frame.y);
+            output.writeShort(frame.width);
+            output.writeShort(frame.height);
+            output.writeBoolean(frame.interlaced);
+            output.writeInt(frame.colorTableOffset);
+            output.writeShort(frame.colorTableSize);
+        }
+    }
+
+    /**
+     * Reads metadata that was written by {@link #writeTo(DataOutput)}.
+     * This reads the buffer directly rather than through a stream, which matters
+     * for GIFs with thousands of frames.
+     *
+     * @param input the input, which is advanced past the metadata
+     * @return the metadata
+     * @throws IOException if data is truncated or invalid
+     */
+    @NonNull
+    public static GifMetadata readFrom(@NonNull ByteBuffer input) throws IOException {
+        try {
+            GifMetadata metadata = new GifMetadata();
+            metadata.width = input.getInt();
+            metadata.height = input.getInt();
+            metadata.colorTableOffset = input.getInt();
+            metadata.colorTableSize = input.getShort() & 0xFFFF;
+            metadata.backgroundIndex = input.get() & 0xFF;
+            metadata.loopCount = input.getInt();
+            metadata.truncated = input.get() != 0;
+            int count = input.getInt();
+            if (count <= 0 || count > 1 << 20) throw new IOException("Invalid frame count: " + count);
+            metadata.frames = new Frame[count];
+            for (int i = 0; i < count; i++) {
+                Frame frame = new Frame();
+                frame.offset = input.getInt();
+                frame.controlOffset = input.getInt();
+                frame.dataOffset = input.getInt();
+                frame.delay = input.getInt();
+                frame.disposal = input.get() & 0xFF;
+                frame.transparentIndex = input.getShort();
+                frame.x = input.getShort() & 0xFFFF;
+                frame.y = input.getShort() & 0xFFFF;
+                frame.width = input.getShort() & 0xFFFF;
+                frame.height = input.getShort() & 0xFFFF;
+                frame.interlaced = input.get() != 0;
+                frame.colorTableOffset = input.getInt();
+                frame.colorTableSize = input.getShort() & 0xFFFF;
+                metadata.frames[i] = frame;
+            }
+            return metadata;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Unexpected end of data.", e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An index of the "restart points" of a GIF: frames that {@link GifFrameDecoder} can
+ * decode without decoding the previous ones, because they do not depend on the canvas
+ * contents. A frame is a restart point if:
+ * - it is the first frame
+ * - it covers the whole screen and has no transparent color, so it replaces everything,
+ *   and it is not disposed to previous, which would restore the canvas that it replaced
+ * - the previous frame covers the whole screen and is disposed to background,
+ *   so the canvas is a uniform color that the decoder can reproduce
+ *
+ * Each point records the frame index, the byte offset of its image descriptor and
+ * its timestamp, relative to the start of the GIF. This makes it possible to seek
+ * and to split decoding across threads.
+ *
+ * The index can be serialized with {@link #toByteArray()} and restored with
+ * {@link #fromByteArray(byte[], GifMetadata)}.
+ */
+public class GifRestartIndex {
+
+    private final static int MAGIC = 0x47524958; // GRIX
+    private final static int VERSION = 2;
+
+    private final int mFrameCount;
+    private final int[] mFrames;
+    private final int[] mOffsets;
+    private final long[] mTimestamps;
+
+    private GifRestartIndex(int frameCount, @NonNull int[] frames,
+                            @NonNull int[] offsets, @NonNull long[] timestamps) {
+        mFrameCount = frameCount;
+        mFrames = frames;
+        mOffsets = offsets;
+        mTimestamps = timestamps;
+    }
+
+    /**
+     * Whether the given frame can be decoded without decoding the previous ones.
+     *
+     * @param metadata the metadata
+     * @param index the frame index
+     * @return true if this is a restart point
+     */
+    public static boolean isRestartPoint(@NonNull GifMetadata metadata, int index) {
+        if (index == 0) return true;
+        GifMetadata.Frame frame = metadata.frames[index];
+        if (frame.coversScreen(metadata) && frame.transparentIndex < 0
+                && frame.disposal != GifMetadata.DISPOSAL_PREVIOUS) return true;
+        GifMetadata.Frame previous = metadata.frames[index - 1];
+        return previous.disposal == GifMetadata.DISPOSAL_BACKGROUND
+                && previous.coversScreen(metadata);
+    }
+
+    /**
+     * Builds the index for the given metadata.
+     *
+     * @param metadata the metadata
+     * @return a new index
+     */
+    @NonNull
+    public static GifRestartIndex build(@NonNull GifMetadata metadata) {
+        int frameCount = metadata.getFrameCount();
+        int[] frames = new int[frameCount];
+        int[] offsets = new int[frameCount];
+        long[] timestamps = new long[frameCount];
+        int count = 0;
+        long timestampUs = 0;
+        for (int i = 0; i < frameCount; i++) {
+            GifMetadata.Frame frame = metadata.frames[i];
+            if (isRestartPoint(metadata, i)) {
+                frames[count] = i;
+                offsets[count] = frame.offset;
+                timestamps[count] = timestampUs;
+                count++;
+            }
+            timestampUs += frame.getPlaybackDelay() * 1000L;
+        }
+        return new GifRestartIndex(frameCount,
+                trim(frames, count),
+                trim(offsets, count),
+                trim(timestamps, count));
+    }
+
+    @NonNull
+    private static int[] trim(@NonNull int[] array, int size) {
+        if (array.length == size) return array;
+        int[] result = new int[size];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    @NonNull
+    private static long[] trim(@NonNull long[] array, int size) {
+        if (array.length == size) return array;
+        long[] result = new long[size];
+        System.arraycopy(array, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Returns the number of restart points. This is at least 1,
+     * since the first frame is always a restart point.
+     * @return the number of points
+     */
+    public int size() {
+        return mFrames.length;
+    }
+
+    /**
+     * Returns the frame index of the given point.
+     * @param point the point
+     * @return the frame index
+     */
+    public int getFrame(int point) {
+        return mFrames[point];
+    }
+
+    /**
+     * Returns the byte offset of the image descriptor of the given point,
+     * relative to the start of the GIF data.
+     * @param point the point
+     * @return the byte offset
+     */
+    public int getOffset(int point) {
+        return mOffsets[point];
+    }
+
+    /**
+     * Returns the timestamp of the given point, relative to the start of the GIF,
+     * using {@link GifMetadata.Frame#getPlaybackDelay()}.
+     * @param point the point
+     * @return the timestamp in microseconds
+     */
+    public long getTimestampUs(int point) {
+        return mTimestamps[point];
+    }
+
+    /**
+     * Returns the last point whose timestamp is at or before the given one,
+     * which is where decoding should start in order to reach that time.
+     *
+     * @param timestampUs a timestamp, relative to the start of the GIF
+     * @return the point
+     */
+    public int findPointBefore(long timestampUs) {
+        int low = 0;
+        int high = mTimestamps.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mTimestamps[mid] <= timestampUs) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the last point whose frame is at or before the given one.
+     *
+     * @param frame a frame index
+     * @return the point
+     */
+    public int findPointForFrame(int frame) {
+        int low = 0;
+        int high = mFrames.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mFrames[mid] <= frame) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Serializes this index.
+     * @return the serialized index
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + mFrames.length * 16);
+        DataOutputStream stream = new DataOutputStream(bytes);
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(mFrameCount);
+            stream.writeInt(mFrames.length);
+            for (int i = 0; i < mFrames.length; i++) {
+                stream.writeInt(mFrames[i]);
+                stream.writeInt(mOffsets[i]);
+                stream.writeLong(mTimestamps[i]);
+            }
+            stream.flush();
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores an index that was serialized with {@link #toByteArray()}.
+     * The metadata is used to check that the index refers to the same GIF.
+     *
+     * @param data the serialized index
+     * @param metadata the GIF metadata
+     * @return the index
+     * @throws IllegalArgumentException if data is not a valid index for this GIF
+     */
+    @NonNull
+    public static GifRestartIndex fromByteArray(@NonNull byte[] data, @NonNull GifMetadata metadata) {
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+                throw new IllegalArgumentException("Not a restart index, or unsupported version.");
+            }
+            int frameCount = stream.readInt();
+            int count = stream.readInt();
+            if (frameCount != metadata.getFrameCount() || count < 1 || count > frameCount) {
+                throw new IllegalArgumentException("Restart index does not match this GIF.");
+            }
+            int[] frames = new int[count];
+            int[] offsets = new int[count];
+            long[] timestamps = new long[count];
+            for (int i = 0; i < count; i++) {
+                frames[i] = stream.readInt();
+                offsets[i] = stream.readInt();
+                timestamps[i] = stream.readLong();
+                if (frames[i] < 0 || frames[i] >= frameCount
+                        || (i > 0 && frames[i] <= frames[i - 1])
+                        || offsets[i] != metadata.frames[frames[i]].offset) {
+                    throw new IllegalArgumentException("Restart index does not match this GIF.");
+                }
+            }
+            return new GifRestartIndex(frameCount, frames, offsets, timestamps);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid restart index.", e);
+        }
+    }
+}
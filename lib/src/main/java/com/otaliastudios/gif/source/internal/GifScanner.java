@@ -0,0 +1,260 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.otaliastudios.gif.internal.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks the GIF blocks to collect its {@link GifMetadata}.
+ * Image data is not decoded: the LZW sub-blocks are skipped using their length,
+ * so this is much faster than a full parse and only touches a small part of the data.
+ *
+ * Scanning can be done in one pass with {@link #scan(ByteBuffer)}, or incrementally
+ * with {@link #scanAvailable(ByteBuffer)} while the data is still being written.
+ *
+ * Reference: https://www.w3.org/Graphics/GIF/spec-gif89a.txt
+ */
+public class GifScanner {
+
+    private final static String TAG = GifScanner.class.getSimpleName();
+    private final static Logger LOG = new Logger(TAG);
+
+    private final static int BLOCK_EXTENSION = 0x21;
+    private final static int BLOCK_IMAGE = 0x2C;
+    private final static int BLOCK_TRAILER = 0x3B;
+    private final static int EXTENSION_GRAPHIC_CONTROL = 0xF9;
+    private final static int EXTENSION_APPLICATION = 0xFF;
+
+    private ByteBuffer mData;
+    private int mStart;
+    private int mPosition;
+    private int mLimit;
+
+    // Incremental state
+    private GifMetadata mMetadata;
+    private final List<GifMetadata.Frame> mFrames = new ArrayList<>();
+    private GifMetadata.Frame mFrame = new GifMetadata.Frame();
+    private int mResumeOffset; // Offset of the first block that was not fully available
+    private boolean mEnded;
+
+    /**
+     * Scans the given data. The buffer position and limit are used as the GIF
+     * boundaries, and the buffer itself is not modified.
+     *
+     * @param data the GIF data
+     * @return the metadata
+     * @throws IllegalArgumentException if this is not a GIF or it has no frames
+     */
+    @NonNull
+    public GifMetadata scan(@NonNull ByteBuffer data) {
+        mMetadata = null;
+        mFrames.clear();
+        mFrame = new GifMetadata.Frame();
+        mEnded = false;
+        GifMetadata metadata = scanAvailable(data);
+        if (metadata == null) {
+            throw new IllegalArgumentException("Not a GIF.");
+        }
+        if (metadata.frames.length == 0) {
+            throw new IllegalArgumentException("GIF has no frames.");
+        }
+        return metadata;
+    }
+
+    /**
+     * Scans the given data incrementally, for GIFs that are still being written.
+     * Each call should pass the same data as before, plus any bytes that have become
+     * available since then: the scan restarts from the first block that was
+     * incomplete, and the same {@link GifMetadata} instance is returned and updated.
+     *
+     * The metadata only contains frames that are fully available, and
+     * {@link GifMetadata#truncated} stays true until the trailer is found.
+     *
+     * @param data the GIF data available so far
+     * @return the metadata, or null if the header is not available yet
+     * @throws IllegalArgumentException if this is not a GIF
+     */
+    @Nullable
+    public GifMetadata scanAvailable(@NonNull ByteBuffer data) {
+        mData = data;
+        mStart = data.position();
+        mLimit = data.limit();
+        try {
+            if (mMetadata == null && !scanHeader()) return null;
+            if (!mEnded) {
+                int frames = mFrames.size();
+                scanBlocks();
+                if (frames != mFrames.size() || mMetadata.frames == null) {
+                    mMetadata.frames = mFrames.toArray(new GifMetadata.Frame[0]);
+                }
+            }
+            mMetadata.truncated = !mEnded;
+            return mMetadata;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unexpected end of data.", e);
+        } finally {
+            mData = null;
+        }
+    }
+
+    /**
+     * Whether the scan reached the end of the GIF, either the trailer
+     * or some unexpected data after the frames.
+     *
+     * @return true if ended
+     */
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    private boolean scanHeader() {
+        mPosition = mStart;
+        if (mLimit - mPosition < 3) return false;
+        if (readByte() != 'G' || readByte() != 'I' || readByte() != 'F') {
+            throw new IllegalArgumentException("Not a GIF.");
+        }
+        if (mLimit - mStart < 13) return false;
+        mPosition += 3; // Version: 87a or 89a.
+        GifMetadata metadata = new GifMetadata();
+        metadata.width = readShort();
+        metadata.height = readShort();
+        int packed = readByte();
+        metadata.backgroundIndex = readByte();
+        mPosition++; // Pixel aspect ratio.
+        if ((packed & 0x80) != 0) {
+            metadata.colorTableSize = 2 << (packed & 0x07);
+            metadata.colorTableOffset = mPosition - mStart;
+            mPosition += 3 * metadata.colorTableSize;
+            if (mPosition > mLimit) return false;
+        }
+        mMetadata = metadata;
+        mResumeOffset = mPosition - mStart;
+        return true;
+    }
+
+    /**
+     * Reads blocks until the end of the GIF or the end of the data. Blocks that
+     * are not fully available are read again in the next scan, so they can safely
+     * modify the current frame or metadata.
+     */
+    private void scanBlocks() {
+        GifMetadata metadata = mMetadata;
+        mPosition = mStart + mResumeOffset;
+        while (!mEnded && mPosition < mLimit) {
+            int block = readByte();
+            boolean complete = true;
+            switch (block) {
+                case BLOCK_EXTENSION:
+                    if (!has(1)) {
+                        complete = false;
+                        break;
+                    }
+                    int label = readByte();
+                    if (label == EXTENSION_GRAPHIC_CONTROL && has(6) && peekByte() == 4) {
+                        mFrame.controlOffset = mPosition - 2 - mStart;
+                        mPosition++; // Block size.
+                        int flags = readByte();
+                        mFrame.disposal = (flags & 0x1C) >> 2;
+                        mFrame.delay = readShort() * 10;
+                        int transparentIndex = readByte();
+                        mFrame.transparentIndex = (flags & 0x01) != 0 ? transparentIndex : -1;
+                    } else if (label == EXTENSION_APPLICATION && has(12)) {
+                        readApplicationExtension(metadata);
+                    }
+                    complete = skipSubBlocks();
+                    break;
+                case BLOCK_IMAGE:
+                    if (!has(9)) {
+                        complete = false;
+                        break;
+                    }
+                    GifMetadata.Frame frame = mFrame;
+                    frame.offset = mPosition - 1 - mStart;
+                    frame.x = readShort();
+                    frame.y = readShort();
+                    frame.width = readShort();
+                    frame.height = readShort();
+                    int flags = readByte();
+                    frame.interlaced = (flags & 0x40) != 0;
+                    if ((flags & 0x80) != 0) {
+                        frame.colorTableSize = 2 << (flags & 0x07);
+                        frame.colorTableOffset = mPosition - mStart;
+                        mPosition += 3 * frame.colorTableSize;
+                    }
+                    frame.dataOffset = mPosition - mStart;
+                    mPosition++; // LZW minimum code size.
+                    // Keep the frames that we can fully decode.
+                    complete = skipSubBlocks();
+                    if (complete) {
+                        mFrames.add(frame);
+                        mFrame = new GifMetadata.Frame();
+                    }
+                    break;
+                case BLOCK_TRAILER:
+                    mEnded = true;
+                    break;
+                default:
+                    // Some encoders write garbage after the last frame.
+                    LOG.w("Unknown block: " + block + " at " + (mPosition - 1 - mStart));
+                    if (mFrames.isEmpty()) {
+                        throw new IllegalArgumentException("Unknown block: " + block);
+                    }
+                    mEnded = true;
+                    break;
+            }
+            if (!complete) break;
+            mResumeOffset = mPosition - mStart;
+        }
+    }
+
+    private void readApplicationExtension(@NonNull GifMetadata metadata) {
+        if (peekByte() != 11) return;
+        mPosition++;
+        StringBuilder builder = new StringBuilder(11);
+        for (int i = 0; i < 11; i++) {
+            builder.append((char) readByte());
+        }
+        String identifier = builder.toString();
+        if ((identifier.equals("NETSCAPE2.0") || identifier.equals("ANIMEXTS1.0"))
+                && has(4) && peekByte() == 3 && (mData.get(mPosition + 1) & 0xFF) == 1) {
+            // Sub-block: size (3), id (1), loop count (2). Don't move, we'll skip it later.
+            metadata.loopCount = (mData.get(mPosition + 2) & 0xFF)
+                    | ((mData.get(mPosition + 3) & 0xFF) << 8);
+        }
+    }
+
+    /**
+     * Skips data sub-blocks until the block terminator.
+     * @return false if data ended before the terminator
+     */
+    private boolean skipSubBlocks() {
+        while (mPosition < mLimit) {
+            int size = readByte();
+            if (size == 0) return true;
+            mPosition += size;
+        }
+        return false;
+    }
+
+    private boolean has(int bytes) {
+        return mPosition + bytes <= mLimit;
+    }
+
+    private int peekByte() {
+        return mData.get(mPosition) & 0xFF;
+    }
+
+    private int readByte() {
+        return mData.get(mPosition++) & 0xFF;
+    }
+
+    private int readShort() {
+        int low = readByte();
+        return low | (readByte() << 8);
+    }
+}
@@ -1,9 +1,10 @@
 package com.otaliastudios.gif.transcode;
 
-import android.graphics.Bitmap;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
@@ -11,6 +12,8 @@ import androidx.annotation.NonNull;
 import com.otaliastudios.gif.internal.MediaCodecBuffers;
 import com.otaliastudios.gif.sink.DataSink;
 import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.gif.transcode.internal.EncoderCallback;
+import com.otaliastudios.gif.transcode.internal.WakeSignal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -25,7 +28,8 @@ public abstract class BaseTranscoder implements Transcoder {
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
 
-    private final DataSource mDataSource;
+    private DataSource mDataSource;
+    private boolean mHasNextDataSource;
     private final DataSource.Chunk mDataChunk;
     private final DataSink mDataSink;
 
@@ -34,6 +38,9 @@ public abstract class BaseTranscoder implements Transcoder {
     private MediaCodecBuffers mEncoderBuffers;
     private boolean mEncoderStarted;
     private MediaFormat mActualOutputFormat;
+    private Handler mCallbackHandler;
+    private WakeSignal mCallbackSignal;
+    private EncoderCallback mEncoderCallback;
 
     private boolean mIsEncoderEOS;
     private boolean mIsDataSourceEOS;
@@ -53,11 +60,34 @@ public abstract class BaseTranscoder implements Transcoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (mCallbackHandler != null) {
+            // The callback must be set before configuring.
+            mEncoderCallback = new EncoderCallback(mCallbackSignal);
+            mEncoder.setCallback(mEncoderCallback, mCallbackHandler);
+        }
         onConfigureEncoder(desiredOutputFormat, mEncoder);
         onStartEncoder(desiredOutputFormat, mEncoder);
         onStarted(mDataSource.getTrackFormat(), desiredOutputFormat, mEncoder);
     }
 
+    /**
+     * Puts the encoder in asynchronous mode. Its events are received on the given
+     * handler thread, and each of them is signaled to the given signal, so that the
+     * caller can wait for it instead of polling. Input and output buffers are still
+     * consumed on the caller thread, during {@link #transcode(boolean)}.
+     * This must be called before {@link #setUp(MediaFormat)}, and requires API 23.
+     *
+     * @param handler a handler for the callback thread
+     * @param signal a signal that is notified of encoder events
+     */
+    public final void setEncoderCallback(@NonNull Handler handler, @NonNull WakeSignal signal) {
+        if (Build.VERSION.SDK_INT < 23) {
+            throw new IllegalStateException("Encoder callbacks need API 23.");
+        }
+        mCallbackHandler = handler;
+        mCallbackSignal = signal;
+    }
+
     /**
      * Wraps the configure operation on the encoder.
      * @param format output format
@@ -89,6 +119,58 @@ public abstract class BaseTranscoder implements Transcoder {
                                    @NonNull MediaCodec encoder) {
     }
 
+    /**
+     * Returns the chunk that is passed to {@link DataSource#read(DataSource.Chunk)}.
+     * Subclasses can use this in {@link #onStarted(MediaFormat, MediaFormat, MediaCodec)}
+     * to fill the requested fields.
+     * @return the data chunk
+     */
+    @NonNull
+    protected final DataSource.Chunk getDataChunk() {
+        return mDataChunk;
+    }
+
+    /**
+     * Tells whether more sources will be passed to {@link #setDataSource(DataSource)}
+     * after the current one. If so, the end of the current source is not signaled,
+     * and the encoder keeps running. Defaults to false.
+     * @param hasNext whether more sources will follow
+     */
+    public final void setHasNextDataSource(boolean hasNext) {
+        mHasNextDataSource = hasNext;
+    }
+
+    /**
+     * Returns true if the current source was fully read, and we are waiting for
+     * the next one to be passed to {@link #setDataSource(DataSource)}.
+     * @return true if waiting for the next source
+     */
+    public final boolean isWaitingForDataSource() {
+        return mHasNextDataSource && !mIsDataSourceEOS && mDataSource.isDrained();
+    }
+
+    /**
+     * Replaces the current source, which must have been fully read, with the next one.
+     * The encoder is not touched. Subclasses are notified through
+     * {@link #onDataSourceChanged(MediaFormat)}.
+     * @param dataSource the next source, already started
+     */
+    protected final void setDataSource(@NonNull DataSource dataSource) {
+        if (!isWaitingForDataSource()) {
+            throw new IllegalStateException("Can't change source before the current one is drained.");
+        }
+        mDataSource = dataSource;
+        onDataSourceChanged(dataSource.getTrackFormat());
+    }
+
+    /**
+     * Called when the source was replaced by {@link #setDataSource(DataSource)}.
+     * Subclasses can use this to update the requested chunk fields.
+     * @param inputFormat the new input format
+     */
+    protected void onDataSourceChanged(@NonNull MediaFormat inputFormat) {
+    }
+
     @Override
     public final boolean isFinished() {
         return mIsEncoderEOS;
@@ -127,25 +209,43 @@ public abstract class BaseTranscoder implements Transcoder {
             return DRAIN_STATE_NONE;
         }
 
+        if (mDataSource.isDrained() && mHasNextDataSource && !forceInputEos) {
+            return DRAIN_STATE_NONE; // Wait for setDataSource()
+        }
+
         if (mDataSource.isDrained() || forceInputEos) {
             mIsDataSourceEOS = true;
             return DRAIN_STATE_NONE;
         }
 
+        if (!isReadyForSource()) {
+            return DRAIN_STATE_NONE;
+        }
+
+        mDataChunk.setDirtyUnknown();
+        mDataChunk.nextTimestampUs = Long.MAX_VALUE;
         mDataSource.read(mDataChunk);
-        onDrainSource(timeoutUs, mDataChunk.bitmap, mDataChunk.timestampUs, mDataSource.isDrained());
+        onDrainSource(timeoutUs, mDataChunk, mDataSource.isDrained() && !mHasNextDataSource);
         return DRAIN_STATE_CONSUMED;
     }
 
+    /**
+     * Whether the source should be read now. Subclasses can return false
+     * when they hold data that could not be passed to the encoder yet.
+     * @return true if the source should be read
+     */
+    protected boolean isReadyForSource() {
+        return true;
+    }
+
     /**
      * Called after source has been drained.
      *
      * @param timeoutUs timeout in us
-     * @param bitmap the source bitmap
+     * @param chunk the source chunk, holding either a bitmap or indices
      * @param endOfStream whether this is the last time
      */
-    protected abstract void onDrainSource(long timeoutUs, @NonNull Bitmap bitmap,
-                                          long presentationTimeUs,
+    protected abstract void onDrainSource(long timeoutUs, @NonNull DataSource.Chunk chunk,
                                           boolean endOfStream);
 
     /**
@@ -171,7 +271,12 @@ public abstract class BaseTranscoder implements Transcoder {
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
 
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result;
+        if (mEncoderCallback != null) {
+            result = mEncoderCallback.dequeueOutputBuffer(mBufferInfo);
+        } else {
+            result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        }
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -201,6 +306,21 @@ public abstract class BaseTranscoder implements Transcoder {
         return DRAIN_STATE_CONSUMED;
     }
 
+    /**
+     * Returns the index of an encoder input buffer, or {@link MediaCodec#INFO_TRY_AGAIN_LATER}.
+     * Subclasses should use this rather than the encoder method, which can't be used
+     * in asynchronous mode.
+     * @param encoder the encoder
+     * @param timeoutUs a timeout, ignored in asynchronous mode
+     * @return an index or INFO_TRY_AGAIN_LATER
+     */
+    protected final int dequeueInputBuffer(@NonNull MediaCodec encoder, long timeoutUs) {
+        if (mEncoderCallback != null) {
+            return mEncoderCallback.dequeueInputBuffer();
+        }
+        return encoder.dequeueInputBuffer(timeoutUs);
+    }
+
     /**
      * Called to feed the encoder with processed data.
      * @param encoder the encoder
@@ -15,21 +15,29 @@
  */
 package com.otaliastudios.gif.transcode;
 
-import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 
+import com.otaliastudios.gif.GIFOptions;
 import com.otaliastudios.gif.internal.MediaCodecBuffers;
 import com.otaliastudios.gif.sink.DataSink;
 import com.otaliastudios.gif.source.DataSource;
 import com.otaliastudios.gif.time.TimeInterpolator;
 import com.otaliastudios.gif.transcode.internal.VideoDecoderOutput;
+import com.otaliastudios.gif.transcode.internal.VideoCompositingOutput;
 import com.otaliastudios.gif.transcode.internal.VideoEncoderInput;
 import com.otaliastudios.gif.internal.Logger;
 import com.otaliastudios.gif.internal.MediaFormatConstants;
 import com.otaliastudios.gif.transcode.internal.VideoFrameDropper;
+import com.otaliastudios.gif.transcode.internal.VideoFrameOutput;
+import com.otaliastudios.gif.transcode.internal.VideoPaletteOutput;
+import com.otaliastudios.gif.transcode.internal.VideoTextureOutput;
+import com.otaliastudios.gif.transcode.internal.VideoYuvOutput;
 
 import java.nio.ByteBuffer;
 
@@ -40,21 +48,67 @@ public class VideoTranscoder extends BaseTranscoder {
     @SuppressWarnings("unused")
     private static final Logger LOG = new Logger(TAG);
 
-    private VideoDecoderOutput mDecoderOutputSurface;
+    // If creating the EGL context takes longer than this, something is wrong with the GPU
+    // stack (for example, a software renderer in an emulator), and we use the CPU instead.
+    private static final long EGL_SETUP_SLOW_MILLIS = 500;
+
+    private VideoFrameOutput mDecoderOutputSurface;
+    private int mFrameOutputFormat; // The chunk format that the output was created for
     private VideoEncoderInput mEncoderInputSurface;
     private MediaCodec mEncoder; // Keep this since we want to signal EOS on it.
     private VideoFrameDropper mFrameDropper;
-    private final TimeInterpolator mTimeInterpolator;
+    private final Rect mDirty = new Rect(); // Changes since the last rendered frame
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private float mFrameScaleX;
+    private float mFrameScaleY;
+    private TimeInterpolator mTimeInterpolator;
+    // The next chunk time, interpolated in advance, so that each time is interpolated once
+    private long mNextSourceTimeUs = Long.MIN_VALUE;
+    private long mNextTimeUs;
+    private MediaFormat mOutputFormat;
     private final int mExtraRotation;
+    private int mRenderBackend;
+    private boolean mRenderLastFrame = true;
+
+    // CPU backend
+    private VideoYuvOutput mYuvOutput;
+    private int mColorFormat;
+    private boolean mHasPendingFrame;
+    private long mPendingFrameTimeUs;
+    private boolean mPendingFrameEos;
+    private boolean mPendingFrameEmpty; // Only signals the end of stream
 
     public VideoTranscoder(
             @NonNull DataSource dataSource,
             @NonNull DataSink dataSink,
             @NonNull TimeInterpolator timeInterpolator,
             int rotation) {
+        this(dataSource, dataSink, timeInterpolator, rotation, GIFOptions.RENDER_BACKEND_SURFACE);
+    }
+
+    public VideoTranscoder(
+            @NonNull DataSource dataSource,
+            @NonNull DataSink dataSink,
+            @NonNull TimeInterpolator timeInterpolator,
+            int rotation,
+            @GIFOptions.RenderBackend int renderBackend) {
         super(dataSource, dataSink);
         mTimeInterpolator = timeInterpolator;
         mExtraRotation = rotation;
+        mRenderBackend = renderBackend;
+    }
+
+    /**
+     * Whether the last chunk of the last source should be rendered. It repeats the previous
+     * frame at the time where the source ends, so that the output has the right duration.
+     * When false, the input ends after the previous frame, which is useful when the output
+     * is joined with other frames that start at that time. Defaults to true.
+     *
+     * @param render true to render the last frame
+     */
+    public void setRenderLastFrame(boolean render) {
+        mRenderLastFrame = render;
     }
 
     @Override
@@ -68,12 +122,51 @@ public class VideoTranscoder extends BaseTranscoder {
         boolean flip = (mExtraRotation % 180) != 0;
         format.setInteger(MediaFormat.KEY_WIDTH, flip ? height : width);
         format.setInteger(MediaFormat.KEY_HEIGHT, flip ? width : height);
+        if (mRenderBackend != GIFOptions.RENDER_BACKEND_CPU) {
+            setUpEgl();
+        }
+        if (mRenderBackend == GIFOptions.RENDER_BACKEND_CPU) {
+            // Encode from byte buffers, with a YUV format that the encoder supports.
+            String mimeType = format.getString(MediaFormat.KEY_MIME);
+            MediaCodecInfo.CodecCapabilities capabilities
+                    = encoder.getCodecInfo().getCapabilitiesForType(mimeType);
+            mColorFormat = VideoYuvOutput.findColorFormat(capabilities);
+            if (mColorFormat < 0) {
+                throw new RuntimeException("Encoder " + encoder.getName() +
+                        " does not support YUV 4:2:0 input.");
+            }
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
+        }
         super.onConfigureEncoder(format, encoder);
     }
 
+    /**
+     * Creates the EGL context before configuring the encoder, so that
+     * we can still switch to the CPU backend if this fails or is too slow.
+     */
+    private void setUpEgl() {
+        long start = System.nanoTime();
+        try {
+            mEncoderInputSurface = new VideoEncoderInput();
+        } catch (RuntimeException e) {
+            LOG.w("Could not create the EGL context. Falling back to CPU backend.", e);
+            mRenderBackend = GIFOptions.RENDER_BACKEND_CPU;
+            return;
+        }
+        long millis = (System.nanoTime() - start) / 1000000L;
+        if (millis > EGL_SETUP_SLOW_MILLIS) {
+            LOG.w("EGL context took " + millis + "ms to create. Falling back to CPU backend.");
+            mEncoderInputSurface.release();
+            mEncoderInputSurface = null;
+            mRenderBackend = GIFOptions.RENDER_BACKEND_CPU;
+        }
+    }
+
     @Override
     protected void onStartEncoder(@NonNull MediaFormat format, @NonNull MediaCodec encoder) {
-        mEncoderInputSurface = new VideoEncoderInput(encoder.createInputSurface());
+        if (mEncoderInputSurface != null) {
+            mEncoderInputSurface.setSurface(encoder.createInputSurface());
+        }
         super.onStartEncoder(format, encoder);
     }
 
@@ -84,14 +177,57 @@ public class VideoTranscoder extends BaseTranscoder {
 
         // The rotation we should apply is the intrinsic source rotation, plus any extra
         // rotation that was set into the GIFOptions.
-        mDecoderOutputSurface = new VideoDecoderOutput();
-        mDecoderOutputSurface.setRotation(mExtraRotation % 360);
-
         // Frame dropping support.
         mFrameDropper = VideoFrameDropper.newDropper(
-                inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
                 outputFormat.getInteger(MediaFormat.KEY_FRAME_RATE));
 
+        mOutputFormat = outputFormat;
+        setUpFrameTransform(inputFormat);
+        if (mRenderBackend == GIFOptions.RENDER_BACKEND_PALETTE) {
+            getDataChunk().requestedFormat = DataSource.Chunk.FORMAT_INDEXED;
+        } else if (mRenderBackend == GIFOptions.RENDER_BACKEND_COMPOSITE) {
+            getDataChunk().requestedFormat = DataSource.Chunk.FORMAT_FRAMES;
+        } else if (mRenderBackend == GIFOptions.RENDER_BACKEND_CPU) {
+            // Indices save a copy, since we look up colors for each output pixel anyway.
+            getDataChunk().requestedFormat = DataSource.Chunk.FORMAT_INDEXED;
+            createYuvOutput(outputFormat, encoder, mExtraRotation % 360);
+        }
+    }
+
+    /**
+     * Switches to the next source in a concatenation, keeping the encoder, the EGL
+     * context and the frame output. Only the scale and sample size are recomputed.
+     * This can be called when {@link #isWaitingForDataSource()} returns true.
+     *
+     * @param dataSource the next source, already started
+     * @param timeInterpolator the interpolator for the next source
+     */
+    public void setDataSource(@NonNull DataSource dataSource, @NonNull TimeInterpolator timeInterpolator) {
+        mTimeInterpolator = timeInterpolator;
+        setDataSource(dataSource);
+    }
+
+    @Override
+    protected void onDataSourceChanged(@NonNull MediaFormat inputFormat) {
+        super.onDataSourceChanged(inputFormat);
+        setUpFrameTransform(inputFormat);
+        if (mDecoderOutputSurface != null) {
+            mDecoderOutputSurface.setSize(mFrameWidth, mFrameHeight);
+            mDecoderOutputSurface.setScale(mFrameScaleX, mFrameScaleY);
+        }
+        if (mYuvOutput != null) {
+            mYuvOutput.setScale(mFrameScaleX, mFrameScaleY);
+        }
+        // The output still holds the last frame of the previous source.
+        mDirty.set(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Computes the crop scale and the sample size for the given input,
+     * and requests the sample size to the source.
+     */
+    private void setUpFrameTransform(@NonNull MediaFormat inputFormat) {
+        MediaFormat outputFormat = mOutputFormat;
         // Cropping support.
         // Ignoring any outputFormat KEY_ROTATION (which is applied at playback time), the rotation
         // difference between input and output is mSourceRotation + mExtraRotation.
@@ -110,8 +246,83 @@ public class VideoTranscoder extends BaseTranscoder {
             scaleY = outputRatio / inputRatio;
         }
 
-        mDecoderOutputSurface.setSize((int) inputWidth, (int) inputHeight);
-        mDecoderOutputSurface.setScale(scaleX, scaleY);
+        // Subsampling support. The visible part of the input is inputWidth / scaleX
+        // times inputHeight / scaleY, so we can ask the source for smaller frames as
+        // long as this region stays at least as big as the output.
+        // When compositing on the GPU, frames are not sampled, but the canvas is scaled when drawn.
+        int sampleSize = computeSampleSize((int) inputWidth, (int) inputHeight,
+                outputWidth * scaleX, outputHeight * scaleY);
+        if (mRenderBackend == GIFOptions.RENDER_BACKEND_COMPOSITE) sampleSize = 1;
+        getDataChunk().requestedSampleSize = sampleSize;
+        LOG.i("Requesting sample size " + sampleSize + "." +
+                " input:" + (int) inputWidth + "x" + (int) inputHeight +
+                " output:" + (int) outputWidth + "x" + (int) outputHeight);
+
+        mFrameWidth = Math.max(1, (int) inputWidth / sampleSize);
+        mFrameHeight = Math.max(1, (int) inputHeight / sampleSize);
+        mFrameScaleX = scaleX;
+        mFrameScaleY = scaleY;
+    }
+
+    private void createYuvOutput(@NonNull MediaFormat outputFormat, @NonNull MediaCodec encoder, int rotation) {
+        int width = outputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = outputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        int stride = width;
+        int sliceHeight = height;
+        if (Build.VERSION.SDK_INT >= 21) {
+            // Encoders might want aligned planes.
+            MediaFormat inputFormat = encoder.getInputFormat();
+            if (inputFormat.containsKey(MediaFormat.KEY_STRIDE)) {
+                stride = inputFormat.getInteger(MediaFormat.KEY_STRIDE);
+            }
+            if (inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+                sliceHeight = inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT);
+            }
+        }
+        mYuvOutput = new VideoYuvOutput(width, height, stride, sliceHeight, mColorFormat);
+        mYuvOutput.setScale(mFrameScaleX, mFrameScaleY);
+        mYuvOutput.setRotation(rotation);
+    }
+
+    /**
+     * Creates the output on the first frame, since the source
+     * might not respect the requested format.
+     */
+    @NonNull
+    private VideoFrameOutput createFrameOutput(@NonNull DataSource.Chunk chunk) {
+        VideoFrameOutput output;
+        if (chunk.format == DataSource.Chunk.FORMAT_FRAMES) {
+            output = new VideoCompositingOutput();
+        } else if (chunk.format == DataSource.Chunk.FORMAT_INDEXED) {
+            output = new VideoPaletteOutput();
+        } else if (mRenderBackend == GIFOptions.RENDER_BACKEND_SURFACE) {
+            output = new VideoDecoderOutput();
+        } else {
+            if (mRenderBackend == GIFOptions.RENDER_BACKEND_PALETTE) {
+                LOG.w("Source does not support indexed frames. Falling back to texture backend.");
+            } else if (mRenderBackend == GIFOptions.RENDER_BACKEND_COMPOSITE) {
+                LOG.w("Source does not support raw frames. Falling back to texture backend.");
+            }
+            output = new VideoTextureOutput();
+        }
+        output.setRotation(mExtraRotation % 360);
+        output.setSize(mFrameWidth, mFrameHeight);
+        output.setScale(mFrameScaleX, mFrameScaleY);
+        return output;
+    }
+
+    /**
+     * Returns the biggest integer sample size such that the sampled input
+     * is still at least as big as the required size.
+     */
+    private static int computeSampleSize(int inputWidth, int inputHeight,
+                                         float requiredWidth, float requiredHeight) {
+        int sampleSize = 1;
+        while (inputWidth / (sampleSize + 1) >= requiredWidth
+                && inputHeight / (sampleSize + 1) >= requiredHeight) {
+            sampleSize++;
+        }
+        return sampleSize;
     }
 
     @Override
@@ -124,25 +335,107 @@ public class VideoTranscoder extends BaseTranscoder {
             mEncoderInputSurface.release();
             mEncoderInputSurface = null;
         }
+        if (mYuvOutput != null) {
+            mYuvOutput.release();
+            mYuvOutput = null;
+        }
         super.release();
         mEncoder = null;
     }
 
     @Override
     protected boolean onFeedEncoder(@NonNull MediaCodec encoder, @NonNull MediaCodecBuffers encoderBuffers, long timeoutUs) {
-        // We do not feed the encoder, instead we wait for the encoder surface onFrameAvailable callback.
-        return false;
+        // With OpenGL, we do not feed the encoder, instead we wait for the encoder surface
+        // onFrameAvailable callback. With the CPU backend, we queue the rendered frame.
+        if (!mHasPendingFrame) return false;
+        int index = dequeueInputBuffer(encoder, timeoutUs);
+        if (index < 0) return false;
+        int size = mPendingFrameEmpty ? 0 : mYuvOutput.writeFrame(encoderBuffers.getInputBuffer(index));
+        int flags = mPendingFrameEos ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+        encoder.queueInputBuffer(index, 0, size, mPendingFrameTimeUs, flags);
+        mHasPendingFrame = false;
+        mPendingFrameEmpty = false;
+        return true;
     }
 
     @Override
-    protected void onDrainSource(long timeoutUs, @NonNull Bitmap bitmap, long presentationTimeUs, boolean endOfStream) {
-        long interpolatedTimeUs = mTimeInterpolator.interpolate(presentationTimeUs);
-        if (mFrameDropper.shouldRenderFrame(interpolatedTimeUs)) {
-            mDecoderOutputSurface.drawFrame(bitmap);
+    protected boolean isReadyForSource() {
+        // The CPU backend holds a single frame, so wait until it was queued.
+        return !mHasPendingFrame;
+    }
+
+    @Override
+    protected void onDrainSource(long timeoutUs, @NonNull DataSource.Chunk chunk, boolean endOfStream) {
+        long interpolatedTimeUs = interpolate(chunk.timestampUs);
+        if (endOfStream && !mRenderLastFrame) {
+            // The previous frame was the last one, so end the input without this chunk.
+            if (mYuvOutput != null) {
+                mHasPendingFrame = true;
+                mPendingFrameEmpty = true;
+                mPendingFrameTimeUs = interpolatedTimeUs;
+                mPendingFrameEos = true;
+            } else {
+                mEncoder.signalEndOfInputStream();
+            }
+            return;
+        }
+        // The output holds the last rendered frame, so we must also
+        // redraw the changes of the frames that were dropped since then.
+        // Always render the last frame, which defines the output duration.
+        mDirty.union(chunk.dirty);
+        boolean render = endOfStream || shouldRenderFrame(chunk, interpolatedTimeUs);
+        if (mYuvOutput != null) {
+            if (render) {
+                mYuvOutput.drawFrame(chunk, mDirty);
+                mDirty.setEmpty();
+                mHasPendingFrame = true;
+                mPendingFrameTimeUs = interpolatedTimeUs;
+                mPendingFrameEos = endOfStream;
+            }
+            return;
+        }
+        if (mDecoderOutputSurface != null && chunk.format != mFrameOutputFormat) {
+            // A concatenated source did not respect the requested format.
+            LOG.w("Chunk format changed. Recreating the frame output.");
+            mDecoderOutputSurface.release();
+            mDecoderOutputSurface = null;
+        }
+        if (mDecoderOutputSurface == null) {
+            mDecoderOutputSurface = createFrameOutput(chunk);
+            mFrameOutputFormat = chunk.format;
+        }
+        if (render) {
+            mDecoderOutputSurface.drawFrame(chunk, mDirty);
+            mDirty.setEmpty();
             mEncoderInputSurface.onFrame(interpolatedTimeUs);
+        } else {
+            mDecoderOutputSurface.skipFrame(chunk);
         }
         if (endOfStream) {
             mEncoder.signalEndOfInputStream();
         }
     }
+
+    /**
+     * Whether the chunk should be rendered, which depends on how long it stays on screen.
+     * If the source does not know when the next chunk comes, the chunk is rendered.
+     */
+    private boolean shouldRenderFrame(@NonNull DataSource.Chunk chunk, long interpolatedTimeUs) {
+        if (chunk.nextTimestampUs == Long.MAX_VALUE) return true;
+        long nextInterpolatedTimeUs = interpolate(chunk.nextTimestampUs);
+        return mFrameDropper.shouldRenderFrame(interpolatedTimeUs, nextInterpolatedTimeUs);
+    }
+
+    /**
+     * Interpolates the given time. The next chunk time is interpolated in advance
+     * by {@link #shouldRenderFrame(DataSource.Chunk, long)}, so we reuse it, since
+     * interpolators expect each time to come once and in order.
+     */
+    private long interpolate(long timeUs) {
+        if (timeUs != mNextSourceTimeUs) {
+            mNextSourceTimeUs = timeUs;
+            mNextTimeUs = mTimeInterpolator.interpolate(timeUs);
+        }
+        return mNextTimeUs;
+    }
 }
@@ -0,0 +1,329 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Converts ARGB frames to YUV 4:2:0 buffers, in any of {@link #FORMAT_I420},
+ * {@link #FORMAT_NV12} or {@link #FORMAT_NV21}, with BT.601 or BT.709 coefficients
+ * and full or limited range. Alpha is ignored. Each chroma sample is computed from
+ * the average color of the four pixels that it covers.
+ *
+ * Conversion uses 8-bit fixed point coefficients, computed once when this object
+ * is created. Output is written into caller buffers, which can have a bigger stride
+ * and slice height than the frame, like encoder input buffers often do.
+ *
+ * When an executor is passed, frames are split into horizontal stripes of whole chroma
+ * rows, which are converted in parallel, with the caller thread taking the first one.
+ * Callers that already work in stripes can use {@link #convertRows} directly.
+ *
+ * Instances can be reused for frames of any size, but are not thread safe.
+ */
+public class ArgbYuvConverter {
+
+    /**
+     * Planar Y, then U, then V.
+     */
+    public final static int FORMAT_I420 = 0;
+
+    /**
+     * Planar Y, then interleaved U and V.
+     */
+    public final static int FORMAT_NV12 = 1;
+
+    /**
+     * Planar Y, then interleaved V and U.
+     */
+    public final static int FORMAT_NV21 = 2;
+
+    /**
+     * ITU-R BT.601 coefficients, used for standard definition video.
+     */
+    public final static int STANDARD_BT601 = 0;
+
+    /**
+     * ITU-R BT.709 coefficients, used for high definition video.
+     */
+    public final static int STANDARD_BT709 = 1;
+
+    private final int mFormat;
+    private final int mYR, mYG, mYB, mYOffset;
+    private final int mUR, mUG, mUB;
+    private final int mVR, mVG, mVB;
+
+    private final Stripe[] mStripes;
+    private final StripeRunner mRunner;
+
+    /**
+     * Creates a converter that works on the caller thread.
+     *
+     * @param format one of the FORMAT constants
+     * @param standard one of the STANDARD constants
+     * @param fullRange true for 0-255 values, false for 16-235 luma and 16-240 chroma
+     */
+    public ArgbYuvConverter(int format, int standard, boolean fullRange) {
+        this(format, standard, fullRange, null, 1);
+    }
+
+    /**
+     * Creates a converter that splits frames into the given number of stripes,
+     * and converts all of them but one on the given executor.
+     *
+     * @param format one of the FORMAT constants
+     * @param standard one of the STANDARD constants
+     * @param fullRange true for 0-255 values, false for 16-235 luma and 16-240 chroma
+     * @param executor the executor, or null to work on the caller thread
+     * @param stripes the number of stripes, ignored if executor is null
+     */
+    public ArgbYuvConverter(int format, int standard, boolean fullRange,
+                            @Nullable ExecutorService executor, int stripes) {
+        if (format != FORMAT_I420 && format != FORMAT_NV12 && format != FORMAT_NV21) {
+            throw new IllegalArgumentException("Invalid format: " + format);
+        }
+        if (standard != STANDARD_BT601 && standard != STANDARD_BT709) {
+            throw new IllegalArgumentException("Invalid standard: " + standard);
+        }
+        mFormat = format;
+        // Coefficients are scaled by 256, and chroma coefficients sum to 0.
+        if (standard == STANDARD_BT601) {
+            if (fullRange) {
+                mYR = 77; mYG = 150; mYB = 29;
+                mUR = -43; mUG = -85; mUB = 128;
+                mVR = 128; mVG = -107; mVB = -21;
+            } else {
+                mYR = 66; mYG = 129; mYB = 25;
+                mUR = -38; mUG = -74; mUB = 112;
+                mVR = 112; mVG = -94; mVB = -18;
+            }
+        } else {
+            if (fullRange) {
+                mYR = 54; mYG = 183; mYB = 19;
+                mUR = -29; mUG = -99; mUB = 128;
+                mVR = 128; mVG = -116; mVB = -12;
+            } else {
+                mYR = 47; mYG = 157; mYB = 16;
+                mUR = -26; mUG = -86; mUB = 112;
+                mVR = 112; mVG = -102; mVB = -10;
+            }
+        }
+        mYOffset = fullRange ? 0 : 16;
+        int count = executor == null ? 1 : Math.max(1, stripes);
+        mStripes = new Stripe[count];
+        mRunner = new StripeRunner(executor, count);
+        for (int i = 0; i < count; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns the buffer size needed for the given frame size and buffer layout.
+     *
+     * @param stride the distance between luma rows, at least the frame width
+     * @param sliceHeight the number of luma rows before chroma, at least the frame height
+     * @return the output size in bytes
+     */
+    public static int getOutputSize(int stride, int sliceHeight) {
+        return stride * sliceHeight + 2 * ((stride + 1) / 2) * ((sliceHeight + 1) / 2);
+    }
+
+    /**
+     * Converts a packed ARGB frame into a packed YUV buffer.
+     *
+     * @param argb the ARGB pixels, width * height
+     * @param width frame width
+     * @param height frame height
+     * @param output the output, at least {@link #getOutputSize(int, int)} bytes
+     */
+    public void convert(@NonNull int[] argb, int width, int height, @NonNull byte[] output) {
+        convert(argb, 0, width, width, height, output, width, height);
+    }
+
+    /**
+     * Converts an ARGB frame into a YUV buffer with the given layout.
+     *
+     * @param argb the ARGB pixels
+     * @param offset the position of the first pixel in argb
+     * @param argbStride the distance between rows in argb
+     * @param width frame width
+     * @param height frame height
+     * @param output the output, at least {@link #getOutputSize(int, int)} bytes
+     * @param stride the distance between luma rows in output
+     * @param sliceHeight the number of luma rows before the chroma planes in output
+     */
+    public void convert(@NonNull int[] argb, int offset, int argbStride, int width, int height,
+                        @NonNull byte[] output, int stride, int sliceHeight) {
+        if (stride < width || sliceHeight < height) {
+            throw new IllegalArgumentException("Output layout is smaller than the frame.");
+        }
+        int chromaHeight = (height + 1) / 2;
+        Stripe[] stripes = mStripes;
+        int count = Math.min(stripes.length, chromaHeight);
+        for (int i = 0; i < count; i++) {
+            stripes[i].set(argb, offset, argbStride, width, height,
+                    chromaHeight * i / count, chromaHeight * (i + 1) / count,
+                    output, stride, sliceHeight);
+        }
+        try {
+            mRunner.run(stripes, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                stripes[i].clear();
+            }
+        }
+    }
+
+    /**
+     * Converts the given chroma rows, which are the luma rows from 2 * firstChromaRow
+     * to 2 * lastChromaRow, on the caller thread. This can be called concurrently
+     * for different rows.
+     *
+     * The ARGB pixel at (x, y) is read at offset + y * argbStride + x, so callers that
+     * produce two rows at a time can pass an offset that points them to a small buffer.
+     *
+     * @param argb the ARGB pixels
+     * @param offset the position of the first frame pixel in argb, can be negative
+     * @param argbStride the distance between rows in argb
+     * @param width frame width
+     * @param height frame height
+     * @param firstChromaRow the first chroma row
+     * @param lastChromaRow the chroma row after the last one
+     * @param output the output, at least {@link #getOutputSize(int, int)} bytes
+     * @param stride the distance between luma rows in output
+     * @param sliceHeight the number of luma rows before the chroma planes in output
+     */
+    public void convertRows(@NonNull int[] argb, int offset, int argbStride, int width, int height,
+                            int firstChromaRow, int lastChromaRow,
+                            @NonNull byte[] output, int stride, int sliceHeight) {
+        int yr = mYR, yg = mYG, yb = mYB, yOffset = mYOffset;
+        int ur = mUR, ug = mUG, ub = mUB;
+        int vr = mVR, vg = mVG, vb = mVB;
+        int lumaSize = stride * sliceHeight;
+        int chromaStride, uPlane, vPlane, step;
+        if (mFormat == FORMAT_I420) {
+            chromaStride = (stride + 1) / 2;
+            uPlane = lumaSize;
+            vPlane = lumaSize + chromaStride * ((sliceHeight + 1) / 2);
+            step = 1;
+        } else {
+            chromaStride = stride; // Interleaved chroma rows have the same stride as luma ones
+            uPlane = mFormat == FORMAT_NV12 ? lumaSize : lumaSize + 1;
+            vPlane = mFormat == FORMAT_NV12 ? lumaSize + 1 : lumaSize;
+            step = 2;
+        }
+        for (int cy = firstChromaRow; cy < lastChromaRow; cy++) {
+            int y0 = 2 * cy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            int in0 = offset + y0 * argbStride;
+            int in1 = offset + y1 * argbStride;
+            int out0 = y0 * stride;
+            int out1 = y1 * stride;
+            int chroma = cy * chromaStride;
+            for (int x0 = 0; x0 < width; x0 += 2) {
+                int x1 = Math.min(x0 + 1, width - 1);
+                int c0 = argb[in0 + x0];
+                int c1 = argb[in0 + x1];
+                int c2 = argb[in1 + x0];
+                int c3 = argb[in1 + x1];
+                int r0 = (c0 >> 16) & 0xFF, g0 = (c0 >> 8) & 0xFF, b0 = c0 & 0xFF;
+                int r1 = (c1 >> 16) & 0xFF, g1 = (c1 >> 8) & 0xFF, b1 = c1 & 0xFF;
+                int r2 = (c2 >> 16) & 0xFF, g2 = (c2 >> 8) & 0xFF, b2 = c2 & 0xFF;
+                int r3 = (c3 >> 16) & 0xFF, g3 = (c3 >> 8) & 0xFF, b3 = c3 & 0xFF;
+                output[out0 + x0] = clamp(((yr * r0 + yg * g0 + yb * b0 + 128) >> 8) + yOffset);
+                output[out0 + x1] = clamp(((yr * r1 + yg * g1 + yb * b1 + 128) >> 8) + yOffset);
+                output[out1 + x0] = clamp(((yr * r2 + yg * g2 + yb * b2 + 128) >> 8) + yOffset);
+                output[out1 + x1] = clamp(((yr * r3 + yg * g3 + yb * b3 + 128) >> 8) + yOffset);
+                // Same as averaging the four chroma values, since the conversion is linear.
+                int r = r0 + r1 + r2 + r3;
+                int g = g0 + g1 + g2 + g3;
+                int b = b0 + b1 + b2 + b3;
+                output[uPlane + chroma] = clamp(((ur * r + ug * g + ub * b + 512) >> 10) + 128);
+                output[vPlane + chroma] = clamp(((vr * r + vg * g + vb * b + 512) >> 10) + 128);
+                chroma += step;
+            }
+        }
+    }
+
+    /**
+     * Returns the luma value of the given color, like {@link #convertRows} does.
+     */
+    byte getLuma(int color) {
+        int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        return clamp(((mYR * r + mYG * g + mYB * b + 128) >> 8) + mYOffset);
+    }
+
+    /**
+     * Returns the unscaled U term of the given color. The U value of a chroma
+     * sample is {@link #getChroma(int)} of the sum of the terms of its four pixels.
+     */
+    int getUTerm(int color) {
+        int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        return mUR * r + mUG * g + mUB * b;
+    }
+
+    /**
+     * Same as {@link #getUTerm(int)}, for V.
+     */
+    int getVTerm(int color) {
+        int r = (color >> 16) & 0xFF, g = (color >> 8) & 0xFF, b = color & 0xFF;
+        return mVR * r + mVG * g + mVB * b;
+    }
+
+    /**
+     * Returns the chroma value for the sum of four U or V terms.
+     */
+    static byte getChroma(int terms) {
+        return clamp(((terms + 512) >> 10) + 128);
+    }
+
+    /**
+     * Returns the format passed to the constructor.
+     */
+    int getFormat() {
+        return mFormat;
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+
+    private class Stripe implements Runnable {
+        private int[] mArgb;
+        private int mOffset;
+        private int mArgbStride;
+        private int mWidth;
+        private int mHeight;
+        private int mFirstChromaRow;
+        private int mLastChromaRow;
+        private byte[] mOutput;
+        private int mStride;
+        private int mSliceHeight;
+
+        private void set(@NonNull int[] argb, int offset, int argbStride, int width, int height,
+                         int firstChromaRow, int lastChromaRow,
+                         @NonNull byte[] output, int stride, int sliceHeight) {
+            mArgb = argb;
+            mOffset = offset;
+            mArgbStride = argbStride;
+            mWidth = width;
+            mHeight = height;
+            mFirstChromaRow = firstChromaRow;
+            mLastChromaRow = lastChromaRow;
+            mOutput = output;
+            mStride = stride;
+            mSliceHeight = sliceHeight;
+        }
+
+        private void clear() {
+            mArgb = null;
+            mOutput = null;
+        }
+
+        @Override
+        public void run() {
+            convertRows(mArgb, mOffset, mArgbStride, mWidth, mHeight,
+                    mFirstChromaRow, mLastChromaRow, mOutput, mStride, mSliceHeight);
+        }
+    }
+}
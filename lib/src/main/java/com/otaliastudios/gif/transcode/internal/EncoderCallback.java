@@ -0,0 +1,125 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+
+/**
+ * Receives the encoder events in asynchronous mode, on the callback thread, and queues
+ * them so that they can be consumed on the transcoding thread with the same semantics
+ * as {@link MediaCodec#dequeueInputBuffer(long)} and
+ * {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)}, with no timeout.
+ *
+ * Codec operations, OpenGL and the sink all stay on the transcoding thread.
+ * Each event wakes it up through the given {@link WakeSignal}.
+ */
+@RequiresApi(21)
+public class EncoderCallback extends MediaCodec.Callback {
+
+    private static class Output {
+        private final int index;
+        private final int offset;
+        private final int size;
+        private final long presentationTimeUs;
+        private final int flags;
+
+        private Output(int index, int offset, int size, long presentationTimeUs, int flags) {
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    private final WakeSignal mSignal;
+    private final ArrayDeque<Integer> mInputs = new ArrayDeque<>();
+    private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    private MediaCodec.CodecException mError;
+
+    // Stats
+    private long mEvents;
+
+    public EncoderCallback(@NonNull WakeSignal signal) {
+        mSignal = signal;
+    }
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        synchronized (this) {
+            mInputs.addLast(index);
+            mEvents++;
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        synchronized (this) {
+            mOutputs.addLast(new Output(index, info.offset, info.size, info.presentationTimeUs, info.flags));
+            mEvents++;
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        // Queued with the outputs, since the format must be handled before the next buffer.
+        synchronized (this) {
+            mOutputs.addLast(new Output(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 0, 0, 0));
+            mEvents++;
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        synchronized (this) {
+            mError = e;
+        }
+        mSignal.signal();
+    }
+
+    /**
+     * Returns the index of an input buffer that the encoder made available,
+     * or {@link MediaCodec#INFO_TRY_AGAIN_LATER}.
+     * @return an index or INFO_TRY_AGAIN_LATER
+     */
+    public synchronized int dequeueInputBuffer() {
+        checkError();
+        Integer index = mInputs.pollFirst();
+        return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+    }
+
+    /**
+     * Returns the index of an output buffer and fills the info, or returns
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} or {@link MediaCodec#INFO_TRY_AGAIN_LATER}.
+     * @param info the info to be filled
+     * @return an index or one of the INFO constants
+     */
+    public synchronized int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info) {
+        checkError();
+        Output output = mOutputs.pollFirst();
+        if (output == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        info.set(output.offset, output.size, output.presentationTimeUs, output.flags);
+        return output.index;
+    }
+
+    /**
+     * Returns the number of events received so far.
+     * @return the event count
+     */
+    public synchronized long getEventCount() {
+        return mEvents;
+    }
+
+    private void checkError() {
+        if (mError != null) {
+            throw new RuntimeException("Encoder error.", mError);
+        }
+    }
+}
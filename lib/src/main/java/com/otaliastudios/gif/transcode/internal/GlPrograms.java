@@ -0,0 +1,49 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.opengl.GLES20;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Helpers for the outputs that build their own GLES20 programs,
+ * because they need more than one sampler.
+ */
+class GlPrograms {
+
+    private GlPrograms() {}
+
+    static int createProgram(@NonNull String vertexShader, @NonNull String fragmentShader) {
+        int vertex = createShader(GLES20.GL_VERTEX_SHADER, vertexShader);
+        int fragment = createShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertex);
+        GLES20.glAttachShader(program, fragment);
+        GLES20.glLinkProgram(program);
+        // The program keeps the shaders alive as long as they are attached.
+        GLES20.glDeleteShader(vertex);
+        GLES20.glDeleteShader(fragment);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException("Could not link program: " + log);
+        }
+        return program;
+    }
+
+    private static int createShader(int type, @NonNull String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException("Could not compile shader " + type + ": " + log);
+        }
+        return shader;
+    }
+}
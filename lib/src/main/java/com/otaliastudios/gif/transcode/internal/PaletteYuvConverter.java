@@ -0,0 +1,130 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Converts indexed frames (one byte per pixel, plus a palette of up to 256 ARGB colors)
+ * to YUV 4:2:0 buffers, with the same formats, coefficients and buffer layout as
+ * {@link ArgbYuvConverter}, and the same output. Transparent colors are black.
+ *
+ * The luma value and the chroma terms of each palette entry are computed once in
+ * {@link #setPalette(int[])}, so that the conversion itself is a table lookup per pixel,
+ * plus a sum and a shift per chroma sample.
+ *
+ * Instances can be reused for frames of any size. {@link #convertRows} can be called
+ * concurrently for different rows, but not together with {@link #setPalette(int[])}.
+ */
+public class PaletteYuvConverter {
+
+    private final ArgbYuvConverter mCoefficients;
+    private final byte[] mY = new byte[256];
+    private final int[] mU = new int[256];
+    private final int[] mV = new int[256];
+    private int[] mPalette;
+
+    /**
+     * Creates a new converter.
+     *
+     * @param format one of the {@link ArgbYuvConverter} FORMAT constants
+     * @param standard one of the {@link ArgbYuvConverter} STANDARD constants
+     * @param fullRange true for 0-255 values, false for 16-235 luma and 16-240 chroma
+     */
+    public PaletteYuvConverter(int format, int standard, boolean fullRange) {
+        mCoefficients = new ArgbYuvConverter(format, standard, fullRange);
+    }
+
+    /**
+     * Sets the palette to be used for the next conversions.
+     * This is a no-op if the same array was passed last time, so callers
+     * should pass a new array if the colors change.
+     *
+     * @param palette the ARGB palette
+     */
+    public void setPalette(@NonNull int[] palette) {
+        if (palette == mPalette) return;
+        mPalette = palette;
+        for (int i = 0; i < 256; i++) {
+            // Missing entries are black, like transparent colors.
+            int color = i < palette.length ? palette[i] : 0;
+            if ((color >>> 24) == 0) color = 0;
+            mY[i] = mCoefficients.getLuma(color);
+            mU[i] = mCoefficients.getUTerm(color);
+            mV[i] = mCoefficients.getVTerm(color);
+        }
+    }
+
+    /**
+     * Converts a packed index frame into a packed YUV buffer, using the palette
+     * that was passed to {@link #setPalette(int[])}.
+     *
+     * @param indices the index plane, width * height
+     * @param width frame width
+     * @param height frame height
+     * @param output the output, at least {@link ArgbYuvConverter#getOutputSize(int, int)} bytes
+     */
+    public void convert(@NonNull byte[] indices, int width, int height, @NonNull byte[] output) {
+        convertRows(indices, 0, width, width, height, 0, (height + 1) / 2, output, width, height);
+    }
+
+    /**
+     * Same as {@link ArgbYuvConverter#convertRows}, but reads palette indices.
+     *
+     * @param indices the index plane
+     * @param offset the position of the first frame pixel in indices, can be negative
+     * @param indexStride the distance between rows in indices
+     * @param width frame width
+     * @param height frame height
+     * @param firstChromaRow the first chroma row
+     * @param lastChromaRow the chroma row after the last one
+     * @param output the output, at least {@link ArgbYuvConverter#getOutputSize(int, int)} bytes
+     * @param stride the distance between luma rows in output
+     * @param sliceHeight the number of luma rows before the chroma planes in output
+     */
+    public void convertRows(@NonNull byte[] indices, int offset, int indexStride, int width, int height,
+                            int firstChromaRow, int lastChromaRow,
+                            @NonNull byte[] output, int stride, int sliceHeight) {
+        if (mPalette == null) {
+            throw new IllegalStateException("setPalette() must be called first.");
+        }
+        byte[] lutY = mY;
+        int[] lutU = mU;
+        int[] lutV = mV;
+        int format = mCoefficients.getFormat();
+        int lumaSize = stride * sliceHeight;
+        int chromaStride, uPlane, vPlane, step;
+        if (format == ArgbYuvConverter.FORMAT_I420) {
+            chromaStride = (stride + 1) / 2;
+            uPlane = lumaSize;
+            vPlane = lumaSize + chromaStride * ((sliceHeight + 1) / 2);
+            step = 1;
+        } else {
+            chromaStride = stride;
+            uPlane = format == ArgbYuvConverter.FORMAT_NV12 ? lumaSize : lumaSize + 1;
+            vPlane = format == ArgbYuvConverter.FORMAT_NV12 ? lumaSize + 1 : lumaSize;
+            step = 2;
+        }
+        for (int cy = firstChromaRow; cy < lastChromaRow; cy++) {
+            int y0 = 2 * cy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            int in0 = offset + y0 * indexStride;
+            int in1 = offset + y1 * indexStride;
+            int out0 = y0 * stride;
+            int out1 = y1 * stride;
+            int chroma = cy * chromaStride;
+            for (int x0 = 0; x0 < width; x0 += 2) {
+                int x1 = Math.min(x0 + 1, width - 1);
+                int i0 = indices[in0 + x0] & 0xFF;
+                int i1 = indices[in0 + x1] & 0xFF;
+                int i2 = indices[in1 + x0] & 0xFF;
+                int i3 = indices[in1 + x1] & 0xFF;
+                output[out0 + x0] = lutY[i0];
+                output[out0 + x1] = lutY[i1];
+                output[out1 + x0] = lutY[i2];
+                output[out1 + x1] = lutY[i3];
+                output[uPlane + chroma] = ArgbYuvConverter.getChroma(lutU[i0] + lutU[i1] + lutU[i2] + lutU[i3]);
+                output[vPlane + chroma] = ArgbYuvConverter.getChroma(lutV[i0] + lutV[i1] + lutV[i2] + lutV[i3]);
+                chroma += step;
+            }
+        }
+    }
+}
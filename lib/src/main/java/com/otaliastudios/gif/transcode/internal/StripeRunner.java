@@ -0,0 +1,90 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the stripes of a frame in parallel, all of them but the first on an executor,
+ * and the first on the caller thread. Used by {@link ArgbYuvConverter} and {@link VideoYuvOutput}.
+ *
+ * If a stripe fails or the caller is interrupted, the other stripes are still waited for,
+ * so that none of them is running, and writing into the output, once {@link #run} returns.
+ */
+class StripeRunner {
+
+    private final ExecutorService mExecutor;
+    private final Future<?>[] mFutures;
+
+    /**
+     * Creates a runner for at most the given number of stripes.
+     *
+     * @param executor the executor, which can be null if stripes is 1
+     * @param stripes the maximum number of stripes
+     */
+    StripeRunner(@Nullable ExecutorService executor, int stripes) {
+        if (executor == null && stripes > 1) {
+            throw new IllegalArgumentException("Stripes need an executor.");
+        }
+        mExecutor = executor;
+        mFutures = new Future<?>[stripes];
+    }
+
+    /**
+     * Runs the first stripes of the given array and waits for all of them.
+     * Failures are rethrown as runtime exceptions, except for those of the
+     * caller thread stripe, which are thrown as they are.
+     *
+     * @param stripes the stripes
+     * @param count how many stripes to run, at most the maximum
+     */
+    void run(@NonNull Runnable[] stripes, int count) {
+        try {
+            for (int i = 1; i < count; i++) {
+                mFutures[i] = mExecutor.submit(stripes[i]);
+            }
+            stripes[0].run();
+            for (int i = 1; i < count; i++) {
+                mFutures[i].get();
+                mFutures[i] = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // After a failure, the other stripes might still be running.
+            awaitStripes(count);
+        }
+    }
+
+    /**
+     * Waits for the stripes that were submitted and not waited for yet, ignoring their
+     * failures, so that none of them is running once this returns. Interruptions are
+     * deferred, since stripes are short and can't be stopped anyway.
+     */
+    private void awaitStripes(int count) {
+        boolean interrupted = false;
+        for (int i = 1; i < count; i++) {
+            Future<?> future = mFutures[i];
+            if (future == null) continue;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+            mFutures[i] = null;
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,408 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Composites raw GIF frames ({@link DataSource.Chunk#FORMAT_FRAMES}) on the GPU.
+ * The canvas is a texture attached to a framebuffer on the current EGL context,
+ * which is the encoder one, so it survives across frames and the CPU never
+ * touches the full canvas.
+ *
+ * For each frame, only its own rect is drawn: indices are uploaded as a single
+ * channel texture and looked up in a 256x1 palette texture, while the transparent
+ * index is discarded so the canvas shows through. Disposal to background is a
+ * scissored clear, while disposal to previous copies the frame rect into a second
+ * framebuffer before drawing, and copies it back when disposing.
+ *
+ * The canvas is then drawn onto the surface with linear filtering.
+ */
+public class VideoCompositingOutput extends VideoFrameOutput {
+    private static final String TAG = VideoCompositingOutput.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final String VERTEX_SHADER = "" +
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    // Frames are drawn at 1:1 scale, but texture coordinates still need
+    // high precision to hit the right texel in big frames.
+    private static final String FRAME_FRAGMENT_SHADER = "" +
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sIndices;\n" +
+            "uniform sampler2D sPalette;\n" +
+            "uniform float uTransparentIndex;\n" +
+            "void main() {\n" +
+            "    float index = texture2D(sIndices, vTextureCoord).r * 255.0;\n" +
+            "    if (abs(index - uTransparentIndex) < 0.5) discard;\n" +
+            "    gl_FragColor = texture2D(sPalette, vec2((index + 0.5) / 256.0, 0.5));\n" +
+            "}\n";
+
+    private static final String CANVAS_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final float[] VERTICES = {
+            -1F, -1F, 0F, 0F,
+            1F, -1F, 1F, 0F,
+            -1F, 1F, 0F, 1F,
+            1F, 1F, 1F, 1F
+    };
+
+    private static final float[] IDENTITY = new float[16];
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    private int mFrameProgram;
+    private int mFramePositionLocation;
+    private int mFrameTextureCoordLocation;
+    private int mFrameTransparentLocation;
+    private int mCanvasProgram;
+    private int mCanvasPositionLocation;
+    private int mCanvasTextureCoordLocation;
+    private int mCanvasTexMatrixLocation;
+    private final FloatBuffer mVertices;
+    private final FloatBuffer mFrameVertices;
+    private final int[] mTextures = new int[4]; // Canvas, saved canvas, indices, palette
+    private final int[] mFramebuffers = new int[2]; // Canvas, saved canvas
+    private final int[] mViewport = new int[4];
+
+    private int mWidth;
+    private int mHeight;
+    private boolean mAllocated;
+    private boolean mSaveAllocated;
+    private boolean mIndicesAllocated;
+    private int[] mPalette;
+    private ByteBuffer mPaletteBuffer;
+    private ByteBuffer mIndexBuffer;
+
+    // Stats
+    private int mCompositedFrames;
+    private long mUploadedBytes;
+    private long mDrawnPixels;
+    private int mFills;
+    private int mRestores;
+
+    public VideoCompositingOutput() {
+        mFrameProgram = GlPrograms.createProgram(VERTEX_SHADER, FRAME_FRAGMENT_SHADER);
+        mFramePositionLocation = GLES20.glGetAttribLocation(mFrameProgram, "aPosition");
+        mFrameTextureCoordLocation = GLES20.glGetAttribLocation(mFrameProgram, "aTextureCoord");
+        mFrameTransparentLocation = GLES20.glGetUniformLocation(mFrameProgram, "uTransparentIndex");
+        GLES20.glUseProgram(mFrameProgram);
+        GLES20.glUniformMatrix4fv(GLES20.glGetUniformLocation(mFrameProgram, "uTexMatrix"),
+                1, false, IDENTITY, 0);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mFrameProgram, "sIndices"), 0);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mFrameProgram, "sPalette"), 1);
+        mCanvasProgram = GlPrograms.createProgram(VERTEX_SHADER, CANVAS_FRAGMENT_SHADER);
+        mCanvasPositionLocation = GLES20.glGetAttribLocation(mCanvasProgram, "aPosition");
+        mCanvasTextureCoordLocation = GLES20.glGetAttribLocation(mCanvasProgram, "aTextureCoord");
+        mCanvasTexMatrixLocation = GLES20.glGetUniformLocation(mCanvasProgram, "uTexMatrix");
+        GLES20.glUseProgram(mCanvasProgram);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mCanvasProgram, "sTexture"), 0);
+        GLES20.glUseProgram(0);
+        mVertices = ByteBuffer.allocateDirect(VERTICES.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mVertices.put(VERTICES).position(0);
+        mFrameVertices = ByteBuffer.allocateDirect(VERTICES.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+
+        GLES20.glGenTextures(4, mTextures, 0);
+        for (int i = 0; i < mTextures.length; i++) {
+            // The canvas is scaled when drawn onto the surface, the others are not.
+            int filter = i == 0 ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glGenFramebuffers(2, mFramebuffers, 0);
+        mPaletteBuffer = ByteBuffer.allocateDirect(256 * 4);
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mAllocated = false;
+        mSaveAllocated = false;
+        mIndicesAllocated = false;
+    }
+
+    /**
+     * Allocates the given texture with the canvas size and attaches it to the given framebuffer.
+     * The framebuffer is left bound.
+     */
+    private void allocateFramebuffer(int texture, int framebuffer) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Invalid framebuffer status: " + status);
+        }
+    }
+
+    @Override
+    public void skipFrame(@NonNull DataSource.Chunk chunk) {
+        // The canvas must still go through all the frames.
+        composite(chunk);
+    }
+
+    @Override
+    protected void onDrawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty, @NonNull float[] transform) {
+        composite(chunk);
+        // The first canvas row is the last framebuffer row, so no flip is needed.
+        Matrix.setIdentityM(transform, 0);
+    }
+
+    private void composite(@NonNull DataSource.Chunk chunk) {
+        if (chunk.format != DataSource.Chunk.FORMAT_FRAMES) {
+            throw new IllegalStateException("Compositing output needs raw frames.");
+        }
+        if (chunk.width != mWidth || chunk.height != mHeight) {
+            // The canvas is drawn to fill the surface anyway, so we just need to reallocate it.
+            LOG.w("Unexpected width / height, reallocating." +
+                    " cw:" + chunk.width +
+                    " ch:" + chunk.height +
+                    " tw:" + mWidth +
+                    " th:" + mHeight);
+            setSize(chunk.width, chunk.height);
+        }
+        if (chunk.frameCount == 0 && mAllocated) return;
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        if (!mAllocated) {
+            allocateFramebuffer(mTextures[0], mFramebuffers[0]);
+            fill(0, 0, mWidth, mHeight, 0);
+            mAllocated = true;
+        } else {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffers[0]);
+        }
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        for (int i = 0; i < chunk.frameCount; i++) {
+            compositeFrame(chunk.frames[i]);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+    }
+
+    private void compositeFrame(@NonNull DataSource.Frame frame) {
+        if (frame.clear) {
+            fill(0, 0, mWidth, mHeight, 0);
+        }
+        Rect dispose = frame.disposeRect;
+        switch (frame.dispose) {
+            case DataSource.Frame.DISPOSE_FILL: {
+                fill(dispose.left, dispose.top, dispose.width(), dispose.height(), frame.disposeColor);
+                mFills++;
+                break;
+            }
+            case DataSource.Frame.DISPOSE_RESTORE: {
+                if (mSaveAllocated) {
+                    copy(mFramebuffers[1], mTextures[0], dispose);
+                    mRestores++;
+                }
+                break;
+            }
+        }
+        Rect rect = frame.rect;
+        if (rect.isEmpty()) return;
+        if (frame.save) {
+            if (!mSaveAllocated) {
+                allocateFramebuffer(mTextures[1], mFramebuffers[1]);
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffers[0]);
+                mSaveAllocated = true;
+            }
+            copy(mFramebuffers[0], mTextures[1], rect);
+        }
+        drawFrame(frame);
+        mCompositedFrames++;
+    }
+
+    /**
+     * Fills a canvas rect with the given ARGB color. Canvas rows go from top to bottom,
+     * while framebuffer rows go from bottom to top.
+     */
+    private void fill(int left, int top, int width, int height, int color) {
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glScissor(left, mHeight - top - height, width, height);
+        GLES20.glClearColor(((color >> 16) & 0xFF) / 255F,
+                ((color >> 8) & 0xFF) / 255F,
+                (color & 0xFF) / 255F,
+                (color >>> 24) / 255F);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+
+    /**
+     * Copies a canvas rect from the given framebuffer into the same rect of the given
+     * texture, then binds the canvas framebuffer again.
+     */
+    private void copy(int framebuffer, int texture, @NonNull Rect rect) {
+        int y = mHeight - rect.bottom;
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, rect.left, y,
+                rect.left, y, rect.width(), rect.height());
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffers[0]);
+    }
+
+    private void drawFrame(@NonNull DataSource.Frame frame) {
+        Rect rect = frame.rect;
+        int width = rect.width();
+        int height = rect.height();
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (frame.palette != mPalette) uploadPalette(frame.palette);
+        uploadIndices(frame.indices, width, height);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+
+        // The index texture has the canvas size, and the frame is in its top-left corner.
+        // Frame rows go down the texture, so the top edge samples t = 0.
+        float left = 2F * rect.left / mWidth - 1F;
+        float right = 2F * rect.right / mWidth - 1F;
+        float top = 1F - 2F * rect.top / mHeight;
+        float bottom = 1F - 2F * rect.bottom / mHeight;
+        float s = (float) width / mWidth;
+        float t = (float) height / mHeight;
+        FloatBuffer vertices = mFrameVertices;
+        vertices.clear();
+        vertices.put(left).put(bottom).put(0F).put(t);
+        vertices.put(right).put(bottom).put(s).put(t);
+        vertices.put(left).put(top).put(0F).put(0F);
+        vertices.put(right).put(top).put(s).put(0F);
+
+        GLES20.glUseProgram(mFrameProgram);
+        GLES20.glUniform1f(mFrameTransparentLocation, frame.transparentIndex);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[2]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[3]);
+        drawQuad(vertices, mFramePositionLocation, mFrameTextureCoordLocation);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        mDrawnPixels += (long) width * height;
+    }
+
+    private void uploadPalette(@NonNull int[] palette) {
+        mPalette = palette;
+        ByteBuffer buffer = mPaletteBuffer;
+        buffer.clear();
+        for (int i = 0; i < 256; i++) {
+            int color = i < palette.length ? palette[i] : 0;
+            buffer.put((byte) (color >> 16));
+            buffer.put((byte) (color >> 8));
+            buffer.put((byte) color);
+            buffer.put((byte) (color >>> 24));
+        }
+        buffer.position(0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[3]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 1, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mUploadedBytes += 256 * 4;
+    }
+
+    private void uploadIndices(@NonNull byte[] indices, int width, int height) {
+        int size = width * height;
+        if (mIndexBuffer == null || mIndexBuffer.capacity() < mWidth * mHeight) {
+            mIndexBuffer = ByteBuffer.allocateDirect(mWidth * mHeight);
+        }
+        ByteBuffer buffer = mIndexBuffer;
+        buffer.clear();
+        buffer.put(indices, 0, size);
+        buffer.position(0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[2]);
+        if (!mIndicesAllocated) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, mWidth, mHeight, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
+            mIndicesAllocated = true;
+        }
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mUploadedBytes += size;
+    }
+
+    private void drawQuad(@NonNull FloatBuffer vertices, int positionLocation, int textureCoordLocation) {
+        vertices.position(0);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 16, vertices);
+        vertices.position(2);
+        GLES20.glEnableVertexAttribArray(textureCoordLocation);
+        GLES20.glVertexAttribPointer(textureCoordLocation, 2, GLES20.GL_FLOAT, false, 16, vertices);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(positionLocation);
+        GLES20.glDisableVertexAttribArray(textureCoordLocation);
+    }
+
+    @Override
+    protected void onRenderFrame(@NonNull float[] transform) {
+        GLES20.glUseProgram(mCanvasProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        GLES20.glUniformMatrix4fv(mCanvasTexMatrixLocation, 1, false, transform, 0);
+        drawQuad(mVertices, mCanvasPositionLocation, mCanvasTextureCoordLocation);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    @Override
+    public void release() {
+        if (mCompositedFrames > 0) {
+            LOG.i("Released." +
+                    " compositedFrames:" + mCompositedFrames +
+                    " uploadedBytes:" + mUploadedBytes +
+                    " drawnPixels:" + mDrawnPixels +
+                    " fills:" + mFills +
+                    " restores:" + mRestores);
+        }
+        super.release();
+        GLES20.glDeleteFramebuffers(2, mFramebuffers, 0);
+        GLES20.glDeleteTextures(4, mTextures, 0);
+        GLES20.glDeleteProgram(mFrameProgram);
+        GLES20.glDeleteProgram(mCanvasProgram);
+        mFrameProgram = 0;
+        mCanvasProgram = 0;
+        mPalette = null;
+        mPaletteBuffer = null;
+        mIndexBuffer = null;
+    }
+}
@@ -3,13 +3,17 @@ package com.otaliastudios.gif.transcode.internal;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
-import android.opengl.Matrix;
 import android.view.Surface;
 
 import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 
+import com.otaliastudios.gif.source.DataSource;
 import com.otaliastudios.opengl.draw.GlRect;
 import com.otaliastudios.opengl.program.GlTextureProgram;
 import com.otaliastudios.gif.internal.Logger;
@@ -18,10 +22,13 @@ import com.otaliastudios.opengl.texture.GlTexture;
 /**
  * The purpose of this class is to create a {@link Surface} associated to a certain GL texture.
  *
- * When {@link #drawFrame(Bitmap)} is called, this class will draw the bitmap onto that surface
+ * When {@link #drawFrame(DataSource.Chunk, Rect)} is called, this class will draw the bitmap onto that surface
  * so that the SurfaceTexture receives it and we can pass this to OpenGL as soon as it is available.
+ *
+ * Only the dirty region of the bitmap is drawn: the surface keeps the previous frame
+ * and copies it back into the rest of the buffer.
  */
-public class VideoDecoderOutput {
+public class VideoDecoderOutput extends VideoFrameOutput {
     private static final String TAG = VideoDecoderOutput.class.getSimpleName();
     private static final Logger LOG = new Logger(TAG);
 
@@ -33,9 +40,16 @@ public class VideoDecoderOutput {
     private GlTextureProgram mProgram;
     private GlRect mDrawable;
 
-    private float mScaleX = 1F;
-    private float mScaleY = 1F;
-    private int mRotation = 0;
+    private final Rect mDrawRect = new Rect();
+    private final Paint mDrawPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mCopyPaint = new Paint();
+    private final Rect mLockRect = new Rect();
+    private int mWidth;
+    private int mHeight;
+
+    // Stats
+    private long mDrawnPixels;
+    private long mTotalPixels;
 
     @GuardedBy("mFrameAvailableLock")
     private boolean mFrameAvailable;
@@ -50,6 +64,9 @@ public class VideoDecoderOutput {
         mProgram = new GlTextureProgram();
         mProgram.setTexture(texture);
         mDrawable = new GlRect();
+        // Transparent pixels must replace what was there before.
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        mDrawPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
 
         // Even if we don't access the SurfaceTexture after the constructor returns, we
         // still need to keep a reference to it.  The Surface doesn't retain a reference
@@ -71,39 +88,23 @@ public class VideoDecoderOutput {
         });
     }
 
-    /**
-     * Sets the frame size, should be called before drawing anything.
-     * @param width frame width
-     * @param height frame height
-     */
+    @Override
     public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
         mSurfaceTexture.setDefaultBufferSize(width, height);
+        if (mSurface != null) mSurface.release(); // Resized for a new source
         mSurface = new Surface(mSurfaceTexture);
     }
 
-    /**
-     * Sets the frame scale along the two axes.
-     * @param scaleX x scale
-     * @param scaleY y scale
-     */
-    public void setScale(float scaleX, float scaleY) {
-        mScaleX = scaleX;
-        mScaleY = scaleY;
-    }
-
-    /**
-     * Sets the desired frame rotation with respect
-     * to its natural orientation.
-     * @param rotation rotation
-     */
-    public void setRotation(int rotation) {
-        mRotation = rotation;
-    }
-
-    /**
-     * Discard all resources held by this class, notably the EGL context.
-     */
+    @Override
     public void release() {
+        if (mTotalPixels > 0) {
+            LOG.i("Released. drawnPixels:" + mDrawnPixels +
+                    " totalPixels:" + mTotalPixels +
+                    " drawnRatio:" + ((float) mDrawnPixels / mTotalPixels));
+        }
+        super.release();
         mProgram.release();
         mSurface.release();
         // this causes a bunch of warnings that appear harmless but might confuse someone:
@@ -117,28 +118,61 @@ public class VideoDecoderOutput {
 
     /**
      * Draws a Bitmap into our surface, then waits for it to be available to
-     * the SurfaceTexture (not sure this is needed anymore), then renders
-     * through OpenGL.
+     * the SurfaceTexture (not sure this is needed anymore), then latches it
+     * so that it can be rendered through OpenGL.
      */
-    public void drawFrame(@NonNull Bitmap bitmap) {
-        drawBitmap(bitmap);
+    @Override
+    protected void onDrawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty, @NonNull float[] transform) {
+        drawBitmap(chunk.bitmap, dirty);
         awaitNewFrame();
-        renderNewFrame();
+        mSurfaceTexture.getTransformMatrix(transform);
     }
 
-    private void drawBitmap(@NonNull Bitmap bitmap) {
-        Canvas canvas = mSurface.lockCanvas(null);
-        if (bitmap.getWidth() != canvas.getWidth() || bitmap.getHeight() != canvas.getHeight()) {
-            throw new RuntimeException("Unexpected width / height." +
+    @Override
+    protected void onRenderFrame(@NonNull float[] transform) {
+        mProgram.setTextureTransform(transform);
+        mProgram.draw(mDrawable);
+    }
+
+    private void drawBitmap(@NonNull Bitmap bitmap, @NonNull Rect dirty) {
+        int bitmapWidth = bitmap.getWidth();
+        int bitmapHeight = bitmap.getHeight();
+        boolean scale = bitmapWidth != mWidth || bitmapHeight != mHeight;
+        mLockRect.set(dirty);
+        if (!mLockRect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+            mLockRect.setEmpty();
+        } else if (scale) {
+            // Map to surface coordinates, plus one pixel for filtering.
+            mLockRect.set(
+                    Math.max(0, mLockRect.left * mWidth / bitmapWidth - 1),
+                    Math.max(0, mLockRect.top * mHeight / bitmapHeight - 1),
+                    Math.min(mWidth, ceilDiv(mLockRect.right * mWidth, bitmapWidth) + 1),
+                    Math.min(mHeight, ceilDiv(mLockRect.bottom * mHeight, bitmapHeight) + 1));
+        }
+        // The rect might be expanded, for example if the previous buffer is not available.
+        Canvas canvas = mSurface.lockCanvas(mLockRect);
+        mDrawnPixels += (long) mLockRect.width() * mLockRect.height();
+        mTotalPixels += (long) mWidth * mHeight;
+        if (!scale) {
+            canvas.drawBitmap(bitmap, 0, 0, mCopyPaint);
+        } else {
+            // The source did not respect the requested sample size. Scale to fit,
+            // this keeps the aspect ratio since sampling is the same on both axes.
+            LOG.w("Unexpected width / height, scaling." +
                     " bw:" + bitmap.getWidth() +
                     " bh:" + bitmap.getHeight() +
                     " cw:" + canvas.getWidth() +
                     " ch:" + canvas.getHeight());
+            mDrawRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+            canvas.drawBitmap(bitmap, null, mDrawRect, mDrawPaint);
         }
-        canvas.drawBitmap(bitmap, 0, 0, null);
         mSurface.unlockCanvasAndPost(canvas);
     }
 
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
     /**
      * Latches the next buffer into the texture.  Must be called from the thread that created
      * the VideoDecoderOutput object, after the onFrameAvailable callback has signaled that new
@@ -163,26 +197,4 @@ public class VideoDecoderOutput {
         // Latch the data.
         mSurfaceTexture.updateTexImage();
     }
-
-    /**
-     * Draws the data from SurfaceTexture onto the current EGL surface.
-     */
-    private void renderNewFrame() {
-        mSurfaceTexture.getTransformMatrix(mProgram.getTextureTransform());
-        // Invert the scale.
-        float glScaleX = 1F / mScaleX;
-        float glScaleY = 1F / mScaleY;
-        // Compensate before scaling.
-        float glTranslX = (1F - glScaleX) / 2F;
-        float glTranslY = (1F - glScaleY) / 2F;
-        Matrix.translateM(mProgram.getTextureTransform(), 0, glTranslX, glTranslY, 0);
-        // Scale.
-        Matrix.scaleM(mProgram.getTextureTransform(), 0, glScaleX, glScaleY, 1);
-        // Apply rotation.
-        Matrix.translateM(mProgram.getTextureTransform(), 0, 0.5F, 0.5F, 0);
-        Matrix.rotateM(mProgram.getTextureTransform(), 0, mRotation, 0, 0, 1);
-        Matrix.translateM(mProgram.getTextureTransform(), 0, -0.5F, -0.5F, 0);
-        // Draw.
-        mProgram.draw(mDrawable);
-    }
 }
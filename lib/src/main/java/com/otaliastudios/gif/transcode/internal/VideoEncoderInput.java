@@ -13,8 +13,8 @@ import com.otaliastudios.opengl.surface.EglWindowSurface;
 /**
  * The purpose of this class is basically doing OpenGL initialization.
  *
- * This class takes as input a Surface obtained from {@link MediaCodec#createInputSurface()},
- * and uses that to create an EGL context and window surface.
+ * This class creates an EGL context, then takes as input a Surface obtained from
+ * {@link MediaCodec#createInputSurface()} and uses that to create a window surface.
  *
  * Calls to {@link #onFrame(long)} cause a frame of data to be sent to the surface, thus
  * to the {@link android.media.MediaCodec} input.
@@ -27,12 +27,19 @@ public class VideoEncoderInput {
     private EglWindowSurface mEglSurface;
 
     /**
-     * Creates an VideoEncoderInput from a Surface.
+     * Creates the EGL context. This can be done before the encoder is configured,
+     * so that we can choose a different input if it fails.
+     */
+    public VideoEncoderInput() {
+        mEglCore = new EglCore(EGL14.EGL_NO_CONTEXT, EglCore.FLAG_RECORDABLE);
+    }
+
+    /**
+     * Creates a window surface for the given Surface.
      * Makes the EGL surface current immediately.
      * @param surface the surface
      */
-    public VideoEncoderInput(@NonNull Surface surface) {
-        mEglCore = new EglCore(EGL14.EGL_NO_CONTEXT, EglCore.FLAG_RECORDABLE);
+    public void setSurface(@NonNull Surface surface) {
         mEglSurface = new EglWindowSurface(mEglCore, surface, true);
         mEglSurface.makeCurrent();
     }
@@ -45,7 +52,7 @@ public class VideoEncoderInput {
     public void release() {
         // NOTE: Original code calls android.view.Surface.release()
         // after the egl core releasing. This should not be an issue.
-        mEglSurface.release();
+        if (mEglSurface != null) mEglSurface.release();
         mEglCore.release();
     }
 }
@@ -14,42 +14,54 @@ public abstract class VideoFrameDropper {
 
     private VideoFrameDropper() {}
 
-    public abstract boolean shouldRenderFrame(long presentationTimeUs);
+    /**
+     * Returns true if the frame should be rendered. Since this depends on how long
+     * the frame stays on screen, the decision can only be taken once the next frame
+     * timestamp is known.
+     *
+     * @param presentationTimeUs the frame timestamp
+     * @param nextPresentationTimeUs the timestamp of the frame that replaces it
+     * @return true if the frame should be rendered
+     */
+    public abstract boolean shouldRenderFrame(long presentationTimeUs, long nextPresentationTimeUs);
 
     @NonNull
-    public static VideoFrameDropper newDropper(int inputFrameRate, int outputFrameRate) {
-        return new Dropper1(inputFrameRate, outputFrameRate);
+    public static VideoFrameDropper newDropper(int outputFrameRate) {
+        return new Dropper2(outputFrameRate);
     }
 
     /**
-     * A simple and more elegant dropper.
-     * Reference: https://stackoverflow.com/questions/4223766/dropping-video-frames
+     * A dropper that looks at timestamps instead of counting frames, so it works
+     * when input frames have different durations, as it happens in GIFs.
+     * Time is split in intervals of 1 / outputFrameRate seconds, and a frame is rendered
+     * if it is on screen at the start of an interval. This way, a frame that is held
+     * for long is never replaced by a shorter one that came before it.
      */
-    private static class Dropper1 extends VideoFrameDropper {
+    private static class Dropper2 extends VideoFrameDropper {
 
-        private double mInFrameRateReciprocal;
-        private double mOutFrameRateReciprocal;
-        private double mFrameRateReciprocalSum;
-        private int mFrameCount;
+        private final long mIntervalUs;
+        private long mFirstTimeUs = Long.MIN_VALUE;
 
-        private Dropper1(int inputFrameRate, int outputFrameRate) {
-            mInFrameRateReciprocal = 1.0d / inputFrameRate;
-            mOutFrameRateReciprocal = 1.0d / outputFrameRate;
-            LOG.i("inFrameRateReciprocal:" + mInFrameRateReciprocal + " outFrameRateReciprocal:" + mOutFrameRateReciprocal);
+        private Dropper2(int outputFrameRate) {
+            mIntervalUs = 1000000L / outputFrameRate;
+            LOG.i("intervalUs:" + mIntervalUs);
         }
 
         @Override
-        public boolean shouldRenderFrame(long presentationTimeUs) {
-            mFrameRateReciprocalSum += mInFrameRateReciprocal;
-            if (mFrameCount++ == 0) {
-                LOG.v("RENDERING (first frame) - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+        public boolean shouldRenderFrame(long presentationTimeUs, long nextPresentationTimeUs) {
+            if (mFirstTimeUs == Long.MIN_VALUE) {
+                LOG.v("RENDERING (first frame) - presentationTimeUs:" + presentationTimeUs);
+                mFirstTimeUs = presentationTimeUs;
                 return true;
-            } else if (mFrameRateReciprocalSum > mOutFrameRateReciprocal) {
-                mFrameRateReciprocalSum -= mOutFrameRateReciprocal;
-                LOG.v("RENDERING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+            }
+            // The first interval that starts when this frame is on screen.
+            long elapsedUs = Math.max(0, presentationTimeUs - mFirstTimeUs);
+            long interval = (elapsedUs + mIntervalUs - 1) / mIntervalUs;
+            if (mFirstTimeUs + interval * mIntervalUs < nextPresentationTimeUs) {
+                LOG.v("RENDERING - interval:" + interval);
                 return true;
             } else {
-                LOG.v("DROPPING - frameRateReciprocalSum:" + mFrameRateReciprocalSum);
+                LOG.v("DROPPING - interval:" + interval);
                 return false;
             }
         }
@@ -0,0 +1,131 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.graphics.Rect;
+import android.opengl.Matrix;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+/**
+ * Base class for the classes that bring source frames into GL textures,
+ * then draw them onto the current EGL surface, which is the encoder input.
+ *
+ * Subclasses upload the frame in {@link #onDrawFrame(DataSource.Chunk, Rect, float[])}
+ * and draw it in {@link #onRenderFrame(float[])}, while this class takes care of
+ * scale, rotation and latency stats.
+ */
+public abstract class VideoFrameOutput {
+    private static final String TAG = VideoFrameOutput.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private final float[] mTransform = new float[16];
+    private float mScaleX = 1F;
+    private float mScaleY = 1F;
+    private int mRotation = 0;
+
+    // Stats
+    private int mFrames;
+    private long mDrawNanos;
+    private long mMaxDrawNanos;
+
+    /**
+     * Sets the frame size, should be called before drawing anything.
+     * @param width frame width
+     * @param height frame height
+     */
+    public abstract void setSize(int width, int height);
+
+    /**
+     * Sets the frame scale along the two axes.
+     * @param scaleX x scale
+     * @param scaleY y scale
+     */
+    public void setScale(float scaleX, float scaleY) {
+        mScaleX = scaleX;
+        mScaleY = scaleY;
+    }
+
+    /**
+     * Sets the desired frame rotation with respect
+     * to its natural orientation.
+     * @param rotation rotation
+     */
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    /**
+     * Brings the chunk frame into the texture, then renders it through OpenGL.
+     *
+     * @param chunk the frame
+     * @param dirty the frame region that changed since the previous call
+     */
+    public void drawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty) {
+        long start = System.nanoTime();
+        float[] transform = mTransform;
+        onDrawFrame(chunk, dirty, transform);
+        // Invert the scale.
+        float glScaleX = 1F / mScaleX;
+        float glScaleY = 1F / mScaleY;
+        // Compensate before scaling.
+        float glTranslX = (1F - glScaleX) / 2F;
+        float glTranslY = (1F - glScaleY) / 2F;
+        Matrix.translateM(transform, 0, glTranslX, glTranslY, 0);
+        // Scale.
+        Matrix.scaleM(transform, 0, glScaleX, glScaleY, 1);
+        // Apply rotation.
+        Matrix.translateM(transform, 0, 0.5F, 0.5F, 0);
+        Matrix.rotateM(transform, 0, mRotation, 0, 0, 1);
+        Matrix.translateM(transform, 0, -0.5F, -0.5F, 0);
+        // Draw.
+        onRenderFrame(transform);
+        long nanos = System.nanoTime() - start;
+        mFrames++;
+        mDrawNanos += nanos;
+        mMaxDrawNanos = Math.max(mMaxDrawNanos, nanos);
+    }
+
+    /**
+     * Called instead of {@link #drawFrame(DataSource.Chunk, Rect)} for chunks that
+     * are not rendered. Outputs that only keep the last frame can ignore these, since
+     * the dirty region passed to the next draw covers their changes, but outputs
+     * that composite chunks on top of each other must still process them.
+     *
+     * @param chunk the frame
+     */
+    public void skipFrame(@NonNull DataSource.Chunk chunk) {
+    }
+
+    /**
+     * Brings the chunk frame into the texture, and sets the texture transform
+     * so that the frame is drawn upright.
+     *
+     * @param chunk the frame
+     * @param dirty the frame region that changed since the previous call
+     * @param transform the texture transform to be filled
+     */
+    protected abstract void onDrawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty,
+                                        @NonNull float[] transform);
+
+    /**
+     * Draws the texture onto the current EGL surface.
+     *
+     * @param transform the texture transform, including scale and rotation
+     */
+    protected abstract void onRenderFrame(@NonNull float[] transform);
+
+    /**
+     * Discard all resources held by this class.
+     */
+    public void release() {
+        if (mFrames > 0) {
+            LOG.i("Released " + getClass().getSimpleName() + "." +
+                    " frames:" + mFrames +
+                    " avgDrawUs:" + mDrawNanos / mFrames / 1000L +
+                    " maxDrawUs:" + mMaxDrawNanos / 1000L);
+        }
+    }
+}
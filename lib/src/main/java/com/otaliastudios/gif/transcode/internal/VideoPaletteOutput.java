@@ -0,0 +1,255 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Renders indexed frames ({@link DataSource.Chunk#FORMAT_INDEXED}) without expanding
+ * them to ARGB on the CPU. The index plane is uploaded as a single channel texture,
+ * one byte per pixel, and the palette as a 256x1 RGBA texture. The fragment shader
+ * looks up the colors and filters them, since indices can't be interpolated.
+ *
+ * The index texture keeps the previous frame, so only the dirty region is uploaded.
+ * The palette is uploaded again only when a different array is passed.
+ */
+public class VideoPaletteOutput extends VideoFrameOutput {
+    private static final String TAG = VideoPaletteOutput.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final String VERTEX_SHADER = "" +
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    // Bilinear filtering of the looked up colors. Transparent colors are
+    // stored as transparent black in the palette, like bitmaps do.
+    private static final String FRAGMENT_SHADER = "" +
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sIndices;\n" +
+            "uniform sampler2D sPalette;\n" +
+            "uniform vec2 uTexelSize;\n" +
+            "vec4 color(vec2 coord) {\n" +
+            "    float index = texture2D(sIndices, coord).r * 255.0;\n" +
+            "    return texture2D(sPalette, vec2((index + 0.5) / 256.0, 0.5));\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    vec2 position = vTextureCoord / uTexelSize - 0.5;\n" +
+            "    vec2 weight = fract(position);\n" +
+            "    vec2 coord = (floor(position) + 0.5) * uTexelSize;\n" +
+            "    vec4 top = mix(color(coord), color(coord + vec2(uTexelSize.x, 0.0)), weight.x);\n" +
+            "    vec4 bottom = mix(color(coord + vec2(0.0, uTexelSize.y)), color(coord + uTexelSize), weight.x);\n" +
+            "    gl_FragColor = mix(top, bottom, weight.y);\n" +
+            "}\n";
+
+    private static final float[] VERTICES = {
+            -1F, -1F, 0F, 0F,
+            1F, -1F, 1F, 0F,
+            -1F, 1F, 0F, 1F,
+            1F, 1F, 1F, 1F
+    };
+
+    private int mProgram;
+    private int mPositionLocation;
+    private int mTextureCoordLocation;
+    private int mTexMatrixLocation;
+    private int mTexelSizeLocation;
+    private final FloatBuffer mVertices;
+    private final int[] mTextures = new int[2]; // Indices, palette
+
+    private int mWidth;
+    private int mHeight;
+    private boolean mAllocated;
+    private int[] mPalette;
+    private ByteBuffer mPaletteBuffer;
+    private ByteBuffer mIndexBuffer;
+    private final Rect mUploadRect = new Rect();
+
+    // Stats
+    private long mUploadedBytes;
+    private int mPaletteUploads;
+    private int mFrames;
+
+    public VideoPaletteOutput() {
+        mProgram = GlPrograms.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPositionLocation = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTextureCoordLocation = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        mTexMatrixLocation = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+        mTexelSizeLocation = GLES20.glGetUniformLocation(mProgram, "uTexelSize");
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "sIndices"), 0);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "sPalette"), 1);
+        GLES20.glUseProgram(0);
+        mVertices = ByteBuffer.allocateDirect(VERTICES.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mVertices.put(VERTICES).position(0);
+
+        GLES20.glGenTextures(2, mTextures, 0);
+        for (int texture : mTextures) {
+            // Both textures must be sampled with no interpolation.
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mPaletteBuffer = ByteBuffer.allocateDirect(256 * 4);
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mAllocated = false;
+    }
+
+    @Override
+    protected void onDrawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty, @NonNull float[] transform) {
+        if (chunk.format != DataSource.Chunk.FORMAT_INDEXED) {
+            throw new IllegalStateException("Palette output needs indexed frames.");
+        }
+        if (chunk.width != mWidth || chunk.height != mHeight) {
+            // The source did not respect the requested sample size. The texture is
+            // drawn to fill the surface anyway, so we just need to reallocate it.
+            LOG.w("Unexpected width / height, reallocating." +
+                    " cw:" + chunk.width +
+                    " ch:" + chunk.height +
+                    " tw:" + mWidth +
+                    " th:" + mHeight);
+            setSize(chunk.width, chunk.height);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (chunk.palette != mPalette) uploadPalette(chunk.palette);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        if (!mAllocated) {
+            mUploadRect.set(0, 0, mWidth, mHeight);
+            uploadIndices(chunk.indices, mUploadRect, true);
+            mAllocated = true;
+        } else {
+            mUploadRect.set(dirty);
+            if (mUploadRect.intersect(0, 0, mWidth, mHeight)) {
+                uploadIndices(chunk.indices, mUploadRect, false);
+            }
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        mFrames++;
+        // The first row is the first texture row, so flip vertically.
+        Matrix.setIdentityM(transform, 0);
+        Matrix.translateM(transform, 0, 0, 1, 0);
+        Matrix.scaleM(transform, 0, 1, -1, 1);
+    }
+
+    private void uploadPalette(@NonNull int[] palette) {
+        mPalette = palette;
+        ByteBuffer buffer = mPaletteBuffer;
+        buffer.clear();
+        for (int i = 0; i < 256; i++) {
+            int color = i < palette.length ? palette[i] : 0;
+            if ((color >>> 24) == 0) {
+                buffer.putInt(0); // Transparent colors are transparent black.
+            } else {
+                buffer.put((byte) (color >> 16));
+                buffer.put((byte) (color >> 8));
+                buffer.put((byte) color);
+                buffer.put((byte) (color >>> 24));
+            }
+        }
+        buffer.position(0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[1]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 1, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        mUploadedBytes += 256 * 4;
+        mPaletteUploads++;
+    }
+
+    private void uploadIndices(@NonNull byte[] indices, @NonNull Rect rect, boolean allocate) {
+        int width = rect.width();
+        int height = rect.height();
+        int size = width * height;
+        if (mIndexBuffer == null || mIndexBuffer.capacity() < size) {
+            mIndexBuffer = ByteBuffer.allocateDirect(mWidth * mHeight);
+        }
+        ByteBuffer buffer = mIndexBuffer;
+        buffer.clear();
+        if (width == mWidth) {
+            buffer.put(indices, rect.top * mWidth, size);
+        } else {
+            for (int y = rect.top; y < rect.bottom; y++) {
+                buffer.put(indices, y * mWidth + rect.left, width);
+            }
+        }
+        buffer.position(0);
+        if (allocate) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, width, height, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, buffer);
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, rect.left, rect.top, width, height,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, buffer);
+        }
+        mUploadedBytes += size;
+    }
+
+    @Override
+    protected void onRenderFrame(@NonNull float[] transform) {
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[1]);
+        GLES20.glUniformMatrix4fv(mTexMatrixLocation, 1, false, transform, 0);
+        GLES20.glUniform2f(mTexelSizeLocation, 1F / mWidth, 1F / mHeight);
+        mVertices.position(0);
+        GLES20.glEnableVertexAttribArray(mPositionLocation);
+        GLES20.glVertexAttribPointer(mPositionLocation, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        mVertices.position(2);
+        GLES20.glEnableVertexAttribArray(mTextureCoordLocation);
+        GLES20.glVertexAttribPointer(mTextureCoordLocation, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPositionLocation);
+        GLES20.glDisableVertexAttribArray(mTextureCoordLocation);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    @Override
+    public void release() {
+        if (mFrames > 0) {
+            LOG.i("Released." +
+                    " uploadedBytes:" + mUploadedBytes +
+                    " argbBytes:" + (long) mFrames * mWidth * mHeight * 4 +
+                    " paletteUploads:" + mPaletteUploads);
+        }
+        super.release();
+        GLES20.glDeleteTextures(2, mTextures, 0);
+        GLES20.glDeleteProgram(mProgram);
+        mProgram = 0;
+        mPalette = null;
+        mPaletteBuffer = null;
+        mIndexBuffer = null;
+    }
+}
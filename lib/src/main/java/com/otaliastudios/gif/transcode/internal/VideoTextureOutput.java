@@ -0,0 +1,167 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.opengl.Matrix;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+import com.otaliastudios.opengl.draw.GlRect;
+import com.otaliastudios.opengl.program.GlTextureProgram;
+import com.otaliastudios.opengl.texture.GlTexture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Uploads frames straight into a GL_TEXTURE_2D on the current EGL context,
+ * which is the encoder one. Compared to {@link VideoDecoderOutput}, there is no
+ * Surface and no SurfaceTexture, so no BufferQueue round trip and no need to
+ * wait for another thread to signal that the frame is available.
+ *
+ * The texture keeps the previous frame, so only the dirty region is uploaded
+ * with glTexSubImage2D.
+ */
+public class VideoTextureOutput extends VideoFrameOutput {
+    private static final String TAG = VideoTextureOutput.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private static final String VERTEX_SHADER = "" +
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private GlTextureProgram mProgram;
+    private GlRect mDrawable;
+    private GlTexture mTexture;
+    private int mWidth;
+    private int mHeight;
+    private boolean mAllocated;
+    private int[] mPixels;
+    private ByteBuffer mBuffer;
+    private final Rect mUploadRect = new Rect();
+
+    // Stats
+    private long mUploadedPixels;
+    private long mTotalPixels;
+
+    public VideoTextureOutput() {
+        mTexture = new GlTexture(GLES20.GL_TEXTURE0, GLES20.GL_TEXTURE_2D);
+        mProgram = new GlTextureProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        mProgram.setTexture(mTexture);
+        mDrawable = new GlRect();
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mAllocated = false;
+    }
+
+    @Override
+    protected void onDrawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty, @NonNull float[] transform) {
+        Bitmap bitmap = chunk.bitmap;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width != mWidth || height != mHeight) {
+            // The source did not respect the requested sample size. The texture is
+            // drawn to fill the surface anyway, so we just need to reallocate it.
+            LOG.w("Unexpected width / height, reallocating." +
+                    " bw:" + width +
+                    " bh:" + height +
+                    " tw:" + mWidth +
+                    " th:" + mHeight);
+            setSize(width, height);
+        }
+        mTexture.bind();
+        if (!mAllocated) {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            mAllocated = true;
+            mUploadedPixels += (long) width * height;
+        } else {
+            mUploadRect.set(dirty);
+            if (mUploadRect.intersect(0, 0, width, height)) {
+                upload(bitmap, mUploadRect);
+            }
+        }
+        mTexture.unbind();
+        mTotalPixels += (long) width * height;
+        // The first bitmap row is the first texture row, so flip vertically.
+        Matrix.setIdentityM(transform, 0);
+        Matrix.translateM(transform, 0, 0, 1, 0);
+        Matrix.scaleM(transform, 0, 1, -1, 1);
+    }
+
+    @Override
+    protected void onRenderFrame(@NonNull float[] transform) {
+        mProgram.setTextureTransform(transform);
+        mProgram.draw(mDrawable);
+    }
+
+    private void upload(@NonNull Bitmap bitmap, @NonNull Rect rect) {
+        int width = rect.width();
+        int height = rect.height();
+        if (width == mWidth && height == mHeight) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+        } else {
+            // GLES 2.0 has no GL_UNPACK_ROW_LENGTH, so we pack the region ourselves.
+            int size = width * height;
+            if (mPixels == null || mPixels.length < size) {
+                mPixels = new int[size];
+                mBuffer = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.BIG_ENDIAN);
+            }
+            int[] pixels = mPixels;
+            bitmap.getPixels(pixels, 0, width, rect.left, rect.top, width, height);
+            // ARGB colors to RGBA bytes. GIF colors are either opaque or fully
+            // transparent, so unpremultiplied and premultiplied values are the same.
+            for (int i = 0; i < size; i++) {
+                int color = pixels[i];
+                pixels[i] = (color << 8) | (color >>> 24);
+            }
+            IntBuffer buffer = mBuffer.asIntBuffer();
+            buffer.put(pixels, 0, size);
+            mBuffer.position(0);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, rect.left, rect.top, width, height,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mBuffer);
+        }
+        mUploadedPixels += (long) width * height;
+    }
+
+    @Override
+    public void release() {
+        if (mTotalPixels > 0) {
+            LOG.i("Released. uploadedPixels:" + mUploadedPixels +
+                    " totalPixels:" + mTotalPixels +
+                    " uploadedRatio:" + ((float) mUploadedPixels / mTotalPixels));
+        }
+        super.release();
+        mProgram.release();
+        mProgram = null;
+        mDrawable = null;
+        mTexture = null;
+        mPixels = null;
+        mBuffer = null;
+    }
+}
@@ -0,0 +1,358 @@
+package com.otaliastudios.gif.transcode.internal;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.MediaCodecInfo;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.internal.Logger;
+import com.otaliastudios.gif.source.DataSource;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders frames on the CPU into YUV 4:2:0 buffers that can be queued into
+ * the encoder input buffers, for devices where OpenGL is not available.
+ * This does the same job as {@link VideoFrameOutput}s plus the encoder surface:
+ * frames are cropped, scaled and rotated, then converted by {@link ArgbYuvConverter}
+ * with BT.601 limited range coefficients, which is what encoders expect.
+ * Indexed frames stay indexed until conversion, which is done by {@link PaletteYuvConverter}
+ * through per-palette tables, so their colors are never expanded to ARGB.
+ *
+ * Sampling is nearest neighbor. Source coordinates are computed once per output
+ * row and column, so each pixel costs two table lookups. Output rows are split into
+ * stripes that are processed in parallel, two rows at a time, so that sampled pixels
+ * are converted while they are still in cache.
+ */
+public class VideoYuvOutput {
+    private static final String TAG = VideoYuvOutput.class.getSimpleName();
+    private static final Logger LOG = new Logger(TAG);
+
+    private final int mWidth; // Output size, after rotation
+    private final int mHeight;
+    private final int mStride;
+    private final int mSliceHeight;
+    private final boolean mSemiPlanar;
+    private final ArgbYuvConverter mConverter;
+    private final PaletteYuvConverter mPaletteConverter;
+    private final byte[] mFrame;
+    private float mScaleX = 1F;
+    private float mScaleY = 1F;
+    private int mRotation = 0;
+
+    // Source coordinates, see computeOffsets()
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int[] mRowOffsets;
+    private int[] mColumnOffsets;
+
+    // Current frame
+    private int[] mPixels;
+    private byte[] mIndices;
+    private boolean mHasFrame;
+
+    private final ExecutorService mExecutor;
+    private final Stripe[] mStripes;
+    private final StripeRunner mRunner;
+
+    // Stats
+    private int mFrames;
+    private int mReusedFrames;
+    private long mDrawNanos;
+    private long mMaxDrawNanos;
+
+    /**
+     * Returns the color format that should be used to configure the encoder,
+     * or -1 if the encoder does not support any of the formats that we can write.
+     *
+     * @param capabilities the encoder capabilities for the output mime type
+     * @return a color format or -1
+     */
+    public static int findColorFormat(@NonNull MediaCodecInfo.CodecCapabilities capabilities) {
+        int result = -1;
+        for (int format : capabilities.colorFormats) {
+            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return format;
+            } else if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+                result = format;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new output.
+     *
+     * @param width the output width
+     * @param height the output height
+     * @param stride the distance between luma rows in the encoder buffer, at least width
+     * @param sliceHeight the number of luma rows before the chroma planes, at least height
+     * @param colorFormat one of the formats returned by {@link #findColorFormat(MediaCodecInfo.CodecCapabilities)}
+     */
+    public VideoYuvOutput(int width, int height, int stride, int sliceHeight, int colorFormat) {
+        mWidth = width;
+        mHeight = height;
+        mStride = Math.max(stride, width);
+        mSliceHeight = Math.max(sliceHeight, height);
+        mSemiPlanar = colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        mFrame = new byte[getFrameSize()];
+        int format = mSemiPlanar ? ArgbYuvConverter.FORMAT_NV12 : ArgbYuvConverter.FORMAT_I420;
+        mConverter = new ArgbYuvConverter(format, ArgbYuvConverter.STANDARD_BT601, false);
+        mPaletteConverter = new PaletteYuvConverter(format, ArgbYuvConverter.STANDARD_BT601, false);
+
+        // Stripes are made of whole chroma rows, so that they never share a chroma sample.
+        int chromaHeight = (height + 1) / 2;
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        threads = Math.min(threads, chromaHeight);
+        mStripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            mStripes[i] = new Stripe(chromaHeight * i / threads, chromaHeight * (i + 1) / threads);
+        }
+        mExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "GIFYuvWorker" + (mCount++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mRunner = new StripeRunner(mExecutor, threads);
+        LOG.i("Created. size:" + width + "x" + height +
+                " stride:" + mStride +
+                " sliceHeight:" + mSliceHeight +
+                " semiPlanar:" + mSemiPlanar +
+                " threads:" + threads);
+    }
+
+    /**
+     * Returns the size of each frame, in bytes.
+     * @return the frame size
+     */
+    public int getFrameSize() {
+        return ArgbYuvConverter.getOutputSize(mStride, mSliceHeight);
+    }
+
+    /**
+     * Sets the frame scale along the two axes, before rotation.
+     * Like {@link VideoFrameOutput#setScale(float, float)}, a scale bigger than 1
+     * crops the frame around its center.
+     * @param scaleX x scale
+     * @param scaleY y scale
+     */
+    public void setScale(float scaleX, float scaleY) {
+        mScaleX = scaleX;
+        mScaleY = scaleY;
+        mRowOffsets = null;
+    }
+
+    /**
+     * Sets the clockwise frame rotation, a multiple of 90.
+     * @param rotation rotation
+     */
+    public void setRotation(int rotation) {
+        mRotation = ((rotation % 360) + 360) % 360;
+        mRowOffsets = null;
+    }
+
+    /**
+     * Renders the chunk frame. If nothing changed since the previous call,
+     * the previous frame is reused.
+     *
+     * @param chunk the frame
+     * @param dirty the frame region that changed since the previous call
+     */
+    public void drawFrame(@NonNull DataSource.Chunk chunk, @NonNull Rect dirty) {
+        long start = System.nanoTime();
+        boolean indexed = chunk.format == DataSource.Chunk.FORMAT_INDEXED;
+        int width = indexed ? chunk.width : chunk.bitmap.getWidth();
+        int height = indexed ? chunk.height : chunk.bitmap.getHeight();
+        if (width != mSourceWidth || height != mSourceHeight || mRowOffsets == null) {
+            mSourceWidth = width;
+            mSourceHeight = height;
+            computeOffsets();
+            mHasFrame = false;
+        }
+        if (mHasFrame && dirty.isEmpty()) {
+            mReusedFrames++;
+            return;
+        }
+        if (indexed) {
+            mIndices = chunk.indices;
+            mPaletteConverter.setPalette(chunk.palette);
+        } else if (chunk.format == DataSource.Chunk.FORMAT_BITMAP) {
+            Bitmap bitmap = chunk.bitmap;
+            int size = mSourceWidth * mSourceHeight;
+            if (mPixels == null || mPixels.length < size) mPixels = new int[size];
+            bitmap.getPixels(mPixels, 0, mSourceWidth, 0, 0, mSourceWidth, mSourceHeight);
+            mIndices = null;
+        } else {
+            throw new IllegalStateException("Unsupported chunk format: " + chunk.format);
+        }
+        // After a failure, the frame is partially rendered and can't be reused.
+        mHasFrame = false;
+        try {
+            mRunner.run(mStripes, mStripes.length);
+        } finally {
+            mIndices = null;
+        }
+        mHasFrame = true;
+        long nanos = System.nanoTime() - start;
+        mFrames++;
+        mDrawNanos += nanos;
+        mMaxDrawNanos = Math.max(mMaxDrawNanos, nanos);
+    }
+
+    /**
+     * Copies the last rendered frame into the given encoder input buffer.
+     * @param buffer the input buffer
+     * @return the number of bytes written
+     */
+    public int writeFrame(@NonNull ByteBuffer buffer) {
+        buffer.clear();
+        if (buffer.remaining() < mFrame.length) {
+            throw new IllegalStateException("Input buffer is too small." +
+                    " capacity:" + buffer.remaining() +
+                    " frameSize:" + mFrame.length);
+        }
+        buffer.put(mFrame, 0, mFrame.length);
+        return mFrame.length;
+    }
+
+    /**
+     * Computes the source pixel of each output pixel, as the sum of a row offset
+     * and a column offset. This works for any multiple of 90 degrees, because
+     * each output row then maps to either a source row or a source column.
+     */
+    private void computeOffsets() {
+        boolean flip = mRotation % 180 != 0;
+        int width = flip ? mHeight : mWidth; // Output size, before rotation
+        int height = flip ? mWidth : mHeight;
+        int[] sourceX = sample(mSourceWidth, mScaleX, width);
+        int[] sourceY = sample(mSourceHeight, mScaleY, height);
+        int[] rows = new int[mHeight];
+        int[] columns = new int[mWidth];
+        int stride = mSourceWidth;
+        for (int y = 0; y < mHeight; y++) {
+            switch (mRotation) {
+                case 90: rows[y] = sourceX[y]; break;
+                case 180: rows[y] = sourceY[height - 1 - y] * stride; break;
+                case 270: rows[y] = sourceX[width - 1 - y]; break;
+                default: rows[y] = sourceY[y] * stride; break;
+            }
+        }
+        for (int x = 0; x < mWidth; x++) {
+            switch (mRotation) {
+                case 90: columns[x] = sourceY[height - 1 - x] * stride; break;
+                case 180: columns[x] = sourceX[width - 1 - x]; break;
+                case 270: columns[x] = sourceY[x] * stride; break;
+                default: columns[x] = sourceX[x]; break;
+            }
+        }
+        mRowOffsets = rows;
+        mColumnOffsets = columns;
+    }
+
+    /**
+     * Returns the source coordinate of each of the given output pixels, along one axis.
+     * The visible source region is the source size divided by the scale, centered.
+     */
+    @NonNull
+    private static int[] sample(int sourceSize, float scale, int outputSize) {
+        float visible = sourceSize / scale;
+        float first = (sourceSize - visible) / 2F;
+        int[] result = new int[outputSize];
+        for (int i = 0; i < outputSize; i++) {
+            int value = (int) (first + (i + 0.5F) * visible / outputSize);
+            result[i] = Math.max(0, Math.min(value, sourceSize - 1));
+        }
+        return result;
+    }
+
+    private class Stripe implements Runnable {
+        private final int mFirstChromaRow;
+        private final int mLastChromaRow;
+        private int[] mRows; // The two rows of the current chroma row
+        private byte[] mIndexRows; // Same, for indexed frames
+
+        private Stripe(int firstChromaRow, int lastChromaRow) {
+            mFirstChromaRow = firstChromaRow;
+            mLastChromaRow = lastChromaRow;
+        }
+
+        @Override
+        public void run() {
+            if (mIndices != null) {
+                runIndexed(mIndices);
+            } else {
+                runArgb(mPixels);
+            }
+        }
+
+        private void runArgb(@NonNull int[] pixels) {
+            int[] rowOffsets = mRowOffsets;
+            int[] columns = mColumnOffsets;
+            int width = mWidth;
+            if (mRows == null || mRows.length < 2 * width) mRows = new int[2 * width];
+            int[] rows = mRows;
+            for (int cy = mFirstChromaRow; cy < mLastChromaRow; cy++) {
+                int y0 = 2 * cy;
+                int y1 = Math.min(y0 + 1, mHeight - 1);
+                int row0 = rowOffsets[y0];
+                int row1 = rowOffsets[y1];
+                for (int x = 0; x < width; x++) {
+                    rows[x] = getColor(pixels[row0 + columns[x]]);
+                    rows[width + x] = getColor(pixels[row1 + columns[x]]);
+                }
+                // Point the converter to our two rows.
+                mConverter.convertRows(rows, -y0 * width, width, width, mHeight,
+                        cy, cy + 1, mFrame, mStride, mSliceHeight);
+            }
+        }
+
+        private void runIndexed(@NonNull byte[] indices) {
+            int[] rowOffsets = mRowOffsets;
+            int[] columns = mColumnOffsets;
+            int width = mWidth;
+            if (mIndexRows == null || mIndexRows.length < 2 * width) mIndexRows = new byte[2 * width];
+            byte[] rows = mIndexRows;
+            for (int cy = mFirstChromaRow; cy < mLastChromaRow; cy++) {
+                int y0 = 2 * cy;
+                int y1 = Math.min(y0 + 1, mHeight - 1);
+                int row0 = rowOffsets[y0];
+                int row1 = rowOffsets[y1];
+                for (int x = 0; x < width; x++) {
+                    rows[x] = indices[row0 + columns[x]];
+                    rows[width + x] = indices[row1 + columns[x]];
+                }
+                mPaletteConverter.convertRows(rows, -y0 * width, width, width, mHeight,
+                        cy, cy + 1, mFrame, mStride, mSliceHeight);
+            }
+        }
+
+        private int getColor(int color) {
+            return (color >>> 24) == 0 ? 0 : color; // Transparent colors are black.
+        }
+    }
+
+    /**
+     * Discard all resources held by this class.
+     */
+    public void release() {
+        if (mFrames > 0) {
+            LOG.i("Released." +
+                    " frames:" + mFrames +
+                    " reusedFrames:" + mReusedFrames +
+                    " avgDrawUs:" + mDrawNanos / mFrames / 1000L +
+                    " maxDrawUs:" + mMaxDrawNanos / 1000L);
+        }
+        if (mExecutor != null) mExecutor.shutdownNow();
+        mPixels = null;
+    }
+}
@@ -0,0 +1,60 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.AnyThread;
+
+/**
+ * Lets a thread sleep until some other thread has new work for it.
+ *
+ * Signals are counted, so that the waiting thread can read {@link #getCount()}
+ * before looking for work, and pass it to {@link #await(long, long)}. If something
+ * was signaled in between, await returns immediately and no wake up is lost.
+ */
+public class WakeSignal {
+
+    private long mCount;
+    private long mLastSignalNanos;
+
+    /**
+     * Wakes up the waiting thread, if any.
+     */
+    @AnyThread
+    public synchronized void signal() {
+        mCount++;
+        mLastSignalNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} of the last signal, to measure wake up latency.
+     * @return the last signal time
+     */
+    @AnyThread
+    public synchronized long getLastSignalNanos() {
+        return mLastSignalNanos;
+    }
+
+    /**
+     * Returns the number of signals so far.
+     * @return the signal count
+     */
+    @AnyThread
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Waits until something is signaled after the given count was read,
+     * or until the timeout expires.
+     *
+     * @param count a value returned by {@link #getCount()}
+     * @param timeoutMillis the maximum wait
+     * @return true if something was signaled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean await(long count, long timeoutMillis) throws InterruptedException {
+        if (mCount == count) {
+            wait(timeoutMillis);
+        }
+        return mCount != count;
+    }
+}
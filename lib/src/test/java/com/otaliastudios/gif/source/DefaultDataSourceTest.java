@@ -0,0 +1,417 @@
+package com.otaliastudios.gif.source;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.source.internal.GifFrameDecoder;
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifScanner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests trimming, splitting, coalescing and merging over restart.gif, or copies of it
+ * with changed delays or repeated frames. It has 9 frames of 50ms
+ * and restart points at frames 0, 4, 5 and 6. Chunks are indexed, and only the
+ * first chunk of each source is compared with the expected canvas, since the
+ * following ones are copied using the dirty region.
+ */
+public class DefaultDataSourceTest {
+
+    private final static long FIRST_TIMESTAMP_US = 10;
+    private final static long FRAME_US = 50000;
+    private final static int FRAMES = 9;
+
+    @Test
+    public void testNoTrim() throws Exception {
+        byte[] gif = read("restart.gif");
+        DefaultDataSource source = createSource(gif);
+        assertEquals(FRAMES * FRAME_US, source.getDurationUs());
+        Output output = readAll(source);
+        assertEquals(frameTimestamps(0, 0, FRAMES, FRAMES * FRAME_US), output.timestamps);
+        assertArrayEquals(decode(gif, 0), output.first);
+    }
+
+    @Test
+    public void testTrimStart() throws Exception {
+        byte[] gif = read("restart.gif");
+        // Inside frames 2, 5 and 7, or at the start of frame 2. Frame 2 restarts from 0,
+        // frame 5 is a restart point itself, and frame 7 restarts from frame 6.
+        long[] startsUs = {120000, 100000, 260000, 360000};
+        int[] frames = {2, 2, 5, 7};
+        for (int i = 0; i < startsUs.length; i++) {
+            DefaultDataSource source = createSource(gif);
+            source.setTrim(startsUs[i], Long.MAX_VALUE);
+            long endUs = FRAMES * FRAME_US;
+            assertEquals(endUs - startsUs[i], source.getDurationUs());
+            Output output = readAll(source);
+            String message = "start:" + startsUs[i];
+            assertEquals(message, frameTimestamps(startsUs[i], frames[i], FRAMES, endUs), output.timestamps);
+            assertArrayEquals(message, decode(gif, frames[i]), output.first);
+        }
+    }
+
+    @Test
+    public void testTrimEnd() throws Exception {
+        byte[] gif = read("restart.gif");
+        // Inside frame 4, at the start of frame 4, and after the end.
+        long[] endsUs = {220000, 200000, 1000000};
+        int[] endFrames = {5, 4, FRAMES};
+        for (int i = 0; i < endsUs.length; i++) {
+            DefaultDataSource source = createSource(gif);
+            source.setTrim(0, endsUs[i]);
+            long endUs = Math.min(endsUs[i], FRAMES * FRAME_US);
+            assertEquals(endUs, source.getDurationUs());
+            Output output = readAll(source);
+            assertEquals("end:" + endsUs[i], frameTimestamps(0, 0, endFrames[i], endUs), output.timestamps);
+        }
+    }
+
+    @Test
+    public void testTrimBoth() throws Exception {
+        byte[] gif = read("restart.gif");
+        DefaultDataSource source = createSource(gif);
+        source.setTrim(120000, 220000);
+        assertEquals(100000, source.getDurationUs());
+        Output output = readAll(source);
+        assertEquals(Arrays.asList(10L, 30010L, 80010L, 100010L), output.timestamps);
+        assertArrayEquals(decode(gif, 2), output.first);
+    }
+
+    @Test
+    public void testTrimStartAfterEnd() throws Exception {
+        DefaultDataSource source = createSource(read("restart.gif"));
+        source.setTrim(FRAMES * FRAME_US, Long.MAX_VALUE);
+        try {
+            source.getDurationUs();
+            fail("Expected a failure.");
+        } catch (IllegalArgumentException ignore) {
+        }
+    }
+
+    @Test
+    public void testTrimStartCoalesced() throws Exception {
+        // Frames 1 and 2 have no delay, so they are displayed together with frame 3,
+        // and the output starts from frame 1 even if the trim start is in frame 3.
+        byte[] gif = setDelays(read("restart.gif"), new int[]{1, 2}, 0);
+        DefaultDataSource source = createSource(gif);
+        source.setCoalesceZeroDelayFrames(true);
+        source.setTrim(60000, Long.MAX_VALUE);
+        long endUs = (FRAMES - 2) * FRAME_US;
+        assertEquals(endUs - 60000, source.getDurationUs());
+        Output output = readAll(source);
+        List<Long> expected = new ArrayList<>();
+        expected.add(FIRST_TIMESTAMP_US);
+        for (int frame = 4; frame < FRAMES; frame++) {
+            expected.add(FIRST_TIMESTAMP_US + (frame - 2) * FRAME_US - 60000);
+        }
+        expected.add(FIRST_TIMESTAMP_US + endUs - 60000);
+        assertEquals(expected, output.timestamps);
+        assertArrayEquals(decode(gif, 3), output.first);
+        assertEquals(2, source.getCoalescedFrameCount());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        // Frames 0 and 1 are under the minimum delay, so they are output together with
+        // frame 2. The last frame has no delay too, but there's nothing to coalesce it with.
+        byte[] gif = read("restart.gif");
+        gif = setDelays(gif, new int[]{0}, 0);
+        gif = setDelays(gif, new int[]{1}, GifMetadata.MIN_FRAME_DELAY / 2);
+        gif = setDelays(gif, new int[]{FRAMES - 1}, 0);
+        DefaultDataSource source = createSource(gif);
+        source.setCoalesceZeroDelayFrames(true);
+        long endUs = (FRAMES - 3) * FRAME_US + GifMetadata.DEFAULT_FRAME_DELAY * 1000L;
+        assertEquals(endUs, source.getDurationUs());
+        Output output = readAll(source);
+        List<Long> expected = new ArrayList<>();
+        for (int frame = 2; frame < FRAMES; frame++) {
+            expected.add(FIRST_TIMESTAMP_US + (frame - 2) * FRAME_US);
+        }
+        expected.add(FIRST_TIMESTAMP_US + endUs);
+        assertEquals(expected, output.timestamps);
+        assertArrayEquals(decode(gif, 2), output.first);
+        assertEquals(2, source.getCoalescedFrameCount());
+
+        // Without coalescing, they are displayed for the default delay.
+        source = createSource(gif);
+        long defaultUs = GifMetadata.DEFAULT_FRAME_DELAY * 1000L;
+        assertEquals(endUs + 2 * defaultUs, source.getDurationUs());
+        output = readAll(source);
+        assertEquals(FRAMES + 1, output.timestamps.size());
+        assertEquals(FIRST_TIMESTAMP_US + defaultUs, (long) output.timestamps.get(1));
+        assertArrayEquals(decode(gif, 0), output.first);
+        assertEquals(0, source.getCoalescedFrameCount());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        // Frame 1 is repeated once and frame 5 twice, so there are 3 duplicates,
+        // which hold the previous frame for longer.
+        byte[] gif = duplicateFrames(read("restart.gif"), 1, 5, 5);
+        int frames = FRAMES + 3;
+        DefaultDataSource source = createSource(gif);
+        source.setMergeDuplicateFrames(true);
+        assertEquals(frames * FRAME_US, source.getDurationUs());
+        Output output = readAll(source);
+        List<Long> expected = new ArrayList<>();
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame == 2 || frame == 7 || frame == 8) continue;
+            expected.add(FIRST_TIMESTAMP_US + frame * FRAME_US);
+        }
+        expected.add(FIRST_TIMESTAMP_US + frames * FRAME_US);
+        assertEquals(expected, output.timestamps);
+        assertArrayEquals(decode(gif, 0), output.first);
+        assertEquals(3, source.getMergedFrameCount());
+
+        // Without merging, all frames are output.
+        source = createSource(gif);
+        output = readAll(source);
+        assertEquals(frameTimestamps(0, 0, frames, frames * FRAME_US), output.timestamps);
+        assertEquals(0, source.getMergedFrameCount());
+    }
+
+    @Test
+    public void testMergeCoalesced() throws Exception {
+        // Frame 5 is repeated twice and the first copy has no delay, so it's coalesced
+        // with the second one, and then both are merged into the original.
+        byte[] gif = duplicateFrames(read("restart.gif"), 5, 5);
+        gif = setDelays(gif, new int[]{6}, 0);
+        DefaultDataSource source = createSource(gif);
+        source.setMergeDuplicateFrames(true);
+        source.setCoalesceZeroDelayFrames(true);
+        // Frame 5 and its copies are displayed for 100ms, since the first copy takes no time.
+        long endUs = (FRAMES + 1) * FRAME_US;
+        assertEquals(endUs, source.getDurationUs());
+        Output output = readAll(source);
+        List<Long> expected = new ArrayList<>();
+        for (int frame = 0; frame < FRAMES + 2; frame++) {
+            if (frame == 6 || frame == 7) continue;
+            expected.add(FIRST_TIMESTAMP_US + (frame < 6 ? frame : frame - 1) * FRAME_US);
+        }
+        expected.add(FIRST_TIMESTAMP_US + endUs);
+        assertEquals(expected, output.timestamps);
+        // Each input frame is counted once: the first copy as coalesced, the second as merged.
+        assertEquals(1, source.getCoalescedFrameCount());
+        assertEquals(1, source.getMergedFrameCount());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        byte[] gif = read("restart.gif");
+        // Ideal boundaries are 112.5, 225 and 337.5ms, and the closest restart
+        // points are 200, 250 and 300ms. Ties go to the later point.
+        assertSplit(gif, false, 0, Long.MAX_VALUE, 4, 0, 0, 200000, 250000, 300000, 450000);
+        assertSplit(gif, false, 0, Long.MAX_VALUE, 2, 0, 0, 250000, 450000);
+        // At most 3 segments of 150ms.
+        assertSplit(gif, false, 0, Long.MAX_VALUE, 4, 150000, 0, 200000, 300000, 450000);
+        // Restart points are only used within the trim range.
+        assertSplit(gif, false, 120000, 420000, 2, 0, 120000, 250000, 420000);
+        assertSplit(gif, false, 260000, 420000, 3, 0, 260000, 300000, 420000);
+        assertSplit(gif, false, 0, Long.MAX_VALUE, 1, 0, 0, 450000);
+        // Frame 3 has no delay, so the restart point at frame 4 can't be a boundary:
+        // it is displayed together with frame 3. Ideal boundaries are 133 and 266ms.
+        byte[] coalesced = setDelays(gif, new int[]{3}, 0);
+        assertSplit(coalesced, true, 0, Long.MAX_VALUE, 3, 0, 0, 200000, 250000, 400000);
+        try {
+            createSource(gif).split(0, 0);
+            fail("Expected a failure.");
+        } catch (IllegalArgumentException ignore) {
+        }
+    }
+
+    /**
+     * Splits the given range, then checks the segment bounds and that
+     * the segments together output the same frames as the whole range.
+     */
+    private static void assertSplit(@NonNull byte[] gif, boolean coalesce,
+                                    long startUs, long endUs,
+                                    int maxSegments, long minDurationUs,
+                                    long... boundsUs) {
+        String message = "range:" + startUs + "-" + endUs + " segments:" + maxSegments;
+        DefaultDataSource source = createSource(gif);
+        source.setCoalesceZeroDelayFrames(coalesce);
+        if (startUs > 0 || endUs != Long.MAX_VALUE) source.setTrim(startUs, endUs);
+        List<DataSource> segments = source.split(maxSegments, minDurationUs);
+        assertEquals(message, boundsUs.length - 1, segments.size());
+        List<Long> joined = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            DataSource segment = segments.get(i);
+            long segmentStartUs = boundsUs[i];
+            long segmentEndUs = boundsUs[i + 1];
+            assertEquals(message, segmentEndUs - segmentStartUs, segment.getDurationUs());
+            Output output = readAll(segment);
+            assertEquals(message, FIRST_TIMESTAMP_US, (long) output.timestamps.get(0));
+            int last = output.timestamps.size() - 1;
+            assertEquals(message, FIRST_TIMESTAMP_US + segmentEndUs - segmentStartUs,
+                    (long) output.timestamps.get(last));
+            int frame = getFrameAt(gif, coalesce, segmentStartUs);
+            assertArrayEquals(message, decode(gif, frame), output.first);
+            for (int j = 0; j < last; j++) {
+                joined.add(output.timestamps.get(j) + segmentStartUs);
+            }
+        }
+        joined.add(FIRST_TIMESTAMP_US + boundsUs[boundsUs.length - 1]);
+        List<Long> expected = new ArrayList<>();
+        for (long timestampUs : readAll(source).timestamps) expected.add(timestampUs + startUs);
+        assertEquals(message, expected, joined);
+    }
+
+    /**
+     * Returns the expected timestamps for frames from start to end (excluded), when
+     * the trim range starts at the given time, plus the last chunk at the end time.
+     */
+    @NonNull
+    private static List<Long> frameTimestamps(long trimStartUs, int startFrame, int endFrame, long endUs) {
+        List<Long> timestamps = new ArrayList<>();
+        timestamps.add(FIRST_TIMESTAMP_US);
+        for (int frame = startFrame + 1; frame < endFrame; frame++) {
+            timestamps.add(FIRST_TIMESTAMP_US + frame * FRAME_US - trimStartUs);
+        }
+        timestamps.add(FIRST_TIMESTAMP_US + endUs - trimStartUs);
+        return timestamps;
+    }
+
+    /**
+     * Returns the last frame that starts at or before the given time, which is
+     * the one on screen, including the frames that are coalesced with it.
+     */
+    private static int getFrameAt(@NonNull byte[] gif, boolean coalesce, long timeUs) {
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        long frameTimeUs = 0;
+        int frame = 0;
+        while (frame + 1 < metadata.getFrameCount()) {
+            GifMetadata.Frame current = metadata.frames[frame];
+            boolean coalesced = coalesce && current.delay < GifMetadata.MIN_FRAME_DELAY;
+            long nextTimeUs = frameTimeUs + (coalesced ? 0 : current.getPlaybackDelay() * 1000L);
+            if (nextTimeUs > timeUs) break;
+            frameTimeUs = nextTimeUs;
+            frame++;
+        }
+        return frame;
+    }
+
+    @NonNull
+    private static DefaultDataSource createSource(@NonNull byte[] gif) {
+        DefaultDataSource source = new ByteBufferDataSource(gif);
+        // The fixtures have no duplicate frames, but make sure that all frames are output.
+        source.setMergeDuplicateFrames(false);
+        return source;
+    }
+
+    /**
+     * Reads all the chunks, checking that each one knows the timestamp of the next.
+     */
+    @NonNull
+    private static Output readAll(@NonNull DataSource source) {
+        Output output = new Output();
+        source.start();
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        chunk.requestedFormat = DataSource.Chunk.FORMAT_INDEXED;
+        long nextTimestampUs = Long.MIN_VALUE;
+        while (!source.isDrained()) {
+            chunk.nextTimestampUs = Long.MAX_VALUE;
+            source.read(chunk);
+            if (output.first == null) {
+                assertEquals(DataSource.Chunk.FORMAT_INDEXED, chunk.format);
+                output.first = chunk.indices.clone();
+            } else {
+                assertEquals(nextTimestampUs, chunk.timestampUs);
+            }
+            output.timestamps.add(chunk.timestampUs);
+            nextTimestampUs = chunk.nextTimestampUs;
+        }
+        assertEquals(Long.MAX_VALUE, nextTimestampUs);
+        source.release();
+        return output;
+    }
+
+    private static class Output {
+        private final List<Long> timestamps = new ArrayList<>();
+        private byte[] first;
+    }
+
+    /**
+     * Returns the indexed canvas after the given frame, decoding all frames before it.
+     */
+    @NonNull
+    static byte[] decode(@NonNull byte[] gif, int frame) {
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        GifFrameDecoder decoder = new GifFrameDecoder(ByteBuffer.wrap(gif), metadata);
+        assertTrue(decoder.supportsIndexed());
+        decoder.setIndexed(true);
+        for (int i = 0; i <= frame; i++) decoder.decodeFrame(i);
+        return decoder.getIndexCanvas().clone();
+    }
+
+    /**
+     * Returns a copy of the GIF where the given frames have the given delay.
+     */
+    @NonNull
+    static byte[] setDelays(@NonNull byte[] gif, @NonNull int[] frames, int delay) {
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        byte[] copy = gif.clone();
+        for (int frame : frames) {
+            int offset = metadata.frames[frame].controlOffset;
+            assertTrue(offset >= 0);
+            copy[offset + 4] = (byte) (delay / 10);
+            copy[offset + 5] = (byte) ((delay / 10) >> 8);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the GIF where each of the given frames is repeated
+     * right after itself, with the same control extension.
+     */
+    @NonNull
+    static byte[] duplicateFrames(@NonNull byte[] gif, int... frames) {
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int position = 0;
+        for (int frame : frames) {
+            int start = getFrameStart(metadata.frames[frame]);
+            int end = frame + 1 < metadata.getFrameCount()
+                    ? getFrameStart(metadata.frames[frame + 1])
+                    : gif.length - 1; // Trailer
+            output.write(gif, position, end - position);
+            output.write(gif, start, end - start);
+            position = end;
+        }
+        output.write(gif, position, gif.length - position);
+        return output.toByteArray();
+    }
+
+    private static int getFrameStart(@NonNull GifMetadata.Frame frame) {
+        return frame.controlOffset >= 0 ? frame.controlOffset : frame.offset;
+    }
+
+    @NonNull
+    static byte[] read(@NonNull String name) throws IOException {
+        InputStream stream = DefaultDataSourceTest.class.getResourceAsStream("/gifs/" + name);
+        if (stream == null) throw new IOException("Missing fixture: " + name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
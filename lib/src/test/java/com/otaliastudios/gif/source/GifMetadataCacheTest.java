@@ -0,0 +1,149 @@
+package com.otaliastudios.gif.source;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.source.internal.GifMetadata;
+import com.otaliastudios.gif.source.internal.GifRestartIndex;
+import com.otaliastudios.gif.source.internal.GifScanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GifMetadataCacheTest {
+
+    private File mDirectory;
+    private GifMetadataCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("gifmeta", "");
+        if (!mDirectory.delete() || !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        mCache = new GifMetadataCache(mDirectory, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testEditedGif() throws Exception {
+        // Large comments around the frames, so that the edits happen far from both ends
+        // and the sampled key does not change.
+        byte[] original = pad(read("disposal.gif"), 256 * 1024);
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(original));
+        GifMetadata.Frame frame = metadata.frames[metadata.getFrameCount() / 2];
+        String key = GifMetadataCache.computeKey(ByteBuffer.wrap(original));
+        int control = frame.controlOffset;
+        int descriptor = frame.offset;
+        // Delay, disposal, transparency flag, then x and height.
+        int[][] edits = {{control + 4, 5}, {control + 3, 0x0C}, {control + 3, 0x01},
+                {descriptor + 1, 1}, {descriptor + 7, 1}};
+        int misses = 0;
+        for (int[] edit : edits) {
+            byte[] edited = original.clone();
+            edited[edit[0]] ^= edit[1];
+            assertEquals(key, GifMetadataCache.computeKey(ByteBuffer.wrap(edited)));
+
+            mCache.put(key, metadata, GifRestartIndex.build(metadata));
+            assertNull(mCache.get(key, ByteBuffer.wrap(edited)));
+            assertEquals(++misses, mCache.getMissCount());
+        }
+        mCache.put(key, metadata, GifRestartIndex.build(metadata));
+        GifMetadataCache.Entry entry = mCache.get(key, ByteBuffer.wrap(original));
+        assertNotNull(entry);
+        assertEquals(frame.delay, entry.metadata.frames[metadata.getFrameCount() / 2].delay);
+        assertEquals(frame.controlOffset, entry.metadata.frames[metadata.getFrameCount() / 2].controlOffset);
+        assertEquals(1, mCache.getHitCount());
+    }
+
+    @Test
+    public void testKeyChangesAtEnds() throws Exception {
+        byte[] original = pad(read("disposal.gif"), 256 * 1024);
+        String key = GifMetadataCache.computeKey(ByteBuffer.wrap(original));
+        // Last global color table entry, then last comment byte.
+        int packed = original[10] & 0xFF;
+        int[] offsets = {12 + 3 * (2 << (packed & 0x07)), original.length - 3};
+        for (int offset : offsets) {
+            byte[] edited = original.clone();
+            edited[offset] ^= 1;
+            assertNotEquals(key, GifMetadataCache.computeKey(ByteBuffer.wrap(edited)));
+        }
+        byte[] longer = Arrays.copyOf(original, original.length + 1);
+        assertNotEquals(key, GifMetadataCache.computeKey(ByteBuffer.wrap(longer)));
+    }
+
+    @Test
+    public void testKeyIgnoresPosition() throws Exception {
+        byte[] gif = read("transparency.gif");
+        ByteBuffer shifted = ByteBuffer.allocate(gif.length + 10);
+        shifted.position(10);
+        shifted.put(gif);
+        shifted.position(10);
+        assertEquals(GifMetadataCache.computeKey(ByteBuffer.wrap(gif)),
+                GifMetadataCache.computeKey(shifted));
+        assertEquals(10, shifted.position());
+    }
+
+    /**
+     * Adds comment extensions of the given size after the global color table
+     * and before the trailer.
+     */
+    @NonNull
+    private static byte[] pad(@NonNull byte[] gif, int size) {
+        int packed = gif[10] & 0xFF;
+        int start = 13 + ((packed & 0x80) != 0 ? 3 * (1 << ((packed & 0x7) + 1)) : 0);
+        int end = gif.length - 1;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(gif, 0, start);
+        writeComment(output, size);
+        output.write(gif, start, end - start);
+        writeComment(output, size);
+        output.write(gif, end, 1);
+        return output.toByteArray();
+    }
+
+    private static void writeComment(@NonNull ByteArrayOutputStream output, int size) {
+        output.write(0x21);
+        output.write(0xFE);
+        for (int written = 0; written < size; written += 255) {
+            output.write(255);
+            for (int i = 0; i < 255; i++) output.write('x');
+        }
+        output.write(0);
+    }
+
+    @NonNull
+    private static byte[] read(@NonNull String name) throws IOException {
+        InputStream stream = GifMetadataCacheTest.class.getResourceAsStream("/gifs/" + name);
+        if (stream == null) throw new IOException("Missing fixture: " + name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
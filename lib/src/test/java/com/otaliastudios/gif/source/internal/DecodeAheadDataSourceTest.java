@@ -0,0 +1,189 @@
+package com.otaliastudios.gif.source.internal;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.gif.source.DataSource;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecodeAheadDataSourceTest {
+
+    private final static long WAIT_MILLIS = 200;
+
+    @Test
+    public void testOrder() {
+        FakeSource source = new FakeSource(20, -1);
+        DecodeAheadDataSource ahead = new DecodeAheadDataSource(source, 3);
+        ahead.start();
+        assertEquals(source.getDurationUs(), ahead.getDurationUs());
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        for (int i = 0; i < 20; i++) {
+            assertFalse(ahead.isDrained());
+            ahead.read(chunk);
+            assertEquals(i * 1000L, chunk.timestampUs);
+            assertEquals((i + 1) * 1000L, chunk.nextTimestampUs);
+            assertEquals(i, chunk.indices[0]);
+            assertEquals(i * 1000L, ahead.getReadUs());
+            assertEquals(i + 1, ahead.getDecodedFrameCount());
+        }
+        assertTrue(ahead.isDrained());
+        ahead.release();
+        assertTrue(source.released);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        int depth = 2;
+        FakeSource source = new FakeSource(10, -1);
+        DecodeAheadDataSource ahead = new DecodeAheadDataSource(source, depth);
+        ahead.start();
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        ahead.read(chunk);
+        // The reader holds one slot, so the producer fills the others and stops.
+        awaitReads(source, 1 + depth);
+        Thread.sleep(WAIT_MILLIS);
+        assertEquals(1 + depth, source.reads.get());
+        // The buffers we were given were not reused.
+        assertEquals(0, chunk.indices[0]);
+        ahead.read(chunk);
+        assertEquals(1, chunk.indices[0]);
+        awaitReads(source, 2 + depth);
+        Thread.sleep(WAIT_MILLIS);
+        assertEquals(2 + depth, source.reads.get());
+        ahead.release();
+    }
+
+    @Test
+    public void testProducerError() {
+        FakeSource source = new FakeSource(10, 3);
+        DecodeAheadDataSource ahead = new DecodeAheadDataSource(source, 2);
+        ahead.start();
+        DataSource.Chunk chunk = new DataSource.Chunk();
+        for (int i = 0; i < 3; i++) {
+            ahead.read(chunk);
+            assertEquals(i, chunk.indices[0]);
+        }
+        try {
+            ahead.read(chunk);
+            fail("Expected a failure.");
+        } catch (RuntimeException e) {
+            assertSame(source.failure, e.getCause());
+        }
+        ahead.release();
+        assertTrue(source.released);
+    }
+
+    @Test(timeout = 5000)
+    public void testReleaseWhileBlocked() throws Exception {
+        FakeSource source = new FakeSource(100, -1);
+        DecodeAheadDataSource ahead = new DecodeAheadDataSource(source, 1);
+        ahead.start();
+        ahead.read(new DataSource.Chunk());
+        // The producer is now blocked, waiting for a free slot.
+        awaitReads(source, 2);
+        ahead.release();
+        assertTrue(source.released);
+        // The producer was stopped before the source was released.
+        Thread.sleep(WAIT_MILLIS);
+        assertEquals(2, source.reads.get());
+        assertFalse(source.readAfterRelease);
+    }
+
+    @Test
+    public void testReleaseBeforeRead() {
+        FakeSource source = new FakeSource(10, -1);
+        DecodeAheadDataSource ahead = new DecodeAheadDataSource(source, 2);
+        ahead.start();
+        ahead.release();
+        assertTrue(source.released);
+        assertEquals(0, source.reads.get());
+    }
+
+    private static void awaitReads(@NonNull FakeSource source, int reads) throws InterruptedException {
+        while (source.reads.get() < reads) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A source whose frames last 1ms, and hold their index in the first byte.
+     * Reading can fail at the given frame.
+     */
+    private static class FakeSource implements DataSource, DataSource.FrameCounter {
+        final AtomicInteger reads = new AtomicInteger();
+        final RuntimeException failure = new IllegalStateException();
+        volatile boolean released;
+        volatile boolean readAfterRelease;
+        private final int mFrames;
+        private final int mFailAt;
+        private int mFrame = -1;
+
+        private FakeSource(int frames, int failAt) {
+            mFrames = frames;
+            mFailAt = failAt;
+        }
+
+        @Override
+        public long getDurationUs() {
+            return mFrames * 1000L;
+        }
+
+        @NonNull
+        @Override
+        public MediaFormat getTrackFormat() {
+            return new MediaFormat();
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void read(@NonNull Chunk chunk) {
+            if (released) readAfterRelease = true;
+            mFrame++;
+            if (mFrame == mFailAt) throw failure;
+            if (chunk.indices == null) chunk.indices = new byte[1];
+            chunk.indices[0] = (byte) mFrame;
+            chunk.format = Chunk.FORMAT_INDEXED;
+            chunk.timestampUs = mFrame * 1000L;
+            chunk.nextTimestampUs = (mFrame + 1) * 1000L;
+            reads.incrementAndGet();
+        }
+
+        @Override
+        public long getReadUs() {
+            return mFrame * 1000L;
+        }
+
+        @Override
+        public boolean isDrained() {
+            return mFrame == mFrames - 1;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+
+        @Override
+        public int getScannedFrameCount() {
+            return mFrames;
+        }
+
+        @Override
+        public int getDecodedFrameCount() {
+            return mFrame + 1;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GifFrameDecoderTest {
+
+    @Test
+    public void testDisposal() throws Exception {
+        GifMetadata metadata = assertMatchesReference("disposal.gif", 1);
+        boolean[] disposals = new boolean[4];
+        for (GifMetadata.Frame frame : metadata.frames) disposals[frame.disposal] = true;
+        for (boolean disposal : disposals) assertTrue(disposal);
+    }
+
+    @Test
+    public void testInterlaced() throws Exception {
+        GifMetadata metadata = assertMatchesReference("interlaced.gif", 1);
+        for (GifMetadata.Frame frame : metadata.frames) assertTrue(frame.interlaced);
+    }
+
+    @Test
+    public void testTransparency() throws Exception {
+        GifMetadata metadata = assertMatchesReference("transparency.gif", 1);
+        assertTrue(metadata.frames[0].transparentIndex >= 0);
+        assertTrue(!metadata.frames[0].coversScreen(metadata));
+    }
+
+    @Test
+    public void testLocalColorTables() throws Exception {
+        GifMetadata metadata = assertMatchesReference("local-color-tables.gif", 1);
+        int tables = 0;
+        for (GifMetadata.Frame frame : metadata.frames) {
+            if (frame.colorTableOffset >= 0) tables++;
+        }
+        assertTrue(tables > 1);
+    }
+
+    @Test
+    public void testSampleSize() throws Exception {
+        assertMatchesReference("disposal.gif", 2);
+        assertMatchesReference("interlaced.gif", 3);
+        assertMatchesReference("local-color-tables.gif", 4);
+    }
+
+    @Test
+    public void testIndexed() throws Exception {
+        byte[] gif = GifReference.read("disposal.gif");
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        GifFrameDecoder argb = new GifFrameDecoder(ByteBuffer.wrap(gif), metadata);
+        GifFrameDecoder indexed = new GifFrameDecoder(ByteBuffer.wrap(gif), metadata);
+        assertTrue(indexed.supportsIndexed());
+        indexed.setIndexed(true);
+        int[] palette = indexed.getPalette();
+        for (int i = 0; i < metadata.getFrameCount(); i++) {
+            argb.decodeFrame(i);
+            indexed.decodeFrame(i);
+            int[] expected = argb.getCanvas();
+            byte[] actual = indexed.getIndexCanvas();
+            for (int p = 0; p < expected.length; p++) {
+                assertEquals("Frame " + i + " pixel " + p, expected[p], palette[actual[p] & 0xFF]);
+            }
+        }
+    }
+
+    /**
+     * Decodes all frames of the given fixture in order, and checks each canvas
+     * against the reference one, picking the pixel that each sampled pixel refers to.
+     */
+    @NonNull
+    private static GifMetadata assertMatchesReference(@NonNull String name, int sampleSize) throws Exception {
+        byte[] gif = GifReference.read(name);
+        List<int[]> reference = GifReference.decode(gif);
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif));
+        assertEquals(reference.size(), metadata.getFrameCount());
+        GifFrameDecoder decoder = new GifFrameDecoder(ByteBuffer.wrap(gif), metadata);
+        decoder.setSampleSize(sampleSize);
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        int[] expected = new int[width * height];
+        for (int i = 0; i < metadata.getFrameCount(); i++) {
+            decoder.decodeFrame(i);
+            int[] frame = reference.get(i);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    expected[y * width + x] = frame[y * sampleSize * metadata.width + x * sampleSize];
+                }
+            }
+            assertArrayEquals(name + " frame " + i, expected, decoder.getCanvas());
+        }
+        return metadata;
+    }
+}
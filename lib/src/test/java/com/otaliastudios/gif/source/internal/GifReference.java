@@ -0,0 +1,221 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Test utilities for GIF fixtures. The reference decoder uses javax.imageio for reading
+ * the frames, which takes care of LZW, and composites them following the GIF specification,
+ * with the same conventions as {@link GifFrameDecoder}:
+ * the canvas starts transparent, and disposing to background fills with the background
+ * color only if the next frame has no transparency and no local color table.
+ *
+ * The javax.imageio reader loses rows of interlaced frames that are only a few rows high,
+ * so interlaced flags are cleared before reading and rows are reordered here.
+ */
+class GifReference {
+
+    private final static String FORMAT = "javax_imageio_gif_image_1.0";
+    private final static String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+    /**
+     * Reads a fixture from the test resources.
+     */
+    @NonNull
+    static byte[] read(@NonNull String name) throws IOException {
+        InputStream stream = GifReference.class.getResourceAsStream("/gifs/" + name);
+        if (stream == null) throw new IOException("Missing fixture: " + name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns the composited ARGB canvas after each frame.
+     */
+    @NonNull
+    static List<int[]> decode(@NonNull byte[] gif) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        gif = gif.clone();
+        boolean[] interlaced = clearInterlacing(gif);
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        try {
+            reader.setInput(input);
+            IIOMetadata streamMetadata = reader.getStreamMetadata();
+            Node stream = streamMetadata.getAsTree(STREAM_FORMAT);
+            Node screen = child(stream, "LogicalScreenDescriptor");
+            int width = intAttribute(screen, "logicalScreenWidth");
+            int height = intAttribute(screen, "logicalScreenHeight");
+            int backgroundColor = 0;
+            Node globalTable = child(stream, "GlobalColorTable");
+            if (globalTable != null) {
+                int backgroundIndex = intAttribute(globalTable, "backgroundColorIndex");
+                for (Node entry = globalTable.getFirstChild(); entry != null; entry = entry.getNextSibling()) {
+                    if (intAttribute(entry, "index") == backgroundIndex) {
+                        backgroundColor = 0xFF000000
+                                | intAttribute(entry, "red") << 16
+                                | intAttribute(entry, "green") << 8
+                                | intAttribute(entry, "blue");
+                    }
+                }
+            }
+
+            int count = reader.getNumImages(true);
+            List<int[]> frames = new ArrayList<>();
+            int[] canvas = new int[width * height];
+            int[] saved = null;
+            int[] previousRect = null;
+            String previousDisposal = null;
+            for (int i = 0; i < count; i++) {
+                Node metadata = reader.getImageMetadata(i).getAsTree(FORMAT);
+                Node descriptor = child(metadata, "ImageDescriptor");
+                Node control = child(metadata, "GraphicControlExtension");
+                int[] rect = {
+                        intAttribute(descriptor, "imageLeftPosition"),
+                        intAttribute(descriptor, "imageTopPosition"),
+                        intAttribute(descriptor, "imageWidth"),
+                        intAttribute(descriptor, "imageHeight")};
+                String disposal = control == null ? "none" : attribute(control, "disposalMethod");
+                int transparentIndex = -1;
+                if (control != null && "TRUE".equals(attribute(control, "transparentColorFlag"))) {
+                    transparentIndex = intAttribute(control, "transparentColorIndex");
+                }
+                boolean localTable = child(metadata, "LocalColorTable") != null;
+
+                if ("restoreToBackgroundColor".equals(previousDisposal)) {
+                    boolean background = transparentIndex < 0 && !localTable;
+                    fill(canvas, width, height, previousRect, background ? backgroundColor : 0);
+                } else if ("restoreToPrevious".equals(previousDisposal)) {
+                    copy(saved, canvas, width, height, previousRect);
+                }
+                if ("restoreToPrevious".equals(disposal)) {
+                    saved = canvas.clone();
+                }
+                BufferedImage image = reader.read(i);
+                IndexColorModel colors = (IndexColorModel) image.getColorModel();
+                for (int y = 0; y < rect[3]; y++) {
+                    int line = interlaced[i] ? getInterlacedLine(y, rect[3]) : y;
+                    for (int x = 0; x < rect[2]; x++) {
+                        int index = image.getRaster().getSample(x, line, 0);
+                        int canvasX = rect[0] + x;
+                        int canvasY = rect[1] + y;
+                        if (index == transparentIndex || canvasX >= width || canvasY >= height) continue;
+                        canvas[canvasY * width + canvasX] = 0xFF000000 | colors.getRGB(index);
+                    }
+                }
+                frames.add(canvas.clone());
+                previousRect = rect;
+                previousDisposal = disposal;
+            }
+            return frames;
+        } finally {
+            reader.dispose();
+            input.close();
+        }
+    }
+
+    /**
+     * Walks the GIF blocks, clearing the interlaced flag of each image descriptor.
+     * Returns which frames were interlaced.
+     */
+    @NonNull
+    private static boolean[] clearInterlacing(@NonNull byte[] gif) {
+        List<Boolean> interlaced = new ArrayList<>();
+        int position = 13;
+        if ((gif[10] & 0x80) != 0) position += 3 * (2 << (gif[10] & 0x07));
+        while (position < gif.length && gif[position] != 0x3B) {
+            if (gif[position] == 0x21) {
+                position = skipSubBlocks(gif, position + 2);
+            } else if (gif[position] == 0x2C) {
+                int packed = gif[position + 9];
+                interlaced.add((packed & 0x40) != 0);
+                gif[position + 9] = (byte) (packed & ~0x40);
+                position += 10;
+                if ((packed & 0x80) != 0) position += 3 * (2 << (packed & 0x07));
+                position = skipSubBlocks(gif, position + 1);
+            } else {
+                throw new IllegalArgumentException("Unexpected block at " + position);
+            }
+        }
+        boolean[] result = new boolean[interlaced.size()];
+        for (int i = 0; i < result.length; i++) result[i] = interlaced.get(i);
+        return result;
+    }
+
+    private static int skipSubBlocks(@NonNull byte[] gif, int position) {
+        while (gif[position] != 0) position += (gif[position] & 0xFF) + 1;
+        return position + 1;
+    }
+
+    /**
+     * Returns the line, in encoding order, that holds the given row of an interlaced image.
+     * Lines are stored in four passes: every 8th row from 0, every 8th from 4,
+     * every 4th from 2 and every 2nd from 1.
+     */
+    private static int getInterlacedLine(int row, int height) {
+        int[] starts = {0, 4, 2, 1};
+        int[] steps = {8, 8, 4, 2};
+        int line = 0;
+        for (int pass = 0; pass < 4; pass++) {
+            for (int y = starts[pass]; y < height; y += steps[pass]) {
+                if (y == row) return line;
+                line++;
+            }
+        }
+        throw new IllegalArgumentException("Invalid row: " + row);
+    }
+
+    private static void fill(@NonNull int[] canvas, int width, int height, @NonNull int[] rect, int color) {
+        for (int y = rect[1]; y < Math.min(rect[1] + rect[3], height); y++) {
+            for (int x = rect[0]; x < Math.min(rect[0] + rect[2], width); x++) {
+                canvas[y * width + x] = color;
+            }
+        }
+    }
+
+    private static void copy(@NonNull int[] from, @NonNull int[] to, int width, int height, @NonNull int[] rect) {
+        for (int y = rect[1]; y < Math.min(rect[1] + rect[3], height); y++) {
+            for (int x = rect[0]; x < Math.min(rect[0] + rect[2], width); x++) {
+                to[y * width + x] = from[y * width + x];
+            }
+        }
+    }
+
+    private static Node child(@NonNull Node node, @NonNull String name) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeName().equals(name)) return child;
+        }
+        return null;
+    }
+
+    private static String attribute(@NonNull Node node, @NonNull String name) {
+        return node.getAttributes().getNamedItem(name).getNodeValue();
+    }
+
+    private static int intAttribute(@NonNull Node node, @NonNull String name) {
+        return Integer.parseInt(attribute(node, name));
+    }
+}
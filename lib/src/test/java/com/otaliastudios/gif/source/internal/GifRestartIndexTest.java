@@ -0,0 +1,107 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class GifRestartIndexTest {
+
+    private final static String[] FIXTURES = {
+            "restart.gif",
+            "disposal.gif",
+            "interlaced.gif",
+            "transparency.gif",
+            "local-color-tables.gif"};
+
+    @Test
+    public void testRestartPoints() throws Exception {
+        GifMetadata metadata = scan(GifReference.read("restart.gif"));
+        // Frame 2 covers the screen with no transparency, but restores the canvas
+        // that was there before it, which can't be known without decoding.
+        assertEquals(GifMetadata.DISPOSAL_PREVIOUS, metadata.frames[2].disposal);
+        assertFalse(GifRestartIndex.isRestartPoint(metadata, 2));
+        GifRestartIndex index = GifRestartIndex.build(metadata);
+        int[] frames = new int[index.size()];
+        for (int i = 0; i < frames.length; i++) frames[i] = index.getFrame(i);
+        assertArrayEquals(new int[]{0, 4, 5, 6}, frames);
+    }
+
+    @Test
+    public void testDecodeFromRestartPoints() throws Exception {
+        for (String name : FIXTURES) {
+            byte[] gif = GifReference.read(name);
+            GifMetadata metadata = scan(gif);
+            GifRestartIndex index = GifRestartIndex.build(metadata);
+            for (int sampleSize = 1; sampleSize <= 2; sampleSize++) {
+                for (boolean indexed : new boolean[]{false, true}) {
+                    GifFrameDecoder sequential = createDecoder(gif, metadata, sampleSize, indexed);
+                    if (sequential == null) continue;
+                    List<Object> expected = new ArrayList<>();
+                    for (int i = 0; i < metadata.getFrameCount(); i++) {
+                        sequential.decodeFrame(i);
+                        expected.add(copyCanvas(sequential));
+                    }
+                    for (int point = 0; point < index.size(); point++) {
+                        GifFrameDecoder decoder = createDecoder(gif, metadata, sampleSize, indexed);
+                        //noinspection ConstantConditions
+                        for (int i = index.getFrame(point); i < metadata.getFrameCount(); i++) {
+                            decoder.decodeFrame(i);
+                            String message = name + " from:" + index.getFrame(point) + " frame:" + i +
+                                    " sampleSize:" + sampleSize + " indexed:" + indexed;
+                            if (indexed) {
+                                assertArrayEquals(message, (byte[]) expected.get(i), decoder.getIndexCanvas());
+                            } else {
+                                assertArrayEquals(message, (int[]) expected.get(i), decoder.getCanvas());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        GifMetadata metadata = scan(GifReference.read("restart.gif"));
+        GifRestartIndex index = GifRestartIndex.build(metadata);
+        GifRestartIndex copy = GifRestartIndex.fromByteArray(index.toByteArray(), metadata);
+        assertEquals(index.size(), copy.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(index.getFrame(i), copy.getFrame(i));
+            assertEquals(index.getOffset(i), copy.getOffset(i));
+            assertEquals(index.getTimestampUs(i), copy.getTimestampUs(i));
+        }
+    }
+
+    @NonNull
+    private static GifMetadata scan(@NonNull byte[] gif) {
+        return new GifScanner().scan(ByteBuffer.wrap(gif));
+    }
+
+    private static GifFrameDecoder createDecoder(@NonNull byte[] gif, @NonNull GifMetadata metadata,
+                                                 int sampleSize, boolean indexed) {
+        GifFrameDecoder decoder = new GifFrameDecoder(ByteBuffer.wrap(gif), metadata);
+        if (indexed && !decoder.supportsIndexed()) return null;
+        decoder.setIndexed(indexed);
+        decoder.setSampleSize(sampleSize);
+        return decoder;
+    }
+
+    @NonNull
+    private static Object copyCanvas(@NonNull GifFrameDecoder decoder) {
+        if (decoder.isIndexed()) {
+            return Arrays.copyOf(decoder.getIndexCanvas(), decoder.getIndexCanvas().length);
+        } else {
+            return Arrays.copyOf(decoder.getCanvas(), decoder.getCanvas().length);
+        }
+    }
+}
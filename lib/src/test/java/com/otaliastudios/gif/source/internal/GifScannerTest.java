@@ -0,0 +1,368 @@
+package com.otaliastudios.gif.source.internal;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GifScannerTest {
+
+    private final static String[] FIXTURES = {
+            "restart.gif",
+            "disposal.gif",
+            "interlaced.gif",
+            "transparency.gif",
+            "local-color-tables.gif"};
+
+    @Test
+    public void testScanAvailable() throws Exception {
+        for (String name : FIXTURES) {
+            byte[] gif = GifReference.read(name);
+            for (int step : new int[]{1, 3, 17, 256}) {
+                scanGrowing(name + " step:" + step, gif, step, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testScanAvailableWithOffset() throws Exception {
+        // Offsets are relative to the buffer position, as in scan().
+        for (String name : FIXTURES) {
+            scanGrowing(name, GifReference.read(name), 5, 7);
+        }
+    }
+
+    @Test
+    public void testFrames() {
+        GifBuilder builder = new GifBuilder(20, 10, 4);
+        int control0 = builder.size();
+        builder.control(GifMetadata.DISPOSAL_NONE, 10, -1);
+        int image0 = builder.size();
+        builder.image(0, 0, 20, 10, false, 0);
+        builder.comment();
+        int control1 = builder.size();
+        builder.control(GifMetadata.DISPOSAL_BACKGROUND, 0, 3);
+        int image1 = builder.size();
+        builder.image(2, 3, 5, 4, true, 8);
+        // No graphic control extension.
+        int image2 = builder.size();
+        builder.image(19, 9, 1, 1, false, 0);
+        builder.control(GifMetadata.DISPOSAL_PREVIOUS, 7, 0);
+        int image3 = builder.size();
+        builder.image(4, 0, 16, 10, false, 0);
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(builder.trailer()));
+        assertEquals(20, metadata.width);
+        assertEquals(10, metadata.height);
+        assertEquals(13, metadata.colorTableOffset);
+        assertEquals(4, metadata.colorTableSize);
+        assertFalse(metadata.truncated);
+        assertEquals(4, metadata.getFrameCount());
+
+        GifMetadata.Frame frame = metadata.frames[0];
+        assertFrame(frame, image0, 0, 0, 20, 10);
+        assertEquals(control0, frame.controlOffset);
+        assertEquals(GifMetadata.DISPOSAL_NONE, frame.disposal);
+        assertEquals(100, frame.delay);
+        assertEquals(-1, frame.transparentIndex);
+        assertFalse(frame.interlaced);
+        assertEquals(-1, frame.colorTableOffset);
+
+        frame = metadata.frames[1];
+        assertFrame(frame, image1, 2, 3, 5, 4);
+        assertEquals(control1, frame.controlOffset);
+        assertEquals(GifMetadata.DISPOSAL_BACKGROUND, frame.disposal);
+        assertEquals(0, frame.delay);
+        assertEquals(GifMetadata.DEFAULT_FRAME_DELAY, frame.getPlaybackDelay());
+        assertEquals(3, frame.transparentIndex);
+        assertTrue(frame.interlaced);
+        assertEquals(image1 + 10, frame.colorTableOffset);
+        assertEquals(8, frame.colorTableSize);
+        assertEquals(image1 + 10 + 3 * 8, frame.dataOffset);
+
+        frame = metadata.frames[2];
+        assertFrame(frame, image2, 19, 9, 1, 1);
+        assertEquals(-1, frame.controlOffset);
+        assertEquals(GifMetadata.DISPOSAL_UNSPECIFIED, frame.disposal);
+        assertEquals(0, frame.delay);
+        assertEquals(-1, frame.transparentIndex);
+
+        frame = metadata.frames[3];
+        assertFrame(frame, image3, 4, 0, 16, 10);
+        assertEquals(GifMetadata.DISPOSAL_PREVIOUS, frame.disposal);
+        assertEquals(70, frame.delay);
+        assertEquals(0, frame.transparentIndex);
+
+        assertEquals((100 + 100 + 100 + 70) * 1000L, metadata.getDurationUs());
+    }
+
+    @Test
+    public void testLoopCount() {
+        assertEquals(-1, scanWithApplication(null, 0));
+        assertEquals(0, scanWithApplication("NETSCAPE2.0", 0));
+        assertEquals(1000, scanWithApplication("NETSCAPE2.0", 1000));
+        assertEquals(3, scanWithApplication("ANIMEXTS1.0", 3));
+        assertEquals(-1, scanWithApplication("XMP DataXMP", 3));
+    }
+
+    private static int scanWithApplication(String identifier, int loopCount) {
+        GifBuilder builder = new GifBuilder(4, 4, 2);
+        if (identifier != null) builder.application(identifier, loopCount);
+        builder.image(0, 0, 4, 4, false, 0);
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(builder.trailer()));
+        assertEquals(1, metadata.getFrameCount());
+        return metadata.loopCount;
+    }
+
+    @Test
+    public void testTrailingGarbage() {
+        GifBuilder builder = new GifBuilder(4, 4, 2);
+        builder.image(0, 0, 4, 4, false, 0);
+        builder.image(0, 0, 2, 2, false, 0);
+        builder.bytes(0x00, 0x12, 0x34);
+        GifScanner scanner = new GifScanner();
+        GifMetadata metadata = scanner.scan(ByteBuffer.wrap(builder.build()));
+        assertEquals(2, metadata.getFrameCount());
+        assertTrue(scanner.isEnded());
+        assertFalse(metadata.truncated);
+
+        // Garbage before any frame is an error.
+        builder = new GifBuilder(4, 4, 2);
+        builder.bytes(0x00);
+        builder.image(0, 0, 4, 4, false, 0);
+        assertNotScanned(builder.trailer());
+    }
+
+    @Test
+    public void testTruncated() {
+        GifBuilder builder = new GifBuilder(4, 4, 2);
+        builder.control(GifMetadata.DISPOSAL_NONE, 5, -1);
+        builder.image(0, 0, 4, 4, false, 0);
+        int firstEnd = builder.size();
+        builder.control(GifMetadata.DISPOSAL_NONE, 5, -1);
+        builder.image(1, 1, 2, 2, false, 4);
+        int secondEnd = builder.size();
+        byte[] gif = builder.trailer();
+        // Cut anywhere in the second frame, including its control extension.
+        for (int size = firstEnd; size < secondEnd; size++) {
+            GifScanner scanner = new GifScanner();
+            GifMetadata metadata = scanner.scan(ByteBuffer.wrap(gif, 0, size));
+            String message = "size:" + size;
+            assertTrue(message, metadata.truncated);
+            assertFalse(message, scanner.isEnded());
+            assertEquals(message, 1, metadata.getFrameCount());
+            assertEquals(message, 4, metadata.frames[0].width);
+        }
+        // Everything but the trailer.
+        GifMetadata metadata = new GifScanner().scan(ByteBuffer.wrap(gif, 0, secondEnd));
+        assertTrue(metadata.truncated);
+        assertEquals(2, metadata.getFrameCount());
+        // No full frame, or no header.
+        assertNotScanned(ByteBuffer.wrap(gif, 0, firstEnd - 1));
+        assertNotScanned(ByteBuffer.wrap(gif, 0, 12));
+        assertNotScanned(new byte[]{'P', 'N', 'G', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    private static void assertFrame(@NonNull GifMetadata.Frame frame, int offset,
+                                    int x, int y, int width, int height) {
+        assertEquals(offset, frame.offset);
+        assertEquals(x, frame.x);
+        assertEquals(y, frame.y);
+        assertEquals(width, frame.width);
+        assertEquals(height, frame.height);
+    }
+
+    private static void assertNotScanned(@NonNull byte[] gif) {
+        assertNotScanned(ByteBuffer.wrap(gif));
+    }
+
+    private static void assertNotScanned(@NonNull ByteBuffer data) {
+        try {
+            new GifScanner().scan(data);
+            fail("Expected a failure.");
+        } catch (IllegalArgumentException ignore) {
+        }
+    }
+
+    /**
+     * Feeds the GIF to the same scanner in growing prefixes, the way
+     * {@link com.otaliastudios.gif.source.GrowingFileDataSource} does, and checks
+     * that frames are added as soon as their data is complete, and only then.
+     */
+    private static void scanGrowing(@NonNull String message, @NonNull byte[] gif, int step, int start) {
+        GifMetadata expected = new GifScanner().scan(ByteBuffer.wrap(gif));
+        int[] frameEnds = computeFrameEnds(gif, expected);
+        int headerEnd = 13 + 3 * expected.colorTableSize;
+        assertEquals(message, 0x3B, gif[gif.length - 1] & 0xFF);
+
+        byte[] data = new byte[start + gif.length];
+        System.arraycopy(gif, 0, data, start, gif.length);
+        GifScanner scanner = new GifScanner();
+        GifMetadata metadata = null;
+        for (int size = 0; ; size = Math.min(size + step, gif.length)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, start, size);
+            GifMetadata result = scanner.scanAvailable(buffer);
+            String at = message + " size:" + size;
+            assertEquals(at, start, buffer.position());
+            assertEquals(at, start + size, buffer.limit());
+            if (size < headerEnd) {
+                assertNull(at, result);
+            } else {
+                assertNotNull(at, result);
+                if (metadata != null) assertSame(at, metadata, result);
+                metadata = result;
+                // The trailer is the last byte, so the scan ends with it.
+                boolean ended = size == gif.length;
+                assertEquals(at, ended, scanner.isEnded());
+                assertEquals(at, !ended, metadata.truncated);
+                int frames = 0;
+                while (frames < frameEnds.length && frameEnds[frames] <= size) frames++;
+                assertEquals(at, frames, metadata.getFrameCount());
+                assertMetadataEquals(at, expected, metadata, frames);
+            }
+            if (size == gif.length) break;
+        }
+        assertNotNull(message, metadata);
+        assertEquals(message, expected.getFrameCount(), metadata.getFrameCount());
+        assertEquals(message, expected.loopCount, metadata.loopCount);
+    }
+
+    /**
+     * Returns, for each frame, the offset after its block terminator.
+     */
+    @NonNull
+    private static int[] computeFrameEnds(@NonNull byte[] gif, @NonNull GifMetadata metadata) {
+        int[] ends = new int[metadata.getFrameCount()];
+        for (int i = 0; i < ends.length; i++) {
+            int position = metadata.frames[i].dataOffset + 1;
+            while (true) {
+                int size = gif[position++] & 0xFF;
+                if (size == 0) break;
+                position += size;
+            }
+            ends[i] = position;
+        }
+        return ends;
+    }
+
+    private static void assertMetadataEquals(@NonNull String message,
+                                             @NonNull GifMetadata expected,
+                                             @NonNull GifMetadata actual,
+                                             int frames) {
+        assertEquals(message, expected.width, actual.width);
+        assertEquals(message, expected.height, actual.height);
+        assertEquals(message, expected.colorTableOffset, actual.colorTableOffset);
+        assertEquals(message, expected.colorTableSize, actual.colorTableSize);
+        assertEquals(message, expected.backgroundIndex, actual.backgroundIndex);
+        for (int i = 0; i < frames; i++) {
+            assertFrameEquals(message + " frame:" + i, expected.frames[i], actual.frames[i]);
+        }
+    }
+
+    private static void assertFrameEquals(@NonNull String message,
+                                          @NonNull GifMetadata.Frame expected,
+                                          @NonNull GifMetadata.Frame actual) {
+        assertEquals(message, expected.offset, actual.offset);
+        assertEquals(message, expected.controlOffset, actual.controlOffset);
+        assertEquals(message, expected.dataOffset, actual.dataOffset);
+        assertEquals(message, expected.delay, actual.delay);
+        assertEquals(message, expected.disposal, actual.disposal);
+        assertEquals(message, expected.transparentIndex, actual.transparentIndex);
+        assertEquals(message, expected.x, actual.x);
+        assertEquals(message, expected.y, actual.y);
+        assertEquals(message, expected.width, actual.width);
+        assertEquals(message, expected.height, actual.height);
+        assertEquals(message, expected.interlaced, actual.interlaced);
+        assertEquals(message, expected.colorTableOffset, actual.colorTableOffset);
+        assertEquals(message, expected.colorTableSize, actual.colorTableSize);
+    }
+
+    /**
+     * Writes GIFs block by block. Image data is not valid LZW, since the scanner
+     * does not decode it, but it is split in sub-blocks of different sizes.
+     */
+    private static class GifBuilder {
+
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+        private GifBuilder(int width, int height, int colors) {
+            bytes('G', 'I', 'F', '8', '9', 'a');
+            shorts(width, height);
+            bytes(0x80 | tableSizeBits(colors), 0, 0);
+            colorTable(colors);
+        }
+
+        private int size() {
+            return mOutput.size();
+        }
+
+        private void control(int disposal, int delay, int transparentIndex) {
+            int flags = (disposal << 2) | (transparentIndex >= 0 ? 0x01 : 0);
+            bytes(0x21, 0xF9, 4, flags);
+            shorts(delay);
+            bytes(Math.max(transparentIndex, 0), 0);
+        }
+
+        private void application(@NonNull String identifier, int loopCount) {
+            bytes(0x21, 0xFF, 11);
+            for (int i = 0; i < 11; i++) bytes(identifier.charAt(i));
+            bytes(3, 1);
+            shorts(loopCount);
+            bytes(0);
+        }
+
+        private void comment() {
+            bytes(0x21, 0xFE, 5, 'h', 'e', 'l', 'l', 'o', 0);
+        }
+
+        private void image(int x, int y, int width, int height, boolean interlaced, int colors) {
+            bytes(0x2C);
+            shorts(x, y, width, height);
+            int flags = interlaced ? 0x40 : 0;
+            if (colors > 0) flags |= 0x80 | tableSizeBits(colors);
+            bytes(flags);
+            colorTable(colors);
+            bytes(2); // LZW minimum code size.
+            bytes(1, 0x44);
+            bytes(255);
+            mOutput.write(new byte[255], 0, 255);
+            bytes(0);
+        }
+
+        private void bytes(int... bytes) {
+            for (int b : bytes) mOutput.write(b);
+        }
+
+        private void shorts(int... shorts) {
+            for (int s : shorts) bytes(s & 0xFF, (s >> 8) & 0xFF);
+        }
+
+        private void colorTable(int colors) {
+            for (int i = 0; i < colors; i++) bytes(i, i, i);
+        }
+
+        private static int tableSizeBits(int colors) {
+            return Integer.numberOfTrailingZeros(colors) - 1;
+        }
+
+        @NonNull
+        private byte[] build() {
+            return mOutput.toByteArray();
+        }
+
+        @NonNull
+        private byte[] trailer() {
+            bytes(0x3B);
+            return build();
+        }
+    }
+}
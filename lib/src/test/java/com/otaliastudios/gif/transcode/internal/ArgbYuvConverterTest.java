@@ -0,0 +1,263 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ArgbYuvConverterTest {
+
+    private final static int[] FORMATS = {
+            ArgbYuvConverter.FORMAT_I420,
+            ArgbYuvConverter.FORMAT_NV12,
+            ArgbYuvConverter.FORMAT_NV21};
+    private final static int[] STANDARDS = {
+            ArgbYuvConverter.STANDARD_BT601,
+            ArgbYuvConverter.STANDARD_BT709};
+    private final static int[][] SIZES = {{1, 1}, {2, 2}, {16, 8}, {17, 9}, {33, 2}, {6, 31}};
+
+    // Fixed point coefficients can be off by one, plus one for rounding.
+    private final static int TOLERANCE = 2;
+    private final static byte PADDING = (byte) 0xA5;
+
+    @Test
+    public void testAgainstReference() {
+        Random random = new Random(1);
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            int[] argb = new int[width * height];
+            for (int i = 0; i < argb.length; i++) argb[i] = random.nextInt();
+            // Packed output, then padded stride and slice height, both odd and even.
+            int[][] layouts = {{width, height}, {width + 5, height + 3}, {width + 8, height + 2}};
+            for (int format : FORMATS) {
+                for (int standard : STANDARDS) {
+                    for (boolean fullRange : new boolean[]{false, true}) {
+                        for (int[] layout : layouts) {
+                            String message = "size:" + width + "x" + height +
+                                    " layout:" + layout[0] + "x" + layout[1] +
+                                    " format:" + format + " standard:" + standard +
+                                    " fullRange:" + fullRange;
+                            byte[] expected = Reference.convert(argb, width, height,
+                                    layout[0], layout[1], format, standard, fullRange);
+                            byte[] actual = new byte[expected.length];
+                            Arrays.fill(actual, PADDING);
+                            new ArgbYuvConverter(format, standard, fullRange)
+                                    .convert(argb, 0, width, width, height, actual, layout[0], layout[1]);
+                            assertClose(message, expected, actual);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExtremes() {
+        int[] colors = {0xFF000000, 0xFFFFFFFF, 0xFF808080};
+        for (int standard : STANDARDS) {
+            for (boolean fullRange : new boolean[]{false, true}) {
+                ArgbYuvConverter converter = new ArgbYuvConverter(
+                        ArgbYuvConverter.FORMAT_I420, standard, fullRange);
+                int black = fullRange ? 0 : 16;
+                int white = fullRange ? 255 : 235;
+                for (int color : colors) {
+                    int[] argb = new int[4];
+                    Arrays.fill(argb, color);
+                    byte[] output = new byte[ArgbYuvConverter.getOutputSize(2, 2)];
+                    converter.convert(argb, 2, 2, output);
+                    int luma = output[0] & 0xFF;
+                    if (color == colors[0]) assertEquals(black, luma);
+                    if (color == colors[1]) assertEquals(white, luma);
+                    // Grays have no chroma.
+                    assertEquals(128, output[4] & 0xFF);
+                    assertEquals(128, output[5] & 0xFF);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInputStride() {
+        Random random = new Random(2);
+        int width = 17;
+        int height = 9;
+        int argbStride = 20;
+        int offset = 7;
+        int[] argb = new int[offset + argbStride * height];
+        int[] packed = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = random.nextInt();
+                argb[offset + y * argbStride + x] = color;
+                packed[y * width + x] = color;
+            }
+        }
+        ArgbYuvConverter converter = new ArgbYuvConverter(ArgbYuvConverter.FORMAT_NV12,
+                ArgbYuvConverter.STANDARD_BT601, false);
+        byte[] expected = new byte[ArgbYuvConverter.getOutputSize(width, height)];
+        byte[] actual = new byte[expected.length];
+        converter.convert(packed, width, height, expected);
+        converter.convert(argb, offset, argbStride, width, height, actual, width, height);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testStripes() {
+        Random random = new Random(3);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int[] size : SIZES) {
+                int width = size[0];
+                int height = size[1];
+                int[] argb = new int[width * height];
+                for (int i = 0; i < argb.length; i++) argb[i] = random.nextInt();
+                for (int format : FORMATS) {
+                    int stride = width + 3;
+                    int sliceHeight = height + 1;
+                    byte[] expected = new byte[ArgbYuvConverter.getOutputSize(stride, sliceHeight)];
+                    new ArgbYuvConverter(format, ArgbYuvConverter.STANDARD_BT709, true)
+                            .convert(argb, 0, width, width, height, expected, stride, sliceHeight);
+                    for (int stripes = 1; stripes <= 5; stripes++) {
+                        ArgbYuvConverter converter = new ArgbYuvConverter(format,
+                                ArgbYuvConverter.STANDARD_BT709, true, executor, stripes);
+                        // Twice, to check that the converter can be reused.
+                        for (int run = 0; run < 2; run++) {
+                            byte[] actual = new byte[expected.length];
+                            converter.convert(argb, 0, width, width, height, actual, stride, sliceHeight);
+                            assertArrayEquals("size:" + width + "x" + height + " format:" + format +
+                                    " stripes:" + stripes, expected, actual);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStripeFailure() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            int width = 512;
+            int height = 512;
+            ArgbYuvConverter converter = new ArgbYuvConverter(ArgbYuvConverter.FORMAT_I420,
+                    ArgbYuvConverter.STANDARD_BT601, false, executor, 4);
+            // The first rows are missing, so the stripe of the caller thread fails
+            // while the others are still running.
+            int[] argb = new int[width * (height - 4)];
+            byte[] output = new byte[ArgbYuvConverter.getOutputSize(width, height)];
+            try {
+                converter.convert(argb, -4 * width, width, width, height, output, width, height);
+                fail("Expected a failure.");
+            } catch (ArrayIndexOutOfBoundsException ignore) {}
+            // Nothing should write into the output after convert() returned.
+            byte[] copy = Arrays.copyOf(output, output.length);
+            Thread.sleep(50);
+            assertArrayEquals(copy, output);
+            // The converter still works.
+            argb = new int[width * height];
+            converter.convert(argb, width, height, output);
+            assertEquals(16, output[0] & 0xFF);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Values must be within the tolerance. Since the reference leaves the padding as is,
+     * this also checks that padding is not touched and that everything else is written,
+     * unless a written value is close to the padding value by chance.
+     */
+    private static void assertClose(@NonNull String message, @NonNull byte[] expected, @NonNull byte[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            int e = expected[i] & 0xFF;
+            int a = actual[i] & 0xFF;
+            if (Math.abs(e - a) > TOLERANCE) {
+                fail(message + " index:" + i + " expected:" + e + " actual:" + a);
+            }
+        }
+    }
+
+    /**
+     * Straightforward floating point implementation of the conversion,
+     * from the standard equations, with its own buffer layout code.
+     */
+    private static class Reference {
+
+        @NonNull
+        private static byte[] convert(@NonNull int[] argb, int width, int height,
+                                      int stride, int sliceHeight,
+                                      int format, int standard, boolean fullRange) {
+            double kr = standard == ArgbYuvConverter.STANDARD_BT601 ? 0.299 : 0.2126;
+            double kb = standard == ArgbYuvConverter.STANDARD_BT601 ? 0.114 : 0.0722;
+            double lumaScale = fullRange ? 1 : 219D / 255D;
+            double chromaScale = fullRange ? 1 : 224D / 255D;
+            double lumaOffset = fullRange ? 0 : 16;
+            byte[] output = new byte[ArgbYuvConverter.getOutputSize(stride, sliceHeight)];
+            Arrays.fill(output, PADDING);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double[] rgb = rgb(argb[y * width + x]);
+                    double luma = kr * rgb[0] + (1 - kr - kb) * rgb[1] + kb * rgb[2];
+                    output[y * stride + x] = clamp(lumaOffset + luma * lumaScale);
+                }
+            }
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            int lumaSize = stride * sliceHeight;
+            for (int cy = 0; cy < chromaHeight; cy++) {
+                for (int cx = 0; cx < chromaWidth; cx++) {
+                    // Average of the 2x2 block, repeating the last row and column.
+                    double r = 0, g = 0, b = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            int x = Math.min(2 * cx + dx, width - 1);
+                            int y = Math.min(2 * cy + dy, height - 1);
+                            double[] rgb = rgb(argb[y * width + x]);
+                            r += rgb[0] / 4;
+                            g += rgb[1] / 4;
+                            b += rgb[2] / 4;
+                        }
+                    }
+                    double luma = kr * r + (1 - kr - kb) * g + kb * b;
+                    byte u = clamp(128 + (b - luma) / (2 * (1 - kb)) * chromaScale);
+                    byte v = clamp(128 + (r - luma) / (2 * (1 - kr)) * chromaScale);
+                    if (format == ArgbYuvConverter.FORMAT_I420) {
+                        int chromaStride = (stride + 1) / 2;
+                        int uPlane = lumaSize;
+                        int vPlane = uPlane + chromaStride * ((sliceHeight + 1) / 2);
+                        output[uPlane + cy * chromaStride + cx] = u;
+                        output[vPlane + cy * chromaStride + cx] = v;
+                    } else {
+                        int pair = lumaSize + cy * stride + 2 * cx;
+                        boolean nv12 = format == ArgbYuvConverter.FORMAT_NV12;
+                        output[pair] = nv12 ? u : v;
+                        output[pair + 1] = nv12 ? v : u;
+                    }
+                }
+            }
+            return output;
+        }
+
+        @NonNull
+        private static double[] rgb(int color) {
+            return new double[]{(color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF};
+        }
+
+        private static byte clamp(double value) {
+            long rounded = Math.round(value);
+            return (byte) (rounded < 0 ? 0 : rounded > 255 ? 255 : rounded);
+        }
+    }
+}
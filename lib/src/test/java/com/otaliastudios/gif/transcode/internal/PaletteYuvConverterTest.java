@@ -0,0 +1,55 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PaletteYuvConverterTest {
+
+    private final static int[] FORMATS = {
+            ArgbYuvConverter.FORMAT_I420,
+            ArgbYuvConverter.FORMAT_NV12,
+            ArgbYuvConverter.FORMAT_NV21};
+    private final static int[] STANDARDS = {
+            ArgbYuvConverter.STANDARD_BT601,
+            ArgbYuvConverter.STANDARD_BT709};
+
+    @Test
+    public void testSameAsArgb() {
+        Random random = new Random(1);
+        int[][] sizes = {{16, 8}, {17, 9}, {1, 1}, {33, 2}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            // Only part of the palette is set, and one entry is transparent.
+            int[] palette = new int[200];
+            for (int i = 0; i < palette.length; i++) palette[i] = random.nextInt();
+            palette[3] = 0x00FF00FF;
+            byte[] indices = new byte[width * height];
+            int[] argb = new int[width * height];
+            for (int i = 0; i < indices.length; i++) {
+                int index = random.nextInt(256);
+                indices[i] = (byte) index;
+                int color = index < palette.length ? palette[index] : 0;
+                argb[i] = (color >>> 24) == 0 ? 0 : color;
+            }
+            for (int format : FORMATS) {
+                for (int standard : STANDARDS) {
+                    for (boolean fullRange : new boolean[]{false, true}) {
+                        int outputSize = ArgbYuvConverter.getOutputSize(width, height);
+                        byte[] expected = new byte[outputSize];
+                        byte[] actual = new byte[outputSize];
+                        new ArgbYuvConverter(format, standard, fullRange).convert(argb, width, height, expected);
+                        PaletteYuvConverter converter = new PaletteYuvConverter(format, standard, fullRange);
+                        converter.setPalette(palette);
+                        converter.convert(indices, width, height, actual);
+                        assertArrayEquals("size:" + width + "x" + height + " format:" + format +
+                                " standard:" + standard + " fullRange:" + fullRange, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripeRunnerTest {
+
+    private final static int STRIPES = 4;
+
+    private ExecutorService mExecutor;
+    private StripeRunner mRunner;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(STRIPES - 1);
+        mRunner = new StripeRunner(mExecutor, STRIPES);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testRun() {
+        AtomicInteger done = new AtomicInteger();
+        Runnable[] stripes = new Runnable[STRIPES];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new SlowStripe(done, null);
+        for (int count = 1; count <= STRIPES; count++) {
+            done.set(0);
+            mRunner.run(stripes, count);
+            assertEquals(count, done.get());
+        }
+    }
+
+    @Test
+    public void testCallerStripeFailure() {
+        AtomicInteger done = new AtomicInteger();
+        final RuntimeException failure = new IllegalStateException();
+        Runnable[] stripes = new Runnable[STRIPES];
+        stripes[0] = new Runnable() {
+            @Override
+            public void run() {
+                throw failure;
+            }
+        };
+        for (int i = 1; i < STRIPES; i++) stripes[i] = new SlowStripe(done, null);
+        try {
+            mRunner.run(stripes, STRIPES);
+            fail("Expected a failure.");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        // The other stripes finished before run() returned.
+        assertEquals(STRIPES - 1, done.get());
+    }
+
+    @Test
+    public void testExecutorStripeFailure() {
+        AtomicInteger done = new AtomicInteger();
+        final RuntimeException failure = new IllegalStateException();
+        Runnable[] stripes = new Runnable[STRIPES];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new SlowStripe(done, i == 1 ? failure : null);
+        try {
+            mRunner.run(stripes, STRIPES);
+            fail("Expected a failure.");
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(STRIPES - 1, done.get());
+        // The runner can be reused.
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new SlowStripe(done, null);
+        done.set(0);
+        mRunner.run(stripes, STRIPES);
+        assertEquals(STRIPES, done.get());
+    }
+
+    @Test
+    public void testInterrupt() {
+        AtomicInteger done = new AtomicInteger();
+        Runnable[] stripes = new Runnable[STRIPES];
+        // The caller is interrupted while the other stripes are running.
+        stripes[0] = new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+            }
+        };
+        for (int i = 1; i < STRIPES; i++) stripes[i] = new SlowStripe(done, null);
+        try {
+            mRunner.run(stripes, STRIPES);
+            fail("Expected a failure.");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        } finally {
+            // Clear the flag, which should still be set.
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(STRIPES - 1, done.get());
+    }
+
+    /**
+     * A stripe that takes some time, then counts itself or fails.
+     */
+    private static class SlowStripe implements Runnable {
+        private final AtomicInteger mDone;
+        private final RuntimeException mFailure;
+
+        private SlowStripe(@NonNull AtomicInteger done, @Nullable RuntimeException failure) {
+            mDone = done;
+            mFailure = failure;
+        }
+
+        @Override
+        public void run() {
+            long end = System.nanoTime() + 20000000L;
+            //noinspection StatementWithEmptyBody
+            while (System.nanoTime() < end) {}
+            if (mFailure != null) throw mFailure;
+            mDone.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.otaliastudios.gif.transcode.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VideoFrameDropperTest {
+
+    @Test
+    public void testLongFrameAfterShortFrame() {
+        // A is shown for 20ms, then B for 2s. B must not be dropped in favor of A.
+        VideoFrameDropper dropper = VideoFrameDropper.newDropper(30);
+        assertTrue(dropper.shouldRenderFrame(0, 20000));
+        assertTrue(dropper.shouldRenderFrame(20000, 2020000));
+        assertTrue(dropper.shouldRenderFrame(2020000, 2120000));
+    }
+
+    @Test
+    public void testShortFrameBetweenIntervals() {
+        // With 30fps, intervals start at 0, 33333, 66666...
+        VideoFrameDropper dropper = VideoFrameDropper.newDropper(30);
+        assertTrue(dropper.shouldRenderFrame(0, 10000));
+        assertFalse(dropper.shouldRenderFrame(10000, 20000));
+        assertTrue(dropper.shouldRenderFrame(20000, 40000));
+        assertFalse(dropper.shouldRenderFrame(40000, 60000));
+        assertTrue(dropper.shouldRenderFrame(60000, 80000));
+    }
+
+    @Test
+    public void testFrameRate() {
+        // 50fps input to 30fps output, for 10 seconds.
+        VideoFrameDropper dropper = VideoFrameDropper.newDropper(30);
+        int rendered = 0;
+        for (int i = 0; i < 500; i++) {
+            if (dropper.shouldRenderFrame(i * 20000L, (i + 1) * 20000L)) rendered++;
+        }
+        assertEquals(300, rendered, 1);
+    }
+
+    @Test
+    public void testSlowInput() {
+        // Frames longer than the output interval are never dropped.
+        VideoFrameDropper dropper = VideoFrameDropper.newDropper(30);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dropper.shouldRenderFrame(i * 100000L + 1000L, (i + 1) * 100000L + 1000L));
+        }
+    }
+}